@@ -16,6 +16,8 @@
 
 package com.greatnowhere.radar;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import android.app.AlertDialog;
@@ -27,15 +29,17 @@ import android.content.Intent;
 import android.content.res.Configuration;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.cobra.iradar.protocol.CobraRadarMessageAlert;
@@ -43,9 +47,13 @@ import com.cobra.iradar.protocol.CobraRadarMessageAlert.Alert;
 import com.greatnowhere.radar.config.Preferences;
 import com.greatnowhere.radar.config.SettingsActivity;
 import com.greatnowhere.radar.location.LocationInfoLookupManager;
+import com.greatnowhere.radar.location.OfflineSpeedLimitsBuilder;
 import com.greatnowhere.radar.location.PhoneActivityDetector;
 import com.greatnowhere.radar.location.RadarLocationManager;
 import com.greatnowhere.radar.services.CollectorService;
+import com.greatnowhere.radar.services.ScreenLog;
+import com.greatnowhere.radar.threats.ThreatHistoryActivity;
+import com.greatnowhere.radar.threats.ThreatLogArchive;
 
 import de.greenrobot.event.EventBus;
 
@@ -67,7 +75,14 @@ public class MainRadarActivity extends FragmentActivity {
     private TextView alert;
     private TextView alertCredibility;
     private TextView connState;
-    private TextView log;
+    private ListView log;
+    private LogAdapter logAdapter;
+    /**
+     * Lines shown in log view, newest first, and sequence number of newest one in collector's log
+     */
+    private final ScreenLog shownLog = new ScreenLog(300);
+    private long shownLogSequence = 0;
+    private final List<String> newLogLines = new ArrayList<String>();
     private TextView voltage;
     private TextView uiMode;
     private TextView roadInfo;
@@ -99,8 +114,9 @@ public class MainRadarActivity extends FragmentActivity {
 
         Preferences.init(getApplicationContext());
         
-        log = (TextView) findViewById(R.id.logScroll);
-        log.setMovementMethod(new ScrollingMovementMethod());
+        log = (ListView) findViewById(R.id.logScroll);
+        logAdapter = new LogAdapter();
+        log.setAdapter(logAdapter);
         alert = (TextView) findViewById(R.id.radarState);
         alertCredibility = (TextView) findViewById(R.id.radarThreatCredibility);
         connState = (TextView) findViewById(R.id.connStatus);
@@ -228,6 +244,19 @@ public class MainRadarActivity extends FragmentActivity {
 			Random r = new Random();
 			eventBus.post(new CobraRadarMessageAlert(Alert.Ka, r.nextInt(4) + 1, 35.1f, 3000L));
 			return true;
+    	case R.id.itemThreatHistory:
+    		startActivity(new Intent(this, ThreatHistoryActivity.class));
+    		return true;
+    	case R.id.itemExportThreats:
+    		startArchiveService(ThreatLogArchive.ArchiveService.ACTION_EXPORT);
+    		return true;
+    	case R.id.itemImportThreats:
+    		startArchiveService(ThreatLogArchive.ArchiveService.ACTION_IMPORT);
+    		return true;
+    	case R.id.itemBuildOfflineSpeedLimits:
+    		// reads speed_limits.osm from external storage
+    		getApplicationContext().startService(new Intent(getApplicationContext(), OfflineSpeedLimitsBuilder.BuildService.class));
+    		return true;
     	case R.id.itemAbout:
     		showAboutDialog();
     		return true;
@@ -240,6 +269,12 @@ public class MainRadarActivity extends FragmentActivity {
     	
     }
     
+    private void startArchiveService(String action) {
+    	Intent i = new Intent(getApplicationContext(), ThreatLogArchive.ArchiveService.class);
+    	i.setAction(action);
+    	getApplicationContext().startService(i);
+    }
+    
     private void showAboutDialog() {
     	final Dialog d = new Dialog(this);
     	d.setContentView(R.layout.about);
@@ -301,11 +336,21 @@ public class MainRadarActivity extends FragmentActivity {
     
     /**
      * Separate handler to refresh logview
-     * Frequent refreshes make UI unresponsive, so we'll update log only when a message arrives
+     * Frequent refreshes make UI unresponsive, so we'll update log only when a message arrives,
+     * and only add lines we haven't shown yet
      * @param event
      */
     public void onEventMainThread(UIRefreshLogEvent event) {
-    	log.setText(CollectorService.getLog());
+    	newLogLines.clear();
+    	long sequence = CollectorService.copyLogSince(shownLogSequence, newLogLines);
+    	if ( newLogLines.isEmpty() )
+    		return;
+    	shownLogSequence = sequence;
+    	shownLog.setCapacity(Preferences.getScreenLogScrollBackLimit());
+    	for ( int i = 0; i < newLogLines.size(); i++ ) {
+    		shownLog.add(newLogLines.get(i));
+    	}
+    	logAdapter.notifyDataSetChanged();
     }
     
     /**
@@ -342,6 +387,38 @@ public class MainRadarActivity extends FragmentActivity {
     	activity.setText(PhoneActivityDetector.getActivityStatus().getName());
     }
     
+    /**
+     * Log lines newest first, rows are recycled
+     */
+    private class LogAdapter extends BaseAdapter {
+    	
+		public int getCount() {
+			return shownLog.size();
+		}
+
+		public Object getItem(int position) {
+			return shownLog.getNewest(position);
+		}
+
+		public long getItemId(int position) {
+			// stable across prepends
+			return shownLogSequence - position;
+		}
+		
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		public View getView(int position, View convertView, ViewGroup parent) {
+			TextView line = (TextView) convertView;
+			if ( line == null )
+				line = (TextView) getLayoutInflater().inflate(R.layout.log_line, parent, false);
+			line.setText(shownLog.getNewest(position));
+			return line;
+		}
+    }
+    
     public static class UIRefreshEvent {
     }
     
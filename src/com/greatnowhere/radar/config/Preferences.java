@@ -162,6 +162,24 @@ public class Preferences {
 		return Integer.parseInt(num);
 	}
 	
+	/**
+	 * Max age of logged threats, 0 if unlimited
+	 * @return
+	 */
+	public static int getLogThreatMaxAgeDays() {
+		String num = prefs.getString(res.getString(R.string.prefKeyLogThreatsMaxAgeDays), "0");
+		return Integer.parseInt(num);
+	}
+	
+	/**
+	 * Max size of threat database, 0 if unlimited
+	 * @return
+	 */
+	public static int getLogThreatMaxSizeMb() {
+		String num = prefs.getString(res.getString(R.string.prefKeyLogThreatsMaxSizeMb), "0");
+		return Integer.parseInt(num);
+	}
+	
 	public static boolean isFakeAlertDetection() {
 		return prefs.getBoolean(res.getString(R.string.prefKeyFakeAlertDetection), true);
 	}
@@ -214,6 +232,15 @@ public class Preferences {
 		return prefs.getBoolean(res.getString(R.string.prefKeyLookupMaxSpeed), true);
 	}
 	
+	/**
+	 * Distance in meters after which speed limit is looked up again while still on the same road, 0 for never
+	 * @return
+	 */
+	public static int getLookupDistance() {
+		String v = prefs.getString(res.getString(R.string.prefKeyLookupDistance), Integer.toString(2000));
+		return Integer.parseInt(v);
+	}
+	
 	/*
 	public static String getWikiSpeediaUserName() {
 		return prefs.getString(res.getString(R.string.prefKeyWSTag), "ALL");
@@ -278,6 +305,7 @@ public class Preferences {
 			}
 			
 			if ( key.equalsIgnoreCase(res.getString(R.string.prefKeyLookupMaxSpeed)) ||
+					 key.equalsIgnoreCase(res.getString(R.string.prefKeyLookupDistance)) ||
 					 key.equalsIgnoreCase(res.getString(R.string.prefKeyLookupWhenCarMode)) ||
 					 key.equalsIgnoreCase(res.getString(R.string.prefKeyLookupWhenDriving)) ||
 					 key.equalsIgnoreCase(res.getString(R.string.prefKeyLookupWhenDeviceConnected))) {
@@ -286,7 +314,8 @@ public class Preferences {
 
 			}
 			
-			if ( key.equalsIgnoreCase(res.getString(R.string.prefKeyWarnOverSpeed)) ) {
+			if ( key.equalsIgnoreCase(res.getString(R.string.prefKeyWarnOverSpeed)) ||
+					key.equalsIgnoreCase(res.getString(R.string.prefKeyOverSpeedWarnLimit)) ) {
 				
 				eventBus.post(new PreferenceOverSpeedSettingsChangedEvent());
 				
@@ -0,0 +1,211 @@
+package com.greatnowhere.radar.location;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.greatnowhere.osmclient.OSMLocationListener.OSMWayChangedListener;
+import com.octo.android.robospice.persistence.exception.SpiceException;
+import com.octo.android.robospice.request.listener.RequestListener;
+import com.xapi.models.Response;
+import com.xapi.models.Way;
+
+/**
+ * OSM way lookups through {@link OSMWayCache}. Cached ways near a fix are map matched by {@link WayMatcher},
+ * a fix with no cached way goes to data source, and so does one with a cached way once lookup distance has been
+ * travelled since last lookup, refreshing them. While moving, points up to a minute ahead along bearing are
+ * looked up too, so their tiles are cached by the time we get there. Runs on main thread, where fixes and lookup
+ * results arrive
+ */
+class CachedOSMLookup implements LatestLocation.Subscriber {
+
+	private static final String TAG = CachedOSMLookup.class.getCanonicalName();
+
+	static final LatestLocation.Threshold THRESHOLD = new LatestLocation.Threshold(0f, 10f, 1000L, 10000L);
+	static final String CACHE_DIR = "osm_tiles";
+
+	private static final float PREFETCH_MIN_SPEED_MPS = 5f;
+	/**
+	 * Cells recently prefetched, not asked again even if nothing came back for them
+	 */
+	private static final int PREFETCH_MEMORY = 128;
+
+	private final WayDataSource source;
+	private final OSMWayCache cache;
+	private final OSMWayChangedListener listener;
+	private final WayMatcher matcher = new WayMatcher();
+	private final LookupScheduler scheduler = new LookupScheduler();
+	private final Map<Long, Boolean> prefetchedCells = new LinkedHashMap<Long, Boolean>(PREFETCH_MEMORY, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > PREFETCH_MEMORY;
+		}
+	};
+
+	private final double[] aheadLatitudes = new double[RouteAheadPrefetcher.MAX_POINTS];
+	private final double[] aheadLongitudes = new double[RouteAheadPrefetcher.MAX_POINTS];
+
+	private boolean isPrefetchInFlight = false;
+	/**
+	 * Way last reported to listener
+	 */
+	private Way notified;
+	private boolean isStopped = false;
+
+	private long networkLookups = 0;
+	private long prefetches = 0;
+
+	CachedOSMLookup(Context ctx, WayDataSource source, OSMWayChangedListener listener) {
+		this.listener = listener;
+		this.source = source;
+		cache = new OSMWayCache(new File(ctx.getCacheDir(), CACHE_DIR));
+	}
+
+	public void onLocationUpdate(LatestLocation location) {
+		Location l = RadarLocationManager.getCurrentLoc();
+		if ( isStopped || l == null )
+			return;
+		long now = SystemClock.elapsedRealtime();
+		LookupScheduler.Request r = ( match(l, false) ? scheduler.scheduleRefresh(l, now) 
+				: scheduler.schedule(l, matcher.getMatched(), now) );
+		if ( r != null ) {
+			networkLookups++;
+			Location at = new Location(l);
+			source.getWay(at, new WayRequestListener(at, r));
+		}
+		prefetch(l);
+	}
+
+	/**
+	 * Matches fix against cached ways, notifying listener if matched way changed
+	 * @param isFinal match even with no candidates, lookup for fix is done
+	 * @return false if no cached way was near
+	 */
+	private boolean match(Location l, boolean isFinal) {
+		matcher.begin();
+		if ( cache.addCandidates(l, matcher) == 0 && !isFinal )
+			return false;
+		boolean isChanged = matcher.update();
+		LocationInfoLookupManager.setMatchConfidence(matcher.getConfidence());
+		Way matched = matcher.getMatched();
+		// same way refreshed with a new speed limit or name is reported too
+		if ( isChanged || ( matched != null && notified != null && !OSMWayCache.hasSameCachedTags(matched, notified) ) ) {
+			notified = matched;
+			listener.onOSMWayChangedListener(matched);
+		}
+		return true;
+	}
+
+	/**
+	 * Looks up nearest point ahead with no cached way, one request at a time
+	 */
+	private void prefetch(Location l) {
+		if ( isPrefetchInFlight || !l.hasBearing() || l.getSpeed() < PREFETCH_MIN_SPEED_MPS )
+			return;
+		int count = RouteAheadPrefetcher.project(l.getLatitude(), l.getLongitude(), l.getSpeed(), l.getBearing(),
+				RouteAheadPrefetcher.HORIZON_SECONDS, aheadLatitudes, aheadLongitudes);
+		// first point is where we are
+		for ( int i = 1; i < count; i++ ) {
+			Long cell = GeoGrid.getCellId(aheadLatitudes[i], aheadLongitudes[i]);
+			if ( prefetchedCells.containsKey(cell) )
+				continue;
+			Location ahead = new Location(l);
+			ahead.setLatitude(aheadLatitudes[i]);
+			ahead.setLongitude(aheadLongitudes[i]);
+			if ( cache.isCovered(ahead) )
+				continue;
+			prefetchedCells.put(cell, Boolean.TRUE);
+			isPrefetchInFlight = true;
+			prefetches++;
+			source.getWay(ahead, new WayRequestListener(ahead, null));
+			return;
+		}
+	}
+
+	/**
+	 * @see LookupScheduler#setLookupDistance(float)
+	 */
+	void setLookupDistance(float meters) {
+		scheduler.setLookupDistance(meters);
+	}
+
+	void stop() {
+		isStopped = true;
+		source.stop();
+		cache.shutdown();
+		Log.i(TAG, "OSM way cache hits " + cache.getHits() + " misses " + cache.getMisses() + " network lookups " + networkLookups
+				+ " prefetches " + prefetches + " hits on prefetched tiles " + cache.getPrefetchedHits() + " tile reads "
+				+ cache.getDiskReads() + " tile files evicted " + cache.getEvictedFiles() + " way changes " + matcher.getChanges()
+				+ " suppressed " + matcher.getSuppressed() + " lookups issued " + scheduler.getIssued() + " avoided on way "
+				+ scheduler.getAvoidedOnWay() + " avoided in flight " + scheduler.getAvoidedInFlight() + " cancelled "
+				+ scheduler.getCancelled() + " refreshes " + scheduler.getRefreshes());
+	}
+
+	long getCacheHits() {
+		return cache.getHits();
+	}
+
+	long getCacheMisses() {
+		return cache.getMisses();
+	}
+
+	long getNetworkLookups() {
+		return networkLookups;
+	}
+
+	long getPrefetches() {
+		return prefetches;
+	}
+
+	long getPrefetchedHits() {
+		return cache.getPrefetchedHits();
+	}
+
+	private class WayRequestListener implements RequestListener<Response> {
+
+		private final Location at;
+		/**
+		 * Scheduled lookup, null for prefetch
+		 */
+		private final LookupScheduler.Request request;
+
+		WayRequestListener(Location at, LookupScheduler.Request request) {
+			this.at = at;
+			this.request = request;
+		}
+
+		public void onRequestFailure(SpiceException e) {
+			Log.w(TAG, "OSM lookup failed: " + e);
+			if ( done() && !isStopped )
+				match(at, true);
+		}
+
+		public void onRequestSuccess(Response r) {
+			boolean isCurrent = done();
+			if ( isStopped )
+				return;
+			// a cancelled lookup's ways are still good for later
+			cache.put(r, at, request == null);
+			if ( isCurrent )
+				match(at, true);
+		}
+
+		/**
+		 * @return true if result should be matched, false for prefetch and cancelled lookups
+		 */
+		private boolean done() {
+			if ( request == null ) {
+				isPrefetchInFlight = false;
+				return false;
+			}
+			return scheduler.complete(request);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.greatnowhere.radar.location;
+
+/**
+ * Fixed lat/long grid used to bucket locations. Cell ids sort by latitude row, then longitude column,
+ * and are part of persisted dataset formats, so {@link #CELL_DEGREES} must not change
+ */
+public class GeoGrid {
+
+	/**
+	 * Cell size in degrees, about 220m of latitude
+	 */
+	public static final double CELL_DEGREES = 0.002d;
+
+	private static final int COLUMNS = (int) Math.ceil(360d / CELL_DEGREES);
+	private static final int ROWS = (int) Math.ceil(180d / CELL_DEGREES);
+
+	public static int getRow(double latitude) {
+		return Math.max(0, Math.min(ROWS - 1, (int) Math.floor(( latitude + 90d ) / CELL_DEGREES)));
+	}
+
+	public static int getColumn(double longitude) {
+		return (int) Math.floor(( longitude + 180d ) / CELL_DEGREES) % COLUMNS;
+	}
+
+	public static long getCellId(double latitude, double longitude) {
+		return getCellId(getRow(latitude), getColumn(longitude));
+	}
+
+	/**
+	 * Builds cell id from row and column, wrapping column around the antimeridian
+	 * @return cell id, -1 if row is off the grid
+	 */
+	public static long getCellId(int row, int column) {
+		if ( row < 0 || row >= ROWS )
+			return -1;
+		column = ( ( column % COLUMNS ) + COLUMNS ) % COLUMNS;
+		return ( (long) row << 32 ) | column;
+	}
+}
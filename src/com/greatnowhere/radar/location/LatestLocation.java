@@ -0,0 +1,181 @@
+package com.greatnowhere.radar.location;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.location.Location;
+
+/**
+ * Latest GPS position in primitive fields, written by one thread and read by any without locks or allocation.
+ * A sequence counter, odd while a write is in progress, lets readers of several fields retry until they
+ * see a consistent set (seqlock). Subscribers are notified on the writer thread, only when their threshold
+ * is crossed and not more often than their min interval
+ */
+public class LatestLocation {
+
+	private volatile int sequence = 0;
+	private volatile double latitude;
+	private volatile double longitude;
+	private volatile float speed;
+	private volatile float bearing;
+	private volatile long time;
+	private volatile boolean hasSpeed;
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	/**
+	 * Only used by writer thread
+	 */
+	private final float[] distance = new float[1];
+
+	/**
+	 * Stores fix and notifies subscribers whose threshold it crosses. Single writer only
+	 * @param l
+	 */
+	void set(Location l) {
+		sequence++;
+		latitude = l.getLatitude();
+		longitude = l.getLongitude();
+		speed = l.getSpeed();
+		bearing = l.getBearing();
+		time = l.getTime();
+		hasSpeed = l.hasSpeed();
+		sequence++;
+		for ( int i = 0; i < subscriptions.size(); i++ ) {
+			subscriptions.get(i).check(this);
+		}
+	}
+
+	/**
+	 * Copies a consistent set of fields into given snapshot
+	 * @param out
+	 * @return false if no fix was stored yet
+	 */
+	public boolean read(Snapshot out) {
+		while ( true ) {
+			int s = sequence;
+			if ( ( s & 1 ) != 0 ) {
+				Thread.yield();
+				continue;
+			}
+			out.latitude = latitude;
+			out.longitude = longitude;
+			out.speed = speed;
+			out.bearing = bearing;
+			out.time = time;
+			out.hasSpeed = hasSpeed;
+			if ( s == sequence )
+				return s != 0;
+		}
+	}
+
+	public boolean isSet() {
+		return sequence != 0;
+	}
+
+	/**
+	 * Speed in m/s. Single field, needs no retry
+	 */
+	public float getSpeed() {
+		return speed;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Subscribes to position changes
+	 * @return subscription, to unsubscribe
+	 */
+	public Subscription subscribe(Subscriber s, Threshold t) {
+		Subscription sub = new Subscription(s, t);
+		subscriptions.add(sub);
+		return sub;
+	}
+
+	public void unsubscribe(Subscription sub) {
+		subscriptions.remove(sub);
+	}
+
+	/**
+	 * Reusable copy of position fields
+	 */
+	public static class Snapshot {
+		public double latitude;
+		public double longitude;
+		public float speed;
+		public float bearing;
+		public long time;
+		public boolean hasSpeed;
+	}
+
+	public interface Subscriber {
+		/**
+		 * Called on GPS writer thread, keep it short
+		 */
+		void onLocationUpdate(LatestLocation location);
+	}
+
+	/**
+	 * When to notify: speed changed by at least speed delta or position moved at least distance since last notification,
+	 * but not sooner than min interval after it. After max interval subscriber is notified regardless, if positive
+	 */
+	public static class Threshold {
+		public final float speedDeltaMps;
+		public final float distanceMeters;
+		public final long minIntervalMillis;
+		public final long maxIntervalMillis;
+
+		public Threshold(float speedDeltaMps, float distanceMeters, long minIntervalMillis, long maxIntervalMillis) {
+			this.speedDeltaMps = speedDeltaMps;
+			this.distanceMeters = distanceMeters;
+			this.minIntervalMillis = minIntervalMillis;
+			this.maxIntervalMillis = maxIntervalMillis;
+		}
+	}
+
+	public static class Subscription {
+		private final Subscriber subscriber;
+		private final Threshold threshold;
+		private boolean isNotified = false;
+		private long lastNotified;
+		private float lastSpeed;
+		private double lastLatitude;
+		private double lastLongitude;
+		private long notifications = 0;
+
+		private Subscription(Subscriber s, Threshold t) {
+			subscriber = s;
+			threshold = t;
+		}
+
+		private void check(LatestLocation l) {
+			long now = System.currentTimeMillis();
+			if ( isNotified ) {
+				long elapsed = now - lastNotified;
+				if ( elapsed < threshold.minIntervalMillis )
+					return;
+				boolean isDue = ( threshold.maxIntervalMillis > 0 && elapsed >= threshold.maxIntervalMillis );
+				if ( !isDue && threshold.speedDeltaMps > 0 && Math.abs(l.speed - lastSpeed) >= threshold.speedDeltaMps )
+					isDue = true;
+				if ( !isDue && threshold.distanceMeters > 0 ) {
+					Location.distanceBetween(lastLatitude, lastLongitude, l.latitude, l.longitude, l.distance);
+					isDue = l.distance[0] >= threshold.distanceMeters;
+				}
+				if ( !isDue )
+					return;
+			}
+			isNotified = true;
+			lastNotified = now;
+			lastSpeed = l.speed;
+			lastLatitude = l.latitude;
+			lastLongitude = l.longitude;
+			notifications++;
+			subscriber.onLocationUpdate(l);
+		}
+
+		public long getNotifications() {
+			return notifications;
+		}
+	}
+}
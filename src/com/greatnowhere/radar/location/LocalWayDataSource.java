@@ -0,0 +1,58 @@
+package com.greatnowhere.radar.location;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.location.Location;
+
+import com.greatnowhere.osmclient.GISUtils;
+import com.octo.android.robospice.request.listener.RequestListener;
+import com.xapi.models.Node;
+import com.xapi.models.NodeRef;
+import com.xapi.models.Response;
+import com.xapi.models.Way;
+
+/**
+ * Ways held in memory, answered synchronously. A lookup returns ways the location is on, as the OSM service
+ * returns ways in a small box around it. Stands in for the service in tests
+ */
+public class LocalWayDataSource implements WayDataSource {
+
+	private final List<Way> ways = new ArrayList<Way>();
+	private int lookups = 0;
+
+	/**
+	 * @param source ways with node refs resolved, as after {@link Response#build()}
+	 */
+	public LocalWayDataSource(Response source) {
+		if ( source != null && source.ways != null )
+			ways.addAll(source.ways);
+	}
+
+	public synchronized void getWay(Location l, RequestListener<Response> listener) {
+		lookups++;
+		Response r = new Response();
+		r.ways = new ArrayList<Way>();
+		r.nodes = new ArrayList<Node>();
+		for ( Way w : ways ) {
+			if ( !GISUtils.isOnTheWay(l, w) )
+				continue;
+			r.ways.add(w);
+			// like service responses, nodes come alongside ways
+			for ( NodeRef n : w.nodes ) {
+				r.nodes.add(n.node);
+			}
+		}
+		listener.onRequestSuccess(r);
+	}
+
+	public void stop() {
+	}
+
+	/**
+	 * Number of lookups made, to check how many a cache saved
+	 */
+	public synchronized int getLookups() {
+		return lookups;
+	}
+}
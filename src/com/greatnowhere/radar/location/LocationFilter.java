@@ -0,0 +1,276 @@
+package com.greatnowhere.radar.location;
+
+import android.location.Location;
+
+/**
+ * Constant velocity Kalman filter over GPS fixes. North and east are filtered apart, each as position and velocity
+ * in meters around an origin near recent fixes. Fixes update position by their accuracy, and velocity by speed and
+ * bearing when they have both. Between fixes, and through dropouts, state is extrapolated at constant velocity while
+ * its uncertainty grows with time; once it grows past bounds the estimate is reported unknown.
+ * Methods are synchronized, fixes come in on main thread and estimates are read from any
+ */
+class LocationFilter {
+
+	/**
+	 * Acceleration noise, (m/s^2)^2 per second
+	 */
+	static final double ACCELERATION_NOISE = 1d;
+	/**
+	 * Speed error used when fix has speed and bearing, m/s
+	 */
+	static final double SPEED_ERROR_MPS = 1d;
+	/**
+	 * Position error used when fix has no accuracy, m
+	 */
+	static final double DEFAULT_ACCURACY_M = 20d;
+	/**
+	 * Estimates are unknown past these, and past max extrapolation time since last fix
+	 */
+	static final double MAX_POSITION_SIGMA_M = 150d;
+	static final double MAX_SPEED_SIGMA_MPS = 4d;
+	static final long MAX_EXTRAPOLATION_MILLIS = 30000L;
+	/**
+	 * Fix further than this from estimate restarts the filter
+	 */
+	static final double MAX_INNOVATION_M = 500d;
+	/**
+	 * Origin is moved when position gets this far from it, keeping flat earth error small
+	 */
+	private static final double MAX_ORIGIN_DISTANCE_M = 10000d;
+	private static final double METERS_PER_DEGREE = 111320d;
+
+	private boolean isInitialized = false;
+	private double originLatitude;
+	private double originLongitude;
+	private double metersPerLngDegree;
+	private long lastFix;
+
+	private final Axis north = new Axis();
+	private final Axis east = new Axis();
+
+	private long fixes = 0;
+	private long resets = 0;
+
+	/**
+	 * Fuses a fix
+	 * @param l fix
+	 * @param now time fix was received, {@link android.os.SystemClock#elapsedRealtime()}
+	 */
+	synchronized void update(Location l, long now) {
+		fixes++;
+		double accuracy = ( l.hasAccuracy() && l.getAccuracy() > 0 ? l.getAccuracy() : DEFAULT_ACCURACY_M );
+		if ( isInitialized && now - lastFix > MAX_EXTRAPOLATION_MILLIS )
+			isInitialized = false;
+		if ( isInitialized ) {
+			double dt = ( now - lastFix ) / 1000d;
+			north.predict(dt);
+			east.predict(dt);
+			double y = toNorth(l.getLatitude());
+			double x = toEast(l.getLongitude());
+			if ( Math.hypot(y - north.position, x - east.position) > MAX_INNOVATION_M ) {
+				isInitialized = false;
+			} else {
+				north.updatePosition(y, accuracy * accuracy);
+				east.updatePosition(x, accuracy * accuracy);
+			}
+		}
+		if ( !isInitialized ) {
+			if ( fixes > 1 )
+				resets++;
+			setOrigin(l.getLatitude(), l.getLongitude());
+			// unknown velocity, zero with a wide spread
+			north.reset(0d, accuracy * accuracy, 0d, 100d);
+			east.reset(0d, accuracy * accuracy, 0d, 100d);
+			isInitialized = true;
+		}
+		if ( l.hasSpeed() && l.hasBearing() ) {
+			double b = Math.toRadians(l.getBearing());
+			double r = SPEED_ERROR_MPS * SPEED_ERROR_MPS;
+			north.updateVelocity(l.getSpeed() * Math.cos(b), r);
+			east.updateVelocity(l.getSpeed() * Math.sin(b), r);
+		} else if ( l.hasSpeed() && l.getSpeed() < SPEED_ERROR_MPS ) {
+			// stopped, bearing is meaningless
+			double r = SPEED_ERROR_MPS * SPEED_ERROR_MPS;
+			north.updateVelocity(0d, r);
+			east.updateVelocity(0d, r);
+		}
+		lastFix = now;
+		if ( Math.hypot(north.position, east.position) > MAX_ORIGIN_DISTANCE_M ) {
+			double lat = originLatitude + north.position / METERS_PER_DEGREE;
+			double lng = originLongitude + east.position / metersPerLngDegree;
+			north.position = 0d;
+			east.position = 0d;
+			setOrigin(lat, lng);
+		}
+	}
+
+	private void setOrigin(double latitude, double longitude) {
+		originLatitude = latitude;
+		originLongitude = longitude;
+		metersPerLngDegree = METERS_PER_DEGREE * Math.max(0.01d, Math.cos(Math.toRadians(latitude)));
+	}
+
+	private double toNorth(double latitude) {
+		return ( latitude - originLatitude ) * METERS_PER_DEGREE;
+	}
+
+	private double toEast(double longitude) {
+		double d = longitude - originLongitude;
+		if ( d > 180d )
+			d -= 360d;
+		else if ( d < -180d )
+			d += 360d;
+		return d * metersPerLngDegree;
+	}
+
+	/**
+	 * Extrapolates state to given time, without changing it
+	 * @param now {@link android.os.SystemClock#elapsedRealtime()}
+	 * @param out filled in
+	 * @return false if there's no estimate within bounds, out then has {@link Estimate#isValid} false
+	 */
+	synchronized boolean estimate(long now, Estimate out) {
+		out.isValid = false;
+		if ( !isInitialized || now - lastFix > MAX_EXTRAPOLATION_MILLIS )
+			return false;
+		double dt = Math.max(0d, ( now - lastFix ) / 1000d);
+		double vn = north.velocity;
+		double ve = east.velocity;
+		out.latitude = originLatitude + ( north.position + vn * dt ) / METERS_PER_DEGREE;
+		out.longitude = originLongitude + ( east.position + ve * dt ) / metersPerLngDegree;
+		out.speed = (float) Math.hypot(vn, ve);
+		out.bearing = (float) ( ( Math.toDegrees(Math.atan2(ve, vn)) + 360d ) % 360d );
+		out.positionSigma = (float) Math.sqrt(north.predictedPositionVariance(dt) + east.predictedPositionVariance(dt));
+		out.speedSigma = (float) Math.sqrt(north.predictedVelocityVariance(dt) + east.predictedVelocityVariance(dt));
+		out.age = now - lastFix;
+		out.isValid = ( out.positionSigma <= MAX_POSITION_SIGMA_M && out.speedSigma <= MAX_SPEED_SIGMA_MPS );
+		return out.isValid;
+	}
+
+	/**
+	 * Time estimates stay within bounds until, if no other fix comes. Uncertainties only grow after their
+	 * lowest point, so the bound is crossed once and is found by bisection
+	 * @return {@link android.os.SystemClock#elapsedRealtime()} time, 0 if there's no estimate
+	 */
+	synchronized long getValidUntil() {
+		if ( !isInitialized || !isWithinBounds(0d) )
+			return 0L;
+		long lo = 0L, hi = MAX_EXTRAPOLATION_MILLIS;
+		if ( isWithinBounds(hi / 1000d) )
+			return lastFix + hi;
+		while ( hi - lo > 1L ) {
+			long mid = ( lo + hi ) >>> 1;
+			if ( isWithinBounds(mid / 1000d) )
+				lo = mid;
+			else
+				hi = mid;
+		}
+		return lastFix + lo;
+	}
+
+	private boolean isWithinBounds(double dt) {
+		return ( north.predictedPositionVariance(dt) + east.predictedPositionVariance(dt)
+				<= MAX_POSITION_SIGMA_M * MAX_POSITION_SIGMA_M )
+				&& ( north.predictedVelocityVariance(dt) + east.predictedVelocityVariance(dt)
+				<= MAX_SPEED_SIGMA_MPS * MAX_SPEED_SIGMA_MPS );
+	}
+
+	synchronized void reset() {
+		isInitialized = false;
+	}
+
+	synchronized long getFixes() {
+		return fixes;
+	}
+
+	/**
+	 * Times a fix was too far off, or came too late, to fuse
+	 */
+	synchronized long getResets() {
+		return resets;
+	}
+
+	/**
+	 * Filtered position and velocity
+	 */
+	static class Estimate {
+		boolean isValid;
+		double latitude;
+		double longitude;
+		/**
+		 * m/s
+		 */
+		float speed;
+		float bearing;
+		/**
+		 * Standard deviations of position, meters, and of speed, m/s
+		 */
+		float positionSigma;
+		float speedSigma;
+		/**
+		 * Millis since last fix
+		 */
+		long age;
+	}
+
+	/**
+	 * One axis: position and velocity, and their covariance
+	 */
+	private static class Axis {
+		double position;
+		double velocity;
+		double pp;
+		double pv;
+		double vv;
+
+		void reset(double p, double pVariance, double v, double vVariance) {
+			position = p;
+			velocity = v;
+			pp = pVariance;
+			pv = 0d;
+			vv = vVariance;
+		}
+
+		void predict(double dt) {
+			position += velocity * dt;
+			double q = ACCELERATION_NOISE;
+			double pp1 = pp + 2d * dt * pv + dt * dt * vv + q * dt * dt * dt / 3d;
+			double pv1 = pv + dt * vv + q * dt * dt / 2d;
+			vv += q * dt;
+			pp = pp1;
+			pv = pv1;
+		}
+
+		double predictedPositionVariance(double dt) {
+			return pp + 2d * dt * pv + dt * dt * vv + ACCELERATION_NOISE * dt * dt * dt / 3d;
+		}
+
+		double predictedVelocityVariance(double dt) {
+			return vv + ACCELERATION_NOISE * dt;
+		}
+
+		void updatePosition(double z, double r) {
+			double s = pp + r;
+			double kp = pp / s;
+			double kv = pv / s;
+			double y = z - position;
+			position += kp * y;
+			velocity += kv * y;
+			vv -= kv * pv;
+			pv *= ( 1d - kp );
+			pp *= ( 1d - kp );
+		}
+
+		void updateVelocity(double z, double r) {
+			double s = vv + r;
+			double kp = pv / s;
+			double kv = vv / s;
+			double y = z - velocity;
+			position += kp * y;
+			velocity += kv * y;
+			pp -= kp * pv;
+			pv *= ( 1d - kv );
+			vv *= ( 1d - kv );
+		}
+	}
+}
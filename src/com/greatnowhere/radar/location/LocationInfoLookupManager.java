@@ -1,5 +1,7 @@
 package com.greatnowhere.radar.location;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 //import org.wikispeedia.models.Marker;
@@ -9,12 +11,12 @@ import android.util.Log;
 
 import com.cobra.iradar.CobraRadarEvents;
 import com.cobra.iradar.RadarManager;
-import com.greatnowhere.osmclient.OSMLocationListener;
 import com.greatnowhere.osmclient.OSMLocationListener.OSMWayChangedListener;
 import com.greatnowhere.radar.config.Preferences;
 import com.greatnowhere.radar.messaging.RadarMessageNotification;
 //import com.greatnowhere.wikispeedia.client.WikiSpeedChangeListener;
 //import com.greatnowhere.wikispeedia.client.WikiSpeedChangeListener.WikiSpeedChangedListener;
+import com.xapi.models.NodeRef;
 import com.xapi.models.Way;
 
 import de.greenrobot.event.EventBus;
@@ -23,7 +25,8 @@ public class LocationInfoLookupManager {
 
 	private static final String TAG = LocationInfoLookupManager.class.getCanonicalName();
 	
-	private static OSMLocationListener osmListener;
+	private static CachedOSMLookup osmLookup;
+	private static LatestLocation.Subscription osmSubscription;
 	//private static WikiSpeedChangeListener wsListener;
 	private static EventBus eventBus;
 	private static Way currentWay;
@@ -34,6 +37,19 @@ public class LocationInfoLookupManager {
 	public static final String SOURCE_WS = "WikiSpeedia";
 	public static final String SOURCE_OSM = "OpenStreetMaps";
 	
+	/**
+	 * Offline lookups: segments further than this from current position don't match
+	 */
+	private static final float OFFLINE_MATCH_DISTANCE_M = 30f;
+	private static final LatestLocation.Threshold OFFLINE_LOOKUP_THRESHOLD = new LatestLocation.Threshold(0f, 10f, 500L, 5000L);
+	private static LatestLocation.Subscription offlineSubscription;
+	private static final OSMListener offlineListener = new OSMListener();
+	private static volatile double matchConfidence = 0d;
+	/**
+	 * Replaces OSM service, if set
+	 */
+	private static WayDataSource wayDataSource;
+	
 	public static void init(Context ctx) {
 		LocationInfoLookupManager.ctx = ctx;
 		instance = new LocationInfoLookupManager();
@@ -48,6 +64,7 @@ public class LocationInfoLookupManager {
 	 */
 	public static boolean isShouldActivate() {
 		return ( Preferences.isLookupSpeedLimit() && RadarManager.isRadarConnected()
+				&& SensingPowerManager.getState().isSensingAllowed()
 //				( Preferences.isLookupSpeedLimitOnlyInCarMode() ? PhoneActivityDetector.getIsCarMode() : true ) &&
 //				( Preferences.isLookupSpeedLimitOnlyWhenDriving() ? PhoneActivityDetector.isActivityDriving() : true ) &&
 //				( Preferences.isLookupSpeedLimitOnlyWhenRadarConnected() ? RadarManager.isRadarConnected() : true ) 
@@ -67,11 +84,19 @@ public class LocationInfoLookupManager {
 	}
 	
 	private static void start() {
+		OfflineSpeedLimits.init(ctx);
+		if ( OfflineSpeedLimits.isLoaded() ) {
+			// no network lookups at all while offline data is there
+			Log.i(TAG, "Starting offline lookups");
+			offlineSubscription = RadarLocationManager.getLatest().subscribe(new OfflineLookup(), OFFLINE_LOOKUP_THRESHOLD);
+			isRunning.set(true);
+			return;
+		}
 		Log.i(TAG, "Starting OSM and WS clients");
 		try {
-			osmListener = new OSMLocationListener(ctx);
-			osmListener.setMaxRequests(1);
-			osmListener.setOSMWayListener(new OSMListener());
+			osmLookup = new CachedOSMLookup(ctx, ( wayDataSource != null ? wayDataSource : new OSMWayDataSource(ctx) ), new OSMListener());
+			osmLookup.setLookupDistance(Preferences.getLookupDistance());
+			osmSubscription = RadarLocationManager.getLatest().subscribe(osmLookup, CachedOSMLookup.THRESHOLD);
 		} catch (Exception ex) {
 			Log.w(TAG, ex);
 		}
@@ -86,9 +111,16 @@ public class LocationInfoLookupManager {
 	
 	public static void stop() {
 		Log.i(TAG,"Stopping OSM and WS clients");
-		if ( osmListener != null )
-			osmListener.stop();
-		osmListener = null;
+		if ( osmSubscription != null )
+			RadarLocationManager.getLatest().unsubscribe(osmSubscription);
+		osmSubscription = null;
+		if ( osmLookup != null )
+			osmLookup.stop();
+		osmLookup = null;
+		if ( offlineSubscription != null )
+			RadarLocationManager.getLatest().unsubscribe(offlineSubscription);
+		offlineSubscription = null;
+		matchConfidence = 0d;
 		//if ( wsListener != null )
 			//wsListener.stop();
 		//wsListener = null;
@@ -102,6 +134,34 @@ public class LocationInfoLookupManager {
 			eventBus.unregister(instance);
 	}
 
+	/**
+	 * Sets where network lookups get ways from instead of OSM service, as in tests. Takes effect on next start
+	 * @param source null for OSM service
+	 */
+	public static void setWayDataSource(WayDataSource source) {
+		wayDataSource = source;
+	}
+	
+	/**
+	 * TRUE while lookups are running, over speed warnings then need current speed at a steady rate
+	 * @return
+	 */
+	public static boolean isNeedsFreshLocation() {
+		return isRunning.get();
+	}
+	
+	/**
+	 * Map matcher's probability that current way is the one we're on, 0 to 1
+	 * @return
+	 */
+	public static double getMatchConfidence() {
+		return matchConfidence;
+	}
+	
+	static void setMatchConfidence(double c) {
+		matchConfidence = c;
+	}
+	
 	public static String getCurrentWayName() {
 		if ( currentWay != null )
 			return currentWay.getRoadName();
@@ -123,7 +183,7 @@ public class LocationInfoLookupManager {
 			if ( currentWay != null ) {
 				setSpeedLimit(currentWay.getMaxSpeed(), SOURCE_OSM);
 			}
-			eventBus.post(new EventOSMWayChange(way));
+			eventBus.post(new EventOSMWayChange(way, matchConfidence));
 			if ( way == null ) {
 				eventBus.post(new RadarMessageNotification("OSM missing data"));
 			} else {
@@ -132,6 +192,55 @@ public class LocationInfoLookupManager {
 		}
 	}
 	
+	/**
+	 * Looks up road segments near position in offline database and map matches them, reporting way changes like network
+	 * lookups do. Runs on GPS thread, a lookup is well under a millisecond
+	 */
+	private static class OfflineLookup implements LatestLocation.Subscriber {
+		
+		private final LatestLocation.Snapshot position = new LatestLocation.Snapshot();
+		private final OfflineSpeedLimits.Match[] matches = new OfflineSpeedLimits.Match[WayMatcher.MAX_CANDIDATES];
+		private final WayMatcher matcher = new WayMatcher();
+		
+		private OfflineLookup() {
+			for ( int i = 0; i < matches.length; i++ ) {
+				matches[i] = new OfflineSpeedLimits.Match();
+			}
+		}
+		
+		public void onLocationUpdate(LatestLocation location) {
+			if ( !location.read(position) )
+				return;
+			int found = OfflineSpeedLimits.findCandidates(position.latitude, position.longitude, OFFLINE_MATCH_DISTANCE_M, matches);
+			boolean hasHeading = ( position.hasSpeed && position.speed >= WayMatcher.HEADING_MIN_SPEED_MPS );
+			Way matched = matcher.getMatched();
+			matcher.begin();
+			for ( int i = 0; i < found; i++ ) {
+				OfflineSpeedLimits.Match m = matches[i];
+				// only build way objects for ways not already matched
+				Way w = ( matched != null && matched.id == m.wayId ? matched : toWay(m) );
+				matcher.addCandidate(w, m.wayId, m.distanceMeters, m.bearing, position.bearing, hasHeading);
+			}
+			boolean isChanged = matcher.update();
+			setMatchConfidence(matcher.getConfidence());
+			if ( isChanged )
+				offlineListener.onOSMWayChangedListener(matcher.getMatched());
+		}
+		
+		private static Way toWay(OfflineSpeedLimits.Match m) {
+			Way w = new Way();
+			w.id = m.wayId;
+			w.nodes = new ArrayList<NodeRef>();
+			w.tags = new HashMap<String, String>();
+			String name = OfflineSpeedLimits.getName(m);
+			if ( name != null )
+				w.tags.put(Way.TAG_ROAD_NAME, name);
+			if ( m.maxSpeed > 0 )
+				w.tags.put(Way.TAG_MAXSPEED, Long.toString(Math.round(m.maxSpeed / Way.KPH_TO_MS)));
+			return w;
+		}
+	}
+	
 	/*
 	protected static class WSListener implements WikiSpeedChangedListener {
 		public void onWikiSpeedChangedListener(Marker m) {
@@ -145,9 +254,14 @@ public class LocationInfoLookupManager {
 	
 	public static class EventOSMWayChange {
 		public Way way;
+		/**
+		 * Map match confidence, 0 to 1
+		 */
+		public double confidence;
 		
-		private EventOSMWayChange(Way w) {
+		private EventOSMWayChange(Way w, double c) {
 			way = w;
+			confidence = c;
 		}
 	}
 	
@@ -184,16 +298,14 @@ public class LocationInfoLookupManager {
 	 * Event handlers to start/stop lookup
 	 * @param event
 	 */
-	public void onEventMainThread(PhoneActivityDetector.EventActivityChanged event) {
-		activate();
-	}
-
-	public void onEventMainThread(PhoneActivityDetector.EventCarModeChange event) {
+	public void onEventMainThread(SensingPowerManager.EventSensingStateChanged event) {
 		activate();
 	}
 	
 	public void onEventMainThread(Preferences.PreferenceLocationLookupSettingsChangedEvent event) {
 		activate();
+		if ( osmLookup != null )
+			osmLookup.setLookupDistance(Preferences.getLookupDistance());
 	}
 	
 	public void onEventMainThread(CobraRadarEvents.EventDeviceConnected event) {
@@ -203,4 +315,12 @@ public class LocationInfoLookupManager {
 	public void onEventMainThread(CobraRadarEvents.EventDeviceDisconnected event) {
 		activate();
 	}
+	
+	public void onEventMainThread(OfflineSpeedLimitsBuilder.EventOfflineSpeedLimitsChanged event) {
+		// switch between offline and network lookups
+		if ( isRunning.get() ) {
+			stop();
+		}
+		activate();
+	}
 }
@@ -0,0 +1,85 @@
+package com.greatnowhere.radar.location;
+
+import com.greatnowhere.radar.location.PhoneActivityDetector.ActivityStatus;
+
+/**
+ * GPS update interval and min distance for current conditions. While a threat is active fixes come as fast
+ * as before, for threat location tracks; otherwise the rate is only what speed limit lookups and speed display need,
+ * and drops further when stopped or not driving
+ */
+public enum LocationSamplingPolicy {
+
+	/**
+	 * Threat active, every fix goes into threat track
+	 */
+	THREAT("Threat", 100L, 1f),
+	/**
+	 * Speed limit lookups need current speed for over speed warnings
+	 */
+	LOOKUP("Lookup", 1000L, 5f),
+	/**
+	 * Moving, only speed display and radar connection need location
+	 */
+	CRUISE("Cruise", 1000L, 10f),
+	/**
+	 * Stopped, or activity detector says we're not in a vehicle
+	 */
+	IDLE("Idle", 5000L, 10f);
+
+	/**
+	 * Speed below which we're considered stopped, and speed above which we're moving again, m/s.
+	 * Apart so GPS speed noise at a standstill doesn't flip policies
+	 */
+	static final float STOPPED_SPEED_MPS = 0.8f;
+	static final float MOVING_SPEED_MPS = 2f;
+
+	private final String name;
+	private final long intervalMillis;
+	private final float minDistanceMeters;
+
+	private LocationSamplingPolicy(String name, long intervalMillis, float minDistanceMeters) {
+		this.name = name;
+		this.intervalMillis = intervalMillis;
+		this.minDistanceMeters = minDistanceMeters;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public float getMinDistanceMeters() {
+		return minDistanceMeters;
+	}
+
+	/**
+	 * Picks policy for given inputs
+	 * @param current policy in effect, null if none, used for speed hysteresis
+	 * @param speedMps last known speed, m/s, negative if unknown
+	 * @param isThreatActive any threat being tracked
+	 * @param isLookupActive location info lookup needs fresh position
+	 * @param activity
+	 * @return
+	 */
+	public static LocationSamplingPolicy choose(LocationSamplingPolicy current, float speedMps, boolean isThreatActive,
+			boolean isLookupActive, ActivityStatus activity) {
+		if ( isThreatActive )
+			return THREAT;
+		boolean isStopped;
+		if ( speedMps < 0 ) {
+			isStopped = false;
+		} else if ( current == IDLE ) {
+			isStopped = speedMps < MOVING_SPEED_MPS;
+		} else {
+			isStopped = speedMps < STOPPED_SPEED_MPS;
+		}
+		boolean isNotDriving = ( activity == ActivityStatus.STILL || activity == ActivityStatus.FOOT );
+		// trust GPS speed over activity detector, which lags
+		if ( isStopped || ( isNotDriving && ( speedMps < 0 || speedMps < MOVING_SPEED_MPS ) ) )
+			return IDLE;
+		return ( isLookupActive ? LOOKUP : CRUISE );
+	}
+}
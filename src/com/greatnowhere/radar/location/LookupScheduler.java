@@ -0,0 +1,176 @@
+package com.greatnowhere.radar.location;
+
+import android.location.Location;
+
+import com.xapi.models.Way;
+
+/**
+ * Decides when a fix needs a way lookup from data source. None is needed while fix stays within buffer of current
+ * way's geometry, until lookup distance has been travelled since last lookup. While a lookup is in flight no other
+ * is issued, unless we've moved well away from where it was issued or it's taking too long; it's then cancelled,
+ * so its result is ignored, and a new one is issued. Fixes answered from cache are refreshed by a lookup once lookup
+ * distance has been travelled. Not thread safe, use on main thread
+ */
+class LookupScheduler {
+
+	/**
+	 * Fix this close to current way's segments is still on it, meters. Wider than GPS error
+	 */
+	static final float WAY_BUFFER_M = 25f;
+	/**
+	 * Lookup in flight this far behind, or this old, is cancelled
+	 */
+	static final float STALE_DISTANCE_M = 150f;
+	static final long STALE_MILLIS = 15000L;
+	static final float DEFAULT_LOOKUP_DISTANCE_M = 2000f;
+
+	private float lookupDistance = DEFAULT_LOOKUP_DISTANCE_M;
+	private boolean hasLastLookup = false;
+	private double lastLatitude;
+	private double lastLongitude;
+	private Request inFlight;
+	private final float[] distance = new float[1];
+
+	private long issued = 0;
+	private long avoidedOnWay = 0;
+	private long avoidedInFlight = 0;
+	private long cancelled = 0;
+	private long refreshes = 0;
+
+	/**
+	 * Distance after which a lookup is made even if still on current way, as way's data may have changed
+	 * @param meters 0 to never look up while on current way
+	 */
+	void setLookupDistance(float meters) {
+		lookupDistance = meters;
+	}
+
+	/**
+	 * Decides whether fix needs a lookup
+	 * @param l fix
+	 * @param current way we're matched to, null if none
+	 * @param now {@link android.os.SystemClock#elapsedRealtime()}
+	 * @return request to issue, null if no lookup is needed
+	 */
+	Request schedule(Location l, Way current, long now) {
+		double lat = l.getLatitude();
+		double lng = l.getLongitude();
+		if ( current != null && hasLastLookup ) {
+			double d = WayMatcher.nearestSegment(current, lat, lng, null);
+			if ( d >= 0 && d <= WAY_BUFFER_M && ( lookupDistance <= 0 || distanceTo(lastLatitude, lastLongitude, lat, lng) < lookupDistance ) ) {
+				avoidedOnWay++;
+				return null;
+			}
+		}
+		return issue(lat, lng, now);
+	}
+
+	/**
+	 * Decides whether a fix matched from cache needs a lookup to refresh cached ways, as lookup distance has been
+	 * travelled since last lookup. First such fix only starts measuring distance
+	 * @param l fix
+	 * @param now {@link android.os.SystemClock#elapsedRealtime()}
+	 * @return request to issue, null if no lookup is needed
+	 */
+	Request scheduleRefresh(Location l, long now) {
+		double lat = l.getLatitude();
+		double lng = l.getLongitude();
+		if ( lookupDistance <= 0 )
+			return null;
+		if ( !hasLastLookup ) {
+			hasLastLookup = true;
+			lastLatitude = lat;
+			lastLongitude = lng;
+			return null;
+		}
+		if ( distanceTo(lastLatitude, lastLongitude, lat, lng) < lookupDistance )
+			return null;
+		Request r = issue(lat, lng, now);
+		if ( r != null )
+			refreshes++;
+		return r;
+	}
+
+	/**
+	 * Issues lookup unless one in flight is still good
+	 */
+	private Request issue(double lat, double lng, long now) {
+		if ( inFlight != null ) {
+			float d = distanceTo(inFlight.latitude, inFlight.longitude, lat, lng);
+			if ( d > STALE_DISTANCE_M || now - inFlight.issued > STALE_MILLIS ) {
+				inFlight.isCancelled = true;
+				cancelled++;
+				inFlight = null;
+			} else {
+				avoidedInFlight++;
+				return null;
+			}
+		}
+		inFlight = new Request(lat, lng, now);
+		hasLastLookup = true;
+		lastLatitude = lat;
+		lastLongitude = lng;
+		issued++;
+		return inFlight;
+	}
+
+	/**
+	 * Marks request done
+	 * @return false if it was cancelled, its result should not be reported
+	 */
+	boolean complete(Request r) {
+		if ( r == inFlight )
+			inFlight = null;
+		return !r.isCancelled;
+	}
+
+	private float distanceTo(double lat1, double lng1, double lat2, double lng2) {
+		Location.distanceBetween(lat1, lng1, lat2, lng2, distance);
+		return distance[0];
+	}
+
+	long getIssued() {
+		return issued;
+	}
+
+	/**
+	 * Fixes needing no lookup as they were still on current way
+	 */
+	long getAvoidedOnWay() {
+		return avoidedOnWay;
+	}
+
+	/**
+	 * Fixes answered by a lookup already in flight
+	 */
+	long getAvoidedInFlight() {
+		return avoidedInFlight;
+	}
+
+	long getCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Lookups issued to refresh cached ways
+	 */
+	long getRefreshes() {
+		return refreshes;
+	}
+
+	/**
+	 * A lookup issued for a position
+	 */
+	static class Request {
+		final double latitude;
+		final double longitude;
+		final long issued;
+		boolean isCancelled = false;
+
+		private Request(double latitude, double longitude, long issued) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.issued = issued;
+		}
+	}
+}
@@ -0,0 +1,477 @@
+package com.greatnowhere.radar.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.greatnowhere.osmclient.GISUtils;
+import com.xapi.models.Node;
+import com.xapi.models.NodeRef;
+import com.xapi.models.Response;
+import com.xapi.models.Way;
+
+/**
+ * Caches OSM ways returned by lookups, per {@link GeoGrid} cell tile. A way is put in every tile its segments
+ * touch. Tiles live in an in-memory LRU in front of one file per tile in the cache dir; tiles older than
+ * {@link #TTL_MS} are dropped, and oldest files are deleted once the dir exceeds {@link #MAX_DISK_BYTES}.
+ * Tile files are read and written on a background thread; a tile not in memory yet is a miss until it's read,
+ * and ways put in it meanwhile are merged with what was on disk. Not thread safe apart from that, use from one thread
+ */
+class OSMWayCache {
+
+	private static final String TAG = OSMWayCache.class.getCanonicalName();
+
+	static final int MAX_MEMORY_TILES = 128;
+	static final long TTL_MS = 7L * 24L * 3600L * 1000L;
+	static final long MAX_DISK_BYTES = 8L * 1024L * 1024L;
+	/**
+	 * A way spanning more tiles than this is cached only in tiles around the lookup point
+	 */
+	static final int MAX_TILES_PER_WAY = 64;
+
+	private static final int MAGIC = 0x4F535754; // OSWT
+	private static final int VERSION = 1;
+	private static final String[] CACHED_TAGS = { Way.TAG_HIGHWAY_TYPE, Way.TAG_ROAD_NAME, Way.TAG_ROAD_REF, Way.TAG_MAXSPEED };
+
+	private final File dir;
+	/**
+	 * Reads and writes tile files in order, so a read queued before a write sees the old file
+	 */
+	private final ExecutorService disk = Executors.newSingleThreadExecutor();
+	/**
+	 * Tiles read by disk thread, taken into memory LRU on next use
+	 */
+	private final Map<Long, Tile> loadedTiles = new ConcurrentHashMap<Long, Tile>();
+	private final Set<Long> loading = new HashSet<Long>();
+	private final Map<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(MAX_MEMORY_TILES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+			return size() > MAX_MEMORY_TILES;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong prefetchedHits = new AtomicLong();
+	private final AtomicLong diskReads = new AtomicLong();
+	private final AtomicLong evictedFiles = new AtomicLong();
+
+	OSMWayCache(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	/**
+	 * Adds cached ways location is on to matcher's candidates
+	 * @return number of ways added, 0 on a miss
+	 */
+	int addCandidates(Location l, WayMatcher matcher) {
+		Tile t = getTile(GeoGrid.getCellId(l.getLatitude(), l.getLongitude()));
+		if ( t == null ) {
+			misses.incrementAndGet();
+			return 0;
+		}
+		int added = 0;
+		for ( int i = 0; i < t.ways.size(); i++ ) {
+			Way w = t.ways.get(i);
+			if ( GISUtils.isOnTheWay(l, w) && matcher.addCandidate(w, l) )
+				added++;
+		}
+		if ( added == 0 ) {
+			misses.incrementAndGet();
+			return 0;
+		}
+		hits.incrementAndGet();
+		if ( t.isPrefetched )
+			prefetchedHits.incrementAndGet();
+		return added;
+	}
+
+	/**
+	 * Checks if any way is cached near location, without counting a hit or miss. A tile being read counts as
+	 * covered for now, it may have the ways
+	 */
+	boolean isCovered(Location l) {
+		Tile t = getTile(GeoGrid.getCellId(l.getLatitude(), l.getLongitude()));
+		if ( t == null )
+			return true;
+		for ( int i = 0; i < t.ways.size(); i++ ) {
+			if ( GISUtils.isOnTheWay(l, t.ways.get(i)) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds ways of lookup response to their tiles
+	 * @param around lookup location
+	 * @param isPrefetch response was fetched ahead of need
+	 */
+	void put(Response r, Location around, boolean isPrefetch) {
+		if ( r == null || r.ways == null )
+			return;
+		// links way node refs to nodes; would unlink them if response has no node list
+		if ( r.nodes != null )
+			r.build();
+		long aroundCell = GeoGrid.getCellId(around.getLatitude(), around.getLongitude());
+		List<Tile> changed = new ArrayList<Tile>();
+		for ( Way w : r.ways ) {
+			if ( !isResolved(w) )
+				continue;
+			List<Long> cells = getCells(w);
+			if ( cells.size() > MAX_TILES_PER_WAY ) {
+				cells.clear();
+				cells.add(aroundCell);
+			}
+			for ( Long cell : cells ) {
+				Tile t = getTileForUpdate(cell);
+				if ( t.add(w) ) {
+					t.isPrefetched = isPrefetch;
+					if ( !changed.contains(t) )
+						changed.add(t);
+				}
+			}
+		}
+		for ( Tile t : changed ) {
+			save(t);
+		}
+	}
+
+	/**
+	 * Compares tags kept in tile files
+	 */
+	static boolean hasSameCachedTags(Way a, Way b) {
+		for ( String k : CACHED_TAGS ) {
+			String va = ( a.tags == null ? null : a.tags.get(k) );
+			String vb = ( b.tags == null ? null : b.tags.get(k) );
+			if ( va == null ? vb != null : !va.equals(vb) )
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isResolved(Way w) {
+		if ( w == null || w.id == null || w.nodes == null || w.nodes.size() < 2 )
+			return false;
+		for ( NodeRef n : w.nodes ) {
+			if ( n.node == null || n.node.lat == null || n.node.lon == null )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Cells touched by bounding box of each of way's segments
+	 */
+	private static List<Long> getCells(Way w) {
+		List<Long> cells = new ArrayList<Long>();
+		for ( int i = 1; i < w.nodes.size(); i++ ) {
+			Node a = w.nodes.get(i - 1).node;
+			Node b = w.nodes.get(i).node;
+			int rowMin = GeoGrid.getRow(Math.min(a.lat, b.lat));
+			int rowMax = GeoGrid.getRow(Math.max(a.lat, b.lat));
+			int colMin = GeoGrid.getColumn(Math.min(a.lon, b.lon));
+			int colMax = GeoGrid.getColumn(Math.max(a.lon, b.lon));
+			for ( int r = rowMin; r <= rowMax && cells.size() <= MAX_TILES_PER_WAY; r++ ) {
+				for ( int c = colMin; c <= colMax && cells.size() <= MAX_TILES_PER_WAY; c++ ) {
+					Long cell = GeoGrid.getCellId(r, c);
+					if ( !cells.contains(cell) )
+						cells.add(cell);
+				}
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns tile from memory, queueing it to be read from disk if it's not there
+	 * @return tile, may be empty, null while it's being read
+	 */
+	private Tile getTile(long cell) {
+		takeLoaded();
+		Tile t = tiles.get(cell);
+		if ( t != null && System.currentTimeMillis() - t.loaded < TTL_MS )
+			return t;
+		if ( t != null )
+			tiles.remove(cell);
+		requestLoad(cell);
+		return null;
+	}
+
+	/**
+	 * Returns tile to add ways to, an empty one in memory if it's still being read
+	 */
+	private Tile getTileForUpdate(long cell) {
+		Tile t = getTile(cell);
+		if ( t == null ) {
+			t = new Tile(cell, System.currentTimeMillis());
+			tiles.put(cell, t);
+		}
+		return t;
+	}
+
+	private void requestLoad(final long cell) {
+		if ( !loading.add(cell) )
+			return;
+		disk.execute(new Runnable() {
+			public void run() {
+				Tile t = load(cell);
+				loadedTiles.put(cell, ( t != null ? t : new Tile(cell, System.currentTimeMillis()) ));
+			}
+		});
+	}
+
+	/**
+	 * Moves tiles read by disk thread into memory. Ways put in a tile while it was being read are kept,
+	 * those from disk are added to them and the tile is saved again
+	 */
+	private void takeLoaded() {
+		if ( loadedTiles.isEmpty() )
+			return;
+		for ( Long cell : new ArrayList<Long>(loadedTiles.keySet()) ) {
+			Tile read = loadedTiles.remove(cell);
+			loading.remove(cell);
+			Tile t = tiles.get(cell);
+			if ( t == null ) {
+				tiles.put(cell, read);
+				continue;
+			}
+			boolean isChanged = false;
+			for ( Way w : read.ways ) {
+				if ( t.addIfAbsent(w) )
+					isChanged = true;
+			}
+			if ( isChanged )
+				save(t);
+		}
+	}
+
+	private File getFile(long cell) {
+		return new File(dir, Long.toHexString(cell) + ".tile");
+	}
+
+	private Tile load(long cell) {
+		File f = getFile(cell);
+		if ( !f.exists() )
+			return null;
+		if ( System.currentTimeMillis() - f.lastModified() >= TTL_MS ) {
+			f.delete();
+			return null;
+		}
+		diskReads.incrementAndGet();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException("Bad tile header");
+			Tile t = new Tile(cell, f.lastModified());
+			int ways = in.readInt();
+			for ( int i = 0; i < ways; i++ ) {
+				Way w = new Way();
+				w.id = in.readLong();
+				int tags = in.readShort();
+				w.tags = new HashMap<String, String>(tags * 2);
+				for ( int j = 0; j < tags; j++ ) {
+					w.tags.put(in.readUTF(), in.readUTF());
+				}
+				int nodes = in.readInt();
+				w.nodes = new ArrayList<NodeRef>(nodes);
+				for ( int j = 0; j < nodes; j++ ) {
+					NodeRef ref = new NodeRef();
+					ref.node = new Node();
+					ref.ref = ref.node.id = in.readLong();
+					ref.node.lat = in.readDouble();
+					ref.node.lon = in.readDouble();
+					w.nodes.add(ref);
+				}
+				t.ways.add(w);
+			}
+			return t;
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping unreadable tile " + f, e);
+			f.delete();
+			return null;
+		} finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void save(Tile t) {
+		final long cell = t.cell;
+		final List<Way> ways = new ArrayList<Way>(t.ways);
+		disk.execute(new Runnable() {
+			public void run() {
+				write(cell, ways);
+				trimDisk();
+			}
+		});
+	}
+
+	private void write(long cell, List<Way> ways) {
+		File f = getFile(cell);
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ways.size());
+			for ( Way w : ways ) {
+				out.writeLong(w.id);
+				int tags = 0;
+				for ( String k : CACHED_TAGS ) {
+					if ( w.tags != null && w.tags.get(k) != null )
+						tags++;
+				}
+				out.writeShort(tags);
+				for ( String k : CACHED_TAGS ) {
+					if ( w.tags != null && w.tags.get(k) != null ) {
+						out.writeUTF(k);
+						out.writeUTF(w.tags.get(k));
+					}
+				}
+				out.writeInt(w.nodes.size());
+				for ( NodeRef ref : w.nodes ) {
+					out.writeLong(ref.node.id != null ? ref.node.id : ( ref.ref != null ? ref.ref : 0L ));
+					out.writeDouble(ref.node.lat);
+					out.writeDouble(ref.node.lon);
+				}
+			}
+			out.close();
+			out = null;
+			if ( !tmp.renameTo(f) )
+				Log.w(TAG, "Failed to replace tile " + f);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write tile " + f, e);
+		} finally {
+			if ( out != null ) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes oldest tile files until dir is back under 3/4 of max size
+	 */
+	private void trimDisk() {
+		File[] files = dir.listFiles();
+		if ( files == null )
+			return;
+		long total = 0;
+		for ( File f : files ) {
+			total += f.length();
+		}
+		if ( total <= MAX_DISK_BYTES )
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return ( d < 0 ? -1 : ( d > 0 ? 1 : 0 ) );
+			}
+		});
+		for ( int i = 0; i < files.length && total > MAX_DISK_BYTES * 3 / 4; i++ ) {
+			total -= files[i].length();
+			if ( files[i].delete() )
+				evictedFiles.incrementAndGet();
+		}
+	}
+
+	void shutdown() {
+		disk.shutdown();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Hits on tiles filled by prefetch
+	 */
+	long getPrefetchedHits() {
+		return prefetchedHits.get();
+	}
+
+	long getDiskReads() {
+		return diskReads.get();
+	}
+
+	long getEvictedFiles() {
+		return evictedFiles.get();
+	}
+
+	private static class Tile {
+		final long cell;
+		final long loaded;
+		final List<Way> ways = new ArrayList<Way>();
+		boolean isPrefetched = false;
+
+		Tile(long cell, long loaded) {
+			this.cell = cell;
+			this.loaded = loaded;
+		}
+
+		/**
+		 * Adds way, replacing a cached copy if its geometry or cached tags differ
+		 * @return false if same way was already there
+		 */
+		boolean add(Way w) {
+			for ( int i = 0; i < ways.size(); i++ ) {
+				if ( w.id.equals(ways.get(i).id) ) {
+					if ( ways.get(i).nodes.size() == w.nodes.size() && hasSameCachedTags(ways.get(i), w) )
+						return false;
+					ways.set(i, w);
+					return true;
+				}
+			}
+			ways.add(w);
+			return true;
+		}
+
+		/**
+		 * @return false if same way was already there, which is kept
+		 */
+		boolean addIfAbsent(Way w) {
+			for ( int i = 0; i < ways.size(); i++ ) {
+				if ( w.id.equals(ways.get(i).id) )
+					return false;
+			}
+			ways.add(w);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.greatnowhere.radar.location;
+
+import android.content.Context;
+import android.location.Location;
+
+import com.greatnowhere.osmclient.OSMClient;
+import com.octo.android.robospice.request.listener.RequestListener;
+import com.xapi.models.Response;
+
+/**
+ * Ways from OSM service
+ */
+public class OSMWayDataSource implements WayDataSource {
+
+	private final OSMClient client;
+
+	public OSMWayDataSource(Context ctx) {
+		client = new OSMClient(ctx);
+	}
+
+	public void getWay(Location l, RequestListener<Response> listener) {
+		client.getWay(l, listener);
+	}
+
+	public void stop() {
+		client.stop();
+	}
+}
@@ -0,0 +1,299 @@
+package com.greatnowhere.radar.location;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Offline road segments with speed limits and names, built from an OSM extract by {@link OfflineSpeedLimitsBuilder}.
+ * File is memory-mapped. Segments are stored grouped by {@link GeoGrid} cell, a segment crossing cells is stored
+ * in each, and a sorted cell index points at each cell's group, so a lookup touches only the 9 cells around a point.
+ * <pre>
+ * header:  int magic 'OSLD', int version, int cell count, int segment count, int names offset, int names length, 2 int reserved
+ * cell:    long cell id, int first segment, int segment count
+ * segment: int lat1, int long1, int lat2, int long2 (microdegrees), float max speed m/s (0 unknown), int name offset (-1 none), long way id
+ * names:   short length, UTF-8 bytes
+ * </pre>
+ * All values big endian
+ */
+public class OfflineSpeedLimits {
+
+	private static final String TAG = OfflineSpeedLimits.class.getCanonicalName();
+
+	public static final String FILE_NAME = "speed_limits.dat";
+	static final int MAGIC = 0x4F534C44; // OSLD
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int CELL_SIZE = 16;
+	static final int SEGMENT_SIZE = 32;
+	static final double MICRODEGREES = 1000000d;
+
+	private static final double METERS_PER_DEGREE = 111320d;
+
+	/**
+	 * Mapped file and its header, replaced as a whole on reload so readers never mix old and new
+	 */
+	private static volatile Data data;
+
+	/**
+	 * Maps database from app's external files dir, if present. Reloads it if it was rebuilt
+	 * @param ctx
+	 */
+	public static synchronized void init(Context ctx) {
+		File dir = ctx.getExternalFilesDir(null);
+		if ( dir == null )
+			return;
+		load(new File(dir, FILE_NAME));
+	}
+
+	static synchronized void load(File f) {
+		data = null;
+		if ( !f.exists() )
+			return;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if ( size < HEADER_SIZE ) {
+				Log.w(TAG, "Not an offline speed limit database: " + f);
+				return;
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.BIG_ENDIAN);
+			if ( map.getInt(0) != MAGIC || map.getInt(4) != VERSION ) {
+				Log.w(TAG, "Not an offline speed limit database: " + f);
+				return;
+			}
+			int cells = map.getInt(8);
+			int segments = map.getInt(12);
+			int names = map.getInt(16);
+			int namesLen = map.getInt(20);
+			long segOffset = HEADER_SIZE + (long) cells * CELL_SIZE;
+			if ( cells < 0 || segments < 0 || namesLen < 0 || segOffset + (long) segments * SEGMENT_SIZE > names
+					|| (long) names + namesLen > size ) {
+				Log.w(TAG, "Truncated offline speed limit database: " + f);
+				return;
+			}
+			data = new Data(map, cells, segments, (int) segOffset, names, namesLen);
+			Log.i(TAG, "Mapped " + segments + " road segments in " + cells + " cells");
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to map offline speed limit database", e);
+		} finally {
+			// mapping stays valid after channel is closed
+			if ( raf != null ) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public static boolean isLoaded() {
+		return data != null;
+	}
+
+	public static int getSegmentCount() {
+		Data d = data;
+		return ( d == null ? 0 : d.segmentCount );
+	}
+
+	/**
+	 * Finds road segment nearest to given point
+	 * @param maxDistanceMeters segments further away are ignored, must be below cell size
+	 * @param out filled in with the match
+	 * @return false if no segment is within max distance
+	 */
+	public static boolean findNearest(double latitude, double longitude, float maxDistanceMeters, Match out) {
+		return findCandidates(latitude, longitude, maxDistanceMeters, new Match[] { out }) > 0;
+	}
+
+	/**
+	 * Finds nearest segment of each way near given point
+	 * @param maxDistanceMeters segments further away are ignored, must be below cell size
+	 * @param out filled in with matches, nearest first. If there are more ways than matches, nearest ways are kept
+	 * @return number of matches filled in
+	 */
+	public static int findCandidates(double latitude, double longitude, float maxDistanceMeters, Match[] out) {
+		Data db = data;
+		int found = 0;
+		if ( db == null || out.length == 0 )
+			return 0;
+		MappedByteBuffer buf = db.buf;
+		double metersPerLngDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+		int row = GeoGrid.getRow(latitude);
+		int column = GeoGrid.getColumn(longitude);
+		for ( int dr = -1; dr <= 1; dr++ ) {
+			for ( int dc = -1; dc <= 1; dc++ ) {
+				long cell = GeoGrid.getCellId(row + dr, column + dc);
+				if ( cell < 0 )
+					continue;
+				int c = findCell(db, cell);
+				if ( c < 0 )
+					continue;
+				int first = buf.getInt(HEADER_SIZE + c * CELL_SIZE + 8);
+				int count = buf.getInt(HEADER_SIZE + c * CELL_SIZE + 12);
+				for ( int i = first; i < first + count; i++ ) {
+					int offset = db.segmentsOffset + i * SEGMENT_SIZE;
+					// local planar meters around query point
+					double y1 = ( buf.getInt(offset) / MICRODEGREES - latitude ) * METERS_PER_DEGREE;
+					double x1 = ( buf.getInt(offset + 4) / MICRODEGREES - longitude ) * metersPerLngDegree;
+					double y2 = ( buf.getInt(offset + 8) / MICRODEGREES - latitude ) * METERS_PER_DEGREE;
+					double x2 = ( buf.getInt(offset + 12) / MICRODEGREES - longitude ) * metersPerLngDegree;
+					double d = distanceToOrigin(x1, y1, x2, y2);
+					if ( d >= maxDistanceMeters )
+						continue;
+					long wayId = buf.getLong(offset + 24);
+					// same way's slot, else a free one, else the furthest
+					int slot = -1;
+					for ( int m = 0; m < found && slot < 0; m++ ) {
+						if ( out[m].wayId == wayId )
+							slot = m;
+					}
+					if ( slot < 0 && found < out.length ) {
+						slot = found++;
+						out[slot].distanceMeters = Float.MAX_VALUE;
+					}
+					if ( slot < 0 ) {
+						slot = 0;
+						for ( int m = 1; m < found; m++ ) {
+							if ( out[m].distanceMeters > out[slot].distanceMeters )
+								slot = m;
+						}
+					}
+					Match match = out[slot];
+					if ( d >= match.distanceMeters )
+						continue;
+					match.segment = i;
+					match.distanceMeters = (float) d;
+					match.bearing = (float) ( ( Math.toDegrees(Math.atan2(x2 - x1, y2 - y1)) + 360d ) % 360d );
+					match.maxSpeed = buf.getFloat(offset + 16);
+					match.nameOffset = buf.getInt(offset + 20);
+					match.wayId = wayId;
+				}
+			}
+		}
+		// insertion sort, there are only a few
+		for ( int i = 1; i < found; i++ ) {
+			Match m = out[i];
+			int j = i - 1;
+			while ( j >= 0 && out[j].distanceMeters > m.distanceMeters ) {
+				out[j + 1] = out[j];
+				j--;
+			}
+			out[j + 1] = m;
+		}
+		for ( int i = found; i < out.length; i++ ) {
+			out[i].segment = -1;
+		}
+		return found;
+	}
+
+	/**
+	 * Distance from (0,0) to segment (x1,y1)-(x2,y2)
+	 */
+	static double distanceToOrigin(double x1, double y1, double x2, double y2) {
+		double dx = x2 - x1;
+		double dy = y2 - y1;
+		double len2 = dx * dx + dy * dy;
+		double t = ( len2 == 0 ? 0 : Math.max(0, Math.min(1, -( x1 * dx + y1 * dy ) / len2)) );
+		double px = x1 + t * dx;
+		double py = y1 + t * dy;
+		return Math.sqrt(px * px + py * py);
+	}
+
+	/**
+	 * Index of cell in cell index, -1 if no segments in it
+	 */
+	private static int findCell(Data d, long cell) {
+		MappedByteBuffer buf = d.buf;
+		int lo = 0;
+		int hi = d.cellCount - 1;
+		while ( lo <= hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			long c = buf.getLong(HEADER_SIZE + mid * CELL_SIZE);
+			if ( c < cell )
+				lo = mid + 1;
+			else if ( c > cell )
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Road name of matched segment
+	 * @return name, null if segment has none
+	 */
+	public static String getName(Match m) {
+		Data d = data;
+		// match may be from before a reload, offsets are only checked against current names
+		if ( d == null || m.segment < 0 || m.nameOffset < 0 || m.nameOffset + 2 > d.namesLength )
+			return null;
+		MappedByteBuffer buf = d.buf;
+		int offset = d.namesOffset + m.nameOffset;
+		int length = buf.getShort(offset) & 0xFFFF;
+		if ( m.nameOffset + 2 + length > d.namesLength )
+			return null;
+		byte[] bytes = new byte[length];
+		for ( int i = 0; i < length; i++ ) {
+			bytes[i] = buf.get(offset + 2 + i);
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Mapped database and header values, immutable
+	 */
+	private static class Data {
+		final MappedByteBuffer buf;
+		final int cellCount;
+		final int segmentCount;
+		final int segmentsOffset;
+		final int namesOffset;
+		final int namesLength;
+
+		Data(MappedByteBuffer buf, int cellCount, int segmentCount, int segmentsOffset, int namesOffset, int namesLength) {
+			this.buf = buf;
+			this.cellCount = cellCount;
+			this.segmentCount = segmentCount;
+			this.segmentsOffset = segmentsOffset;
+			this.namesOffset = namesOffset;
+			this.namesLength = namesLength;
+		}
+	}
+
+	/**
+	 * Result of nearest segment lookup, reused between lookups
+	 */
+	public static class Match {
+		/**
+		 * Segment index, -1 if nothing matched
+		 */
+		public int segment = -1;
+		public float distanceMeters;
+		/**
+		 * Direction of segment as drawn in OSM, degrees
+		 */
+		public float bearing;
+		/**
+		 * Max speed in m/s, 0 if unknown
+		 */
+		public float maxSpeed;
+		public long wayId;
+		int nameOffset = -1;
+	}
+}
@@ -0,0 +1,375 @@
+package com.greatnowhere.radar.location;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Environment;
+import android.util.Log;
+import android.util.Xml;
+
+import com.greatnowhere.radar.messaging.RadarMessageNotification;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Builds {@link OfflineSpeedLimits} database from an OSM XML extract, e.g. one cut with osmium or osmosis.
+ * Extract must be sorted by id, nodes before ways, as those tools write it. Node coordinates are held in
+ * primitive arrays while ways are read; only ways with a highway tag are kept, one segment per pair of
+ * consecutive nodes
+ */
+public class OfflineSpeedLimitsBuilder {
+
+	private static final String TAG = OfflineSpeedLimitsBuilder.class.getCanonicalName();
+
+	private static final double KPH_TO_MS = 0.277778d;
+	private static final double MPH_TO_MS = 0.44704d;
+	private static final double KNOTS_TO_MS = 0.514444d;
+	private static final int MAX_NAME_BYTES = 0xFFFF;
+
+	// nodes, sorted by id
+	private long[] nodeIds = new long[1 << 16];
+	private int[] nodeLat = new int[1 << 16];
+	private int[] nodeLng = new int[1 << 16];
+	private int nodeCount = 0;
+
+	// segments in way order
+	private int[] segLat1 = new int[1 << 14];
+	private int[] segLng1 = new int[1 << 14];
+	private int[] segLat2 = new int[1 << 14];
+	private int[] segLng2 = new int[1 << 14];
+	private float[] segSpeed = new float[1 << 14];
+	private int[] segName = new int[1 << 14];
+	private long[] segWay = new long[1 << 14];
+	private int segCount = 0;
+
+	private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+	private final Map<String, Integer> nameOffsets = new HashMap<String, Integer>();
+
+	// way being read
+	private long[] wayNodes = new long[256];
+	private int wayNodeCount;
+	private long wayId;
+	private String wayHighway;
+	private String wayName;
+	private String wayRef;
+	private String wayMaxSpeed;
+
+	/**
+	 * Reads OSM XML extract and writes database file
+	 * @return { ways, segments } written
+	 */
+	public int[] build(File osmFile, File outFile) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(osmFile), 64 * 1024);
+		int ways;
+		try {
+			ways = parse(in);
+		} catch (XmlPullParserException e) {
+			throw new IOException("Invalid OSM file: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		// node coordinates are no longer needed
+		nodeIds = null;
+		nodeLat = null;
+		nodeLng = null;
+		write(outFile);
+		return new int[] { ways, segCount };
+	}
+
+	private int parse(InputStream in) throws XmlPullParserException, IOException {
+		XmlPullParser p = Xml.newPullParser();
+		p.setInput(in, "UTF-8");
+		int ways = 0;
+		boolean inWay = false;
+		long lastNodeId = Long.MIN_VALUE;
+		for ( int event = p.getEventType(); event != XmlPullParser.END_DOCUMENT; event = p.next() ) {
+			if ( event == XmlPullParser.START_TAG ) {
+				String name = p.getName();
+				if ( "node".equals(name) ) {
+					long id = Long.parseLong(p.getAttributeValue(null, "id"));
+					if ( id <= lastNodeId )
+						throw new IOException("OSM extract must be sorted by node id");
+					lastNodeId = id;
+					addNode(id, Double.parseDouble(p.getAttributeValue(null, "lat")),
+							Double.parseDouble(p.getAttributeValue(null, "lon")));
+				} else if ( "way".equals(name) ) {
+					inWay = true;
+					wayId = Long.parseLong(p.getAttributeValue(null, "id"));
+					wayNodeCount = 0;
+					wayHighway = null;
+					wayName = null;
+					wayRef = null;
+					wayMaxSpeed = null;
+				} else if ( inWay && "nd".equals(name) ) {
+					if ( wayNodeCount == wayNodes.length )
+						wayNodes = Arrays.copyOf(wayNodes, wayNodeCount * 2);
+					wayNodes[wayNodeCount++] = Long.parseLong(p.getAttributeValue(null, "ref"));
+				} else if ( inWay && "tag".equals(name) ) {
+					String k = p.getAttributeValue(null, "k");
+					String v = p.getAttributeValue(null, "v");
+					if ( "highway".equals(k) )
+						wayHighway = v;
+					else if ( "name".equals(k) )
+						wayName = v;
+					else if ( "ref".equals(k) )
+						wayRef = v;
+					else if ( "maxspeed".equals(k) )
+						wayMaxSpeed = v;
+				}
+			} else if ( event == XmlPullParser.END_TAG && "way".equals(p.getName()) ) {
+				inWay = false;
+				if ( wayHighway != null && addWay() )
+					ways++;
+			}
+		}
+		return ways;
+	}
+
+	private void addNode(long id, double lat, double lng) {
+		if ( nodeCount == nodeIds.length ) {
+			int capacity = nodeCount * 2;
+			nodeIds = Arrays.copyOf(nodeIds, capacity);
+			nodeLat = Arrays.copyOf(nodeLat, capacity);
+			nodeLng = Arrays.copyOf(nodeLng, capacity);
+		}
+		nodeIds[nodeCount] = id;
+		nodeLat[nodeCount] = (int) Math.round(lat * OfflineSpeedLimits.MICRODEGREES);
+		nodeLng[nodeCount] = (int) Math.round(lng * OfflineSpeedLimits.MICRODEGREES);
+		nodeCount++;
+	}
+
+	/**
+	 * Adds segments of current way
+	 * @return false if none of its nodes were in the extract
+	 */
+	private boolean addWay() {
+		float speed = parseMaxSpeed(wayMaxSpeed);
+		int name = getNameOffset(wayName != null ? wayName : wayRef);
+		int prev = -1;
+		boolean isAdded = false;
+		for ( int i = 0; i < wayNodeCount; i++ ) {
+			int n = Arrays.binarySearch(nodeIds, 0, nodeCount, wayNodes[i]);
+			if ( n < 0 ) {
+				// way leaves the extract
+				prev = -1;
+				continue;
+			}
+			if ( prev >= 0 ) {
+				addSegment(nodeLat[prev], nodeLng[prev], nodeLat[n], nodeLng[n], speed, name, wayId);
+				isAdded = true;
+			}
+			prev = n;
+		}
+		return isAdded;
+	}
+
+	private void addSegment(int lat1, int lng1, int lat2, int lng2, float speed, int name, long way) {
+		if ( segCount == segLat1.length ) {
+			int capacity = segCount * 2;
+			segLat1 = Arrays.copyOf(segLat1, capacity);
+			segLng1 = Arrays.copyOf(segLng1, capacity);
+			segLat2 = Arrays.copyOf(segLat2, capacity);
+			segLng2 = Arrays.copyOf(segLng2, capacity);
+			segSpeed = Arrays.copyOf(segSpeed, capacity);
+			segName = Arrays.copyOf(segName, capacity);
+			segWay = Arrays.copyOf(segWay, capacity);
+		}
+		segLat1[segCount] = lat1;
+		segLng1[segCount] = lng1;
+		segLat2[segCount] = lat2;
+		segLng2[segCount] = lng2;
+		segSpeed[segCount] = speed;
+		segName[segCount] = name;
+		segWay[segCount] = way;
+		segCount++;
+	}
+
+	private int getNameOffset(String name) {
+		if ( name == null )
+			return -1;
+		Integer offset = nameOffsets.get(name);
+		if ( offset != null )
+			return offset;
+		byte[] bytes;
+		try {
+			bytes = name.getBytes("UTF-8");
+		} catch (IOException e) {
+			return -1;
+		}
+		if ( bytes.length > MAX_NAME_BYTES )
+			bytes = Arrays.copyOf(bytes, MAX_NAME_BYTES);
+		offset = names.size();
+		names.write(( bytes.length >>> 8 ) & 0xFF);
+		names.write(bytes.length & 0xFF);
+		names.write(bytes, 0, bytes.length);
+		nameOffsets.put(name, offset);
+		return offset;
+	}
+
+	/**
+	 * Parses OSM maxspeed value, "50", "30 mph", "10 knots"
+	 * @return m/s, 0 if missing or not numeric (e.g. "none", "RU:urban")
+	 */
+	static float parseMaxSpeed(String v) {
+		if ( v == null )
+			return 0f;
+		v = v.trim();
+		int end = 0;
+		while ( end < v.length() && ( Character.isDigit(v.charAt(end)) || v.charAt(end) == '.' ) ) {
+			end++;
+		}
+		if ( end == 0 )
+			return 0f;
+		double value;
+		try {
+			value = Double.parseDouble(v.substring(0, end));
+		} catch (NumberFormatException e) {
+			return 0f;
+		}
+		String unit = v.substring(end).trim();
+		if ( unit.equalsIgnoreCase("mph") )
+			return (float) ( value * MPH_TO_MS );
+		if ( unit.equalsIgnoreCase("knots") )
+			return (float) ( value * KNOTS_TO_MS );
+		return (float) ( value * KPH_TO_MS );
+	}
+
+	/**
+	 * Writes segments grouped by every cell their bounding box touches, with the cell index in front
+	 */
+	private void write(File outFile) throws IOException {
+		// sort key: row 17 bits, column 18 bits, segment 28 bits
+		long[] keys = new long[Math.max(16, segCount * 2)];
+		int keyCount = 0;
+		for ( int s = 0; s < segCount; s++ ) {
+			if ( s >= ( 1 << 28 ) )
+				throw new IOException("Too many road segments");
+			int rowMin = GeoGrid.getRow(Math.min(segLat1[s], segLat2[s]) / OfflineSpeedLimits.MICRODEGREES);
+			int rowMax = GeoGrid.getRow(Math.max(segLat1[s], segLat2[s]) / OfflineSpeedLimits.MICRODEGREES);
+			int colMin = GeoGrid.getColumn(Math.min(segLng1[s], segLng2[s]) / OfflineSpeedLimits.MICRODEGREES);
+			int colMax = GeoGrid.getColumn(Math.max(segLng1[s], segLng2[s]) / OfflineSpeedLimits.MICRODEGREES);
+			if ( colMax - colMin > 1000 ) {
+				// crosses the antimeridian, not worth handling
+				continue;
+			}
+			for ( int r = rowMin; r <= rowMax; r++ ) {
+				for ( int c = colMin; c <= colMax; c++ ) {
+					if ( keyCount == keys.length )
+						keys = Arrays.copyOf(keys, keyCount * 2);
+					keys[keyCount++] = ( (long) r << 46 ) | ( (long) c << 28 ) | s;
+				}
+			}
+		}
+		Arrays.sort(keys, 0, keyCount);
+		int cells = 0;
+		for ( int i = 0; i < keyCount; i++ ) {
+			if ( i == 0 || ( keys[i] >>> 28 ) != ( keys[i - 1] >>> 28 ) )
+				cells++;
+		}
+		long namesOffset = OfflineSpeedLimits.HEADER_SIZE + (long) cells * OfflineSpeedLimits.CELL_SIZE
+				+ (long) keyCount * OfflineSpeedLimits.SEGMENT_SIZE;
+		if ( namesOffset + names.size() > Integer.MAX_VALUE )
+			throw new IOException("Offline speed limit database too large");
+
+		File tmp = new File(outFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+		try {
+			out.writeInt(OfflineSpeedLimits.MAGIC);
+			out.writeInt(OfflineSpeedLimits.VERSION);
+			out.writeInt(cells);
+			out.writeInt(keyCount);
+			out.writeInt((int) namesOffset);
+			out.writeInt(names.size());
+			out.writeInt(0);
+			out.writeInt(0);
+			int start = 0;
+			for ( int i = 1; i <= keyCount; i++ ) {
+				if ( i == keyCount || ( keys[i] >>> 28 ) != ( keys[start] >>> 28 ) ) {
+					int row = (int) ( keys[start] >>> 46 );
+					int column = (int) ( ( keys[start] >>> 28 ) & 0x3FFFF );
+					out.writeLong(GeoGrid.getCellId(row, column));
+					out.writeInt(start);
+					out.writeInt(i - start);
+					start = i;
+				}
+			}
+			for ( int i = 0; i < keyCount; i++ ) {
+				int s = (int) ( keys[i] & 0xFFFFFFF );
+				out.writeInt(segLat1[s]);
+				out.writeInt(segLng1[s]);
+				out.writeInt(segLat2[s]);
+				out.writeInt(segLng2[s]);
+				out.writeFloat(segSpeed[s]);
+				out.writeInt(segName[s]);
+				out.writeLong(segWay[s]);
+			}
+			names.writeTo(out);
+		} finally {
+			out.close();
+		}
+		if ( !tmp.renameTo(outFile) )
+			throw new IOException("Failed to replace " + outFile);
+	}
+
+	/**
+	 * Builds offline speed limit database in background and maps it when done
+	 */
+	public static class BuildService extends IntentService {
+
+		public static final String EXTRA_FILE = "osmFile";
+		public static final String DEFAULT_FILE_NAME = "speed_limits.osm";
+
+		public BuildService() {
+			super(BuildService.class.getCanonicalName());
+		}
+
+		@Override
+		protected void onHandleIntent(Intent intent) {
+			String path = intent.getStringExtra(EXTRA_FILE);
+			File osm = ( path != null ? new File(path) : new File(Environment.getExternalStorageDirectory(), DEFAULT_FILE_NAME) );
+			File dir = getApplicationContext().getExternalFilesDir(null);
+			String result;
+			if ( dir == null ) {
+				result = "Offline speed limits: external storage not available";
+			} else {
+				long started = System.currentTimeMillis();
+				try {
+					int[] counts = new OfflineSpeedLimitsBuilder().build(osm, new File(dir, OfflineSpeedLimits.FILE_NAME));
+					OfflineSpeedLimits.init(getApplicationContext());
+					result = "Built offline speed limits from " + osm.getName() + ": " + counts[0] + " roads, " + counts[1]
+							+ " segments in " + ( System.currentTimeMillis() - started ) + "ms";
+					Log.i(TAG, result);
+				} catch (IOException e) {
+					Log.e(TAG, "Offline speed limit build failed", e);
+					result = "Offline speed limit build failed: " + e.getMessage();
+				} catch (OutOfMemoryError e) {
+					Log.e(TAG, "Offline speed limit build ran out of memory", e);
+					result = "Offline speed limit build failed: extract too large";
+				}
+			}
+			EventBus.getDefault().post(new RadarMessageNotification(result));
+			EventBus.getDefault().post(new EventOfflineSpeedLimitsChanged());
+		}
+	}
+
+	/**
+	 * Posted after database was rebuilt
+	 */
+	public static class EventOfflineSpeedLimitsChanged {
+	}
+}
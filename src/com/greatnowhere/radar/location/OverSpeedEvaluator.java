@@ -0,0 +1,143 @@
+package com.greatnowhere.radar.location;
+
+/**
+ * Decides when over speed warning sounds, from speed and limit samples. Warning starts only after speed has been over
+ * limit plus margin for enter dwell time, and ends only after it's been under limit plus margin minus exit hysteresis
+ * for exit dwell time, so speed hovering around the threshold doesn't make it stutter. While over, the alert repeats
+ * at an interval shortening with overspeed. Primitive state only, no allocation; not thread safe, feed from one thread
+ */
+class OverSpeedEvaluator {
+
+	/**
+	 * Result of {@link #update(float, float, long)}
+	 */
+	static final int NONE = 0;
+	static final int PLAY = 1;
+	static final int STOP = 2;
+
+	private static final float MS_TO_KPH = 3.6f;
+
+	private float marginKph;
+	private final float hysteresisKph;
+	private final long enterDwellMillis;
+	private final long exitDwellMillis;
+	private final long maxAlertIntervalMillis;
+	private final long minAlertIntervalMillis;
+	/**
+	 * Overspeed past margin at which alert repeats at min interval, kph
+	 */
+	private final float maxOverspeedKph;
+
+	private boolean isOver = false;
+	/**
+	 * When current candidate state change began, 0 if none pending
+	 */
+	private long pendingSince = 0;
+	private long lastAlert = 0;
+	private float overspeedKph = 0f;
+
+	private long alerts = 0;
+	private long suppressed = 0;
+
+	OverSpeedEvaluator(float hysteresisKph, long enterDwellMillis, long exitDwellMillis, long maxAlertIntervalMillis,
+			long minAlertIntervalMillis, float maxOverspeedKph) {
+		this.hysteresisKph = hysteresisKph;
+		this.enterDwellMillis = enterDwellMillis;
+		this.exitDwellMillis = exitDwellMillis;
+		this.maxAlertIntervalMillis = maxAlertIntervalMillis;
+		this.minAlertIntervalMillis = minAlertIntervalMillis;
+		this.maxOverspeedKph = maxOverspeedKph;
+	}
+
+	/**
+	 * Allowed speed over limit before warning, kph
+	 */
+	void setMargin(float kph) {
+		marginKph = kph;
+	}
+
+	/**
+	 * Evaluates a sample
+	 * @param speedMps current speed, m/s
+	 * @param limitMps speed limit m/s, 0 or less if unknown
+	 * @param now sample time, millis
+	 * @return {@link #PLAY} if alert should sound now, {@link #STOP} if warning just ended, else {@link #NONE}
+	 */
+	int update(float speedMps, float limitMps, long now) {
+		if ( limitMps <= 0 ) {
+			return reset();
+		}
+		float over = ( speedMps - limitMps ) * MS_TO_KPH - marginKph;
+		boolean isBeyond = ( isOver ? over > -hysteresisKph : over > 0 );
+		if ( isBeyond ) {
+			overspeedKph = Math.max(0f, over);
+		}
+		if ( isBeyond == isOver ) {
+			pendingSince = 0;
+		} else {
+			if ( pendingSince == 0 )
+				pendingSince = now;
+			if ( now - pendingSince < ( isOver ? exitDwellMillis : enterDwellMillis ) ) {
+				suppressed++;
+				return ( isOver ? alertIfDue(now) : NONE );
+			}
+			pendingSince = 0;
+			isOver = isBeyond;
+			if ( !isOver )
+				return STOP;
+			lastAlert = 0;
+		}
+		return ( isOver ? alertIfDue(now) : NONE );
+	}
+
+	private int alertIfDue(long now) {
+		if ( lastAlert != 0 && now - lastAlert < getAlertInterval() )
+			return NONE;
+		lastAlert = now;
+		alerts++;
+		return PLAY;
+	}
+
+	/**
+	 * Drops warning, as when limit becomes unknown
+	 * @return {@link #STOP} if warning was on
+	 */
+	int reset() {
+		pendingSince = 0;
+		overspeedKph = 0f;
+		if ( !isOver )
+			return NONE;
+		isOver = false;
+		return STOP;
+	}
+
+	/**
+	 * Alert interval for current overspeed, linear from max interval at margin to min interval at max overspeed
+	 */
+	long getAlertInterval() {
+		float f = Math.min(overspeedKph, maxOverspeedKph) / maxOverspeedKph;
+		return maxAlertIntervalMillis - (long) ( f * ( maxAlertIntervalMillis - minAlertIntervalMillis ) );
+	}
+
+	boolean isOver() {
+		return isOver;
+	}
+
+	/**
+	 * Speed over limit plus margin at last sample over it, kph
+	 */
+	float getOverspeedKph() {
+		return overspeedKph;
+	}
+
+	long getAlerts() {
+		return alerts;
+	}
+
+	/**
+	 * Samples where a state change was held back by dwell time
+	 */
+	long getSuppressed() {
+		return suppressed;
+	}
+}
@@ -32,6 +32,8 @@ public class PhoneActivityDetector implements GoogleApiClient.ConnectionCallback
 	private static ActivityStatus activity = ActivityStatus.UNKNOWN;
 	private static Context ctx;
 	private static final long ACTIVITY_UPDATE_INTERVAL = 60000L; // every 60 secs
+	private static volatile long activityUpdateInterval = ACTIVITY_UPDATE_INTERVAL;
+	private static PendingIntent callbackIntent;
 	private static UiModeManager uiManager;
 	private static AtomicBoolean isCarMode = new AtomicBoolean();
 	private static EventBus eventBus = EventBus.getDefault();
@@ -98,13 +100,29 @@ public class PhoneActivityDetector implements GoogleApiClient.ConnectionCallback
 	public void onConnected(Bundle connectionHint) {
 		Log.i(TAG,"connected");
 		Intent i = new Intent(ctx, ActivityDetectorIntentReceiver.class);
-		PendingIntent callbackIntent = PendingIntent.getService(ctx, 0, i,
+		callbackIntent = PendingIntent.getService(ctx, 0, i,
 	             PendingIntent.FLAG_UPDATE_CURRENT);
 		ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(
-		    googleApiClient, ACTIVITY_UPDATE_INTERVAL, callbackIntent);
+		    googleApiClient, activityUpdateInterval, callbackIntent);
 
 	}
 
+	/**
+	 * Sets how often activity updates are requested, re-requesting them if connected. Longer saves power,
+	 * see {@link SensingPowerManager}
+	 * @param millis
+	 */
+	public static void setActivityUpdateInterval(long millis) {
+		if ( millis == activityUpdateInterval )
+			return;
+		activityUpdateInterval = millis;
+		if ( googleApiClient != null && googleApiClient.isConnected() && callbackIntent != null ) {
+			Log.d(TAG, "activity update interval " + millis + "ms");
+			ActivityRecognition.ActivityRecognitionApi.requestActivityUpdates(
+				    googleApiClient, millis, callbackIntent);
+		}
+	}
+
 	public void onConnectionSuspended(int cause) {
 		Log.i(TAG,"connection suspended");
 		setActivityStatus(ActivityStatus.UNKNOWN);
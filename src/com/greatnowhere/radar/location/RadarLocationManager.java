@@ -1,16 +1,19 @@
 package com.greatnowhere.radar.location;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.cobra.iradar.CobraRadarEvents;
 import com.cobra.iradar.RadarManager;
 import com.greatnowhere.radar.config.Preferences;
+import com.greatnowhere.radar.threats.ThreatManager;
 
 import de.greenrobot.event.EventBus;
 
@@ -20,12 +23,35 @@ public class RadarLocationManager {
 	
 	private static Context ctx;
 	private static LocationManager lm;
-	private static Location currentLoc;
+	private static volatile Location currentLoc;
+	private static final LatestLocation latest = new LatestLocation();
+	private static final LocationFilter filter = new LocationFilter();
+	/**
+	 * Filtered speed as of last fix, and time it stays known until. Filter speed only changes with fixes, so it's
+	 * computed once per fix rather than per read. Until is written last and read first
+	 */
+	private static volatile float effectiveSpeed = -1f;
+	private static volatile long effectiveSpeedUntil = 0L;
+	/**
+	 * Reused by fix updates, on location thread only
+	 */
+	private static final LocationFilter.Estimate fixEstimate = new LocationFilter.Estimate();
+	/**
+	 * Reused by {@link #getEstimatedLoc()}, guarded by itself
+	 */
+	private static final LocationFilter.Estimate locEstimate = new LocationFilter.Estimate();
+	private static LatestLocation.Subscription routeAheadSubscription;
 	private static LocationListener locListener;
-	private static boolean isReady = false;
+	private static volatile boolean isReady = false;
 	private static EventBus eventBus;
 	private static AtomicBoolean isActive;
 	private static RadarLocationManager instance;
+	/**
+	 * Policy listener is registered with, null when stopped
+	 */
+	private static LocationSamplingPolicy policy;
+	private static final AtomicLong policyChanges = new AtomicLong();
+	private static final AtomicLong fixes = new AtomicLong();
 	
 	public static void init(Context ctx) {
 		RadarLocationManager.ctx = ctx;
@@ -39,7 +65,8 @@ public class RadarLocationManager {
 	}
 	
 	private boolean isShouldActivate() {
-		return ( ( Preferences.isLogThreatLocation() && RadarManager.isRadarConnected() ) ||
+		return SensingPowerManager.getState().isSensingAllowed() &&
+				( ( Preferences.isLogThreatLocation() && RadarManager.isRadarConnected() ) ||
 				( LocationInfoLookupManager.isShouldActivate() ) );
 	}
 	
@@ -55,17 +82,67 @@ public class RadarLocationManager {
 	public synchronized static void start() {
 		Log.i(TAG,"start");
 		locListener = new LocationListener();
-		lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, 100L, 1L, locListener);
+		policy = choosePolicy(null);
+		requestUpdates();
+		if ( routeAheadSubscription == null )
+			routeAheadSubscription = latest.subscribe(new RouteAheadPrefetcher(), RouteAheadPrefetcher.THRESHOLD);
 		isActive.set(true);
 	}
 	
+	private static void requestUpdates() {
+		Log.d(TAG, "GPS sampling " + policy.getName() + " " + policy.getIntervalMillis() + "ms " + policy.getMinDistanceMeters() + "m");
+		lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, policy.getIntervalMillis(), policy.getMinDistanceMeters(), locListener);
+	}
+	
+	private static LocationSamplingPolicy choosePolicy(LocationSamplingPolicy current) {
+		Location l = currentLoc;
+		return LocationSamplingPolicy.choose(current, ( l != null && l.hasSpeed() ? l.getSpeed() : -1f ), 
+				ThreatManager.hasActiveThreats(), LocationInfoLookupManager.isNeedsFreshLocation(), 
+				PhoneActivityDetector.getActivityStatus());
+	}
+	
+	/**
+	 * Re-evaluates sampling policy, re-registering listener only if policy changed. Call on main thread
+	 */
+	public synchronized static void applyPolicy() {
+		if ( locListener == null )
+			return;
+		LocationSamplingPolicy p = choosePolicy(policy);
+		if ( p == policy )
+			return;
+		policy = p;
+		policyChanges.incrementAndGet();
+		lm.removeUpdates(locListener);
+		requestUpdates();
+	}
+	
+	public static LocationSamplingPolicy getPolicy() {
+		return policy;
+	}
+	
+	public static long getPolicyChanges() {
+		return policyChanges.get();
+	}
+	
+	public static long getFixCount() {
+		return fixes.get();
+	}
+	
 	public synchronized static void stop() {
     	Log.d(TAG, "stop");
 		if ( locListener != null ) {
 			lm.removeUpdates(locListener);
 			locListener = null;
 		}
+		policy = null;
+		if ( routeAheadSubscription != null ) {
+			latest.unsubscribe(routeAheadSubscription);
+			routeAheadSubscription = null;
+		}
 		isReady = false;
+		Log.d(TAG, "Location filter fixes " + filter.getFixes() + " resets " + filter.getResets());
+		filter.reset();
+		effectiveSpeedUntil = 0L;
 		isActive.set(false);
 	}
 	
@@ -80,24 +157,89 @@ public class RadarLocationManager {
 		return currentLoc;
 	}
 
+	/**
+	 * Position extrapolated by location filter to now, so still useful through GPS dropouts
+	 * @return estimated location, last fix if there's no estimate within bounds, null if no fix yet
+	 */
+	public static Location getEstimatedLoc() {
+		Location l = currentLoc;
+		if ( l == null )
+			return l;
+		synchronized ( locEstimate ) {
+			LocationFilter.Estimate e = locEstimate;
+			if ( !filter.estimate(SystemClock.elapsedRealtime(), e) || e.age == 0 )
+				return l;
+			Location est = new Location(l);
+			est.setLatitude(e.latitude);
+			est.setLongitude(e.longitude);
+			est.setSpeed(e.speed);
+			est.setBearing(e.bearing);
+			est.setAccuracy(e.positionSigma);
+			est.setTime(l.getTime() + e.age);
+			return est;
+		}
+	}
+
+	/**
+	 * Stores fix. Subscribers of {@link #getLatest()} are notified here, on GPS thread
+	 * @param currentLoc
+	 */
 	public static void setCurrentLoc(Location currentLoc) {
+		long now = SystemClock.elapsedRealtime();
+		filter.update(currentLoc, now);
+		if ( filter.estimate(now, fixEstimate) ) {
+			effectiveSpeed = fixEstimate.speed;
+			effectiveSpeedUntil = filter.getValidUntil();
+		} else {
+			effectiveSpeedUntil = 0L;
+		}
 		RadarLocationManager.currentLoc = currentLoc;
-		eventBus.postSticky(new LocationChanged(currentLoc));
 		isReady = true;
+		latest.set(currentLoc);
+	}
+	
+	/**
+	 * Latest position, to poll without allocation or subscribe to changes
+	 * @return
+	 */
+	public static LatestLocation getLatest() {
+		return latest;
+	}
+	
+	/**
+	 * Filtered speed, extrapolated through GPS dropouts while its uncertainty stays bounded
+	 * @return speed in m/s, -1 if not known
+	 */
+	public static float getEffectiveSpeed() {
+		long until = effectiveSpeedUntil;
+		return ( SystemClock.elapsedRealtime() <= until ? effectiveSpeed : -1f );
+	}
+	
+	/**
+	 * Location filter's estimate for now
+	 * @return false if there's none within bounds
+	 */
+	static boolean getEstimate(LocationFilter.Estimate out) {
+		return filter.estimate(SystemClock.elapsedRealtime(), out);
+	}
+	
+	public static float getEffectiveSpeedKph() {
+		float s = getEffectiveSpeed();
+		return ( s < 0 ? s : s*3.6f );
 	}
 	
+	/**
+	 * Effective speed, or last fix's speed if that's not known
+	 * @return
+	 */
 	public static float getCurrentSpeedKph() {
-		if ( getCurrentLoc() != null ) {
-			return getCurrentLoc().getSpeed()*3.6f;
-		}
-		return 0f;
+		float s = getEffectiveSpeed();
+		return ( s < 0 ? latest.getSpeed() : s )*3.6f;
 	}
 	
 	public static float getCurrentSpeedMph() {
-		if ( getCurrentLoc() != null ) {
-			return getCurrentLoc().getSpeed()*2.23694f;
-		}
-		return 0f;
+		float s = getEffectiveSpeed();
+		return ( s < 0 ? latest.getSpeed() : s )*2.23694f;
 	}
 
 	public static boolean isReady() {
@@ -114,6 +256,7 @@ public class RadarLocationManager {
 	 */
 	public void onEventMainThread(Preferences.PreferenceLocationLookupSettingsChangedEvent event) {
 		activate();
+		applyPolicy();
 	}
 	
 	public void onEventMainThread(Preferences.PreferenceOverSpeedSettingsChangedEvent event) {
@@ -128,9 +271,24 @@ public class RadarLocationManager {
 		activate();
 	}
 	
+	public void onEventMainThread(ThreatManager.EventThreatsActiveChanged event) {
+		applyPolicy();
+	}
+	
+	public void onEventMainThread(PhoneActivityDetector.EventActivityChanged event) {
+		applyPolicy();
+	}
+	
+	public void onEventMainThread(SensingPowerManager.EventSensingStateChanged event) {
+		activate();
+	}
+	
 	private static class LocationListener implements android.location.LocationListener {
 		public void onLocationChanged(Location location) {
+			fixes.incrementAndGet();
 			setCurrentLoc(location);
+			// speed may have crossed a policy threshold; delivered on main looper
+			applyPolicy();
 		}
 		public void onStatusChanged(String provider, int status, Bundle extras) {
 		}
@@ -141,28 +299,4 @@ public class RadarLocationManager {
 
 	}
 	
-	public static class LocationChanged {
-		public Location loc;
-		
-		public LocationChanged(Location l) {
-			loc = l;
-		}
-
-		public float getCurrentSpeedKph() {
-			if ( loc != null ) {
-				return loc.getSpeed()*3.6f;
-			}
-			return 0f;
-		}
-		
-		public float getCurrentSpeedMph() {
-			if ( loc != null ) {
-				return loc.getSpeed()*2.23694f;
-			}
-			return 0f;
-		}
-
-	
-	}
-	
 }
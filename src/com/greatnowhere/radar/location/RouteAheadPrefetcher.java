@@ -0,0 +1,62 @@
+package com.greatnowhere.radar.location;
+
+import com.greatnowhere.radar.config.Preferences;
+import com.greatnowhere.radar.threats.ThreatLogger;
+
+/**
+ * Projects filtered position along heading at current speed, {@link #HORIZON_SECONDS} ahead, and has threat history
+ * around those points loaded into memory before we get there, so similar threat counts at alert time don't query
+ * database. Speed limit lookups prefetch along the same points, see {@link CachedOSMLookup}
+ */
+class RouteAheadPrefetcher implements LatestLocation.Subscriber {
+
+	static final int HORIZON_SECONDS = 60;
+	/**
+	 * Spacing of projected points, below grid cell size so no cell on the way is skipped
+	 */
+	static final float STEP_METERS = 150f;
+	static final int MAX_POINTS = 64;
+	/**
+	 * Below this only current position is prefetched, heading is noise
+	 */
+	static final float MIN_SPEED_MPS = 3f;
+	static final LatestLocation.Threshold THRESHOLD = new LatestLocation.Threshold(0f, 100f, 2000L, 15000L);
+
+	private static final double METERS_PER_DEGREE = 111320d;
+
+	private final LocationFilter.Estimate estimate = new LocationFilter.Estimate();
+	private final double[] latitudes = new double[MAX_POINTS];
+	private final double[] longitudes = new double[MAX_POINTS];
+
+	public void onLocationUpdate(LatestLocation location) {
+		if ( !Preferences.isFakeAlertDetection() || !Preferences.isLogThreatLocation() )
+			return;
+		if ( !RadarLocationManager.getEstimate(estimate) )
+			return;
+		int count = project(estimate.latitude, estimate.longitude, ( estimate.speed < MIN_SPEED_MPS ? 0f : estimate.speed ),
+				estimate.bearing, HORIZON_SECONDS, latitudes, longitudes);
+		ThreatLogger.prefetchHistory(latitudes, longitudes, count, Preferences.getFakeAlertDetectionRadius());
+	}
+
+	/**
+	 * Points along a straight line from given position, {@link #STEP_METERS} apart, starting with position itself
+	 * @param speed m/s
+	 * @param bearing degrees
+	 * @param horizonSeconds line length at speed
+	 * @return number of points filled in, at least 1
+	 */
+	static int project(double latitude, double longitude, float speed, float bearing, int horizonSeconds,
+			double[] latitudes, double[] longitudes) {
+		double b = Math.toRadians(bearing);
+		double dLat = Math.cos(b) / METERS_PER_DEGREE;
+		double dLng = Math.sin(b) / ( METERS_PER_DEGREE * Math.max(0.01d, Math.cos(Math.toRadians(latitude))) );
+		double length = speed * horizonSeconds;
+		int count = 0;
+		for ( double d = 0d; d <= length && count < latitudes.length; d += STEP_METERS ) {
+			latitudes[count] = latitude + d * dLat;
+			longitudes[count] = longitude + d * dLng;
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,283 @@
+package com.greatnowhere.radar.location;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cobra.iradar.CobraRadarEvents;
+import com.cobra.iradar.RadarManager;
+import com.greatnowhere.radar.location.PhoneActivityDetector.ActivityStatus;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Decides, from activity, car mode and radar connection, what the phone is doing, and with it which sensing
+ * subsystems run and how often. GPS speed only holds a driving state: it's read when a pending change comes due,
+ * and GPS is off while parked or walking, so it can't leave those. Subsystems follow {@link EventSensingStateChanged}
+ * instead of reacting to raw activity and car mode changes each on their own. A new state is entered only once it
+ * has held for its dwell time, so a stop at a light or a jittery activity reading doesn't start and stop everything;
+ * parked with no radar connected, GPS, lookups and their caches are off and activity detection and device scans run
+ * at their slowest.
+ * State changes on main thread, {@link #getState()} is read from any
+ */
+public class SensingPowerManager {
+
+	private static final String TAG = SensingPowerManager.class.getCanonicalName();
+
+	/**
+	 * GPS speed above which a driving state isn't left whatever activity detector says, m/s
+	 */
+	static final float DRIVING_SPEED_MPS = 7f;
+
+	private static SensingPowerManager instance;
+	private static EventBus eventBus;
+	private static Handler handler;
+	/**
+	 * Before init, and while inputs are unknown, everything runs as it did without this manager
+	 */
+	private static volatile SensingPowerState state = SensingPowerState.DRIVING;
+	private static SensingPowerState candidate;
+	private static long candidateSince;
+	private static long stateSince;
+	private static final long[] residency = new long[SensingPowerState.values().length];
+	private static final long[] entries = new long[SensingPowerState.values().length];
+	private static long transitions = 0;
+	private static long debounced = 0;
+	private static final Runnable evaluator = new Runnable() {
+		public void run() {
+			evaluate();
+		}
+	};
+
+	/**
+	 * Call on main thread, after {@link PhoneActivityDetector#init(android.content.Context)}
+	 */
+	public static void init() {
+		Log.d(TAG, "init");
+		stop();
+		eventBus = EventBus.getDefault();
+		handler = new Handler(Looper.getMainLooper());
+		instance = new SensingPowerManager();
+		state = SensingPowerState.DRIVING;
+		candidate = null;
+		stateSince = SystemClock.elapsedRealtime();
+		entries[state.ordinal()]++;
+		eventBus.register(instance);
+		eventBus.postSticky(new EventSensingStateChanged(state, null));
+		evaluate();
+	}
+
+	public static void stop() {
+		if ( instance == null )
+			return;
+		Log.d(TAG, "stop");
+		handler.removeCallbacks(evaluator);
+		if ( eventBus.isRegistered(instance) )
+			eventBus.unregister(instance);
+		long now = SystemClock.elapsedRealtime();
+		residency[state.ordinal()] += now - stateSince;
+		stateSince = now;
+		for ( SensingPowerState s : SensingPowerState.values() ) {
+			Log.d(TAG, "Sensing state " + s.getName() + " entered " + getEntries(s) + " times, for " + getResidencyMillis(s, now) + "ms");
+		}
+		Log.d(TAG, "Sensing state transitions " + transitions + " debounced " + debounced);
+		instance = null;
+		state = SensingPowerState.DRIVING;
+	}
+
+	public static SensingPowerState getState() {
+		return state;
+	}
+
+	/**
+	 * State inputs point to now, before dwell time
+	 */
+	static SensingPowerState chooseState(SensingPowerState current, ActivityStatus activity, boolean isCarMode,
+			boolean isRadarConnected, float speedMps) {
+		if ( isCarMode )
+			return SensingPowerState.CAR_DOCKED;
+		// radar is powered from the car, a stop in traffic isn't parking
+		if ( isRadarConnected || speedMps >= DRIVING_SPEED_MPS )
+			return SensingPowerState.DRIVING;
+		switch ( activity ) {
+		case DRIVING:
+		case BICYCLE:
+			return SensingPowerState.DRIVING;
+		case FOOT:
+			return SensingPowerState.WALKING;
+		case STILL:
+			return SensingPowerState.PARKED;
+		case UNAVAILABLE:
+			// no detector, nothing can be turned off safely
+			return SensingPowerState.DRIVING;
+		default:
+			return ( current == SensingPowerState.CAR_DOCKED ? SensingPowerState.DRIVING : current );
+		}
+	}
+
+	/**
+	 * Re-evaluates state, entering it if it has held for its dwell time, or scheduling re-evaluation when it will have
+	 */
+	private static void evaluate() {
+		if ( instance == null )
+			return;
+		handler.removeCallbacks(evaluator);
+		long now = SystemClock.elapsedRealtime();
+		SensingPowerState next = chooseState(state, PhoneActivityDetector.getActivityStatus(), PhoneActivityDetector.getIsCarMode(),
+				RadarManager.isRadarConnected(), RadarLocationManager.getEffectiveSpeed());
+		if ( next == state ) {
+			if ( candidate != null )
+				debounced++;
+			candidate = null;
+			return;
+		}
+		if ( next != candidate ) {
+			if ( candidate != null )
+				debounced++;
+			candidate = next;
+			candidateSince = now;
+		}
+		long wait = candidateSince + next.getDwellMillis() - now;
+		if ( wait > 0 ) {
+			handler.postDelayed(evaluator, wait);
+			return;
+		}
+		setState(next, now);
+	}
+
+	private static void setState(SensingPowerState next, long now) {
+		SensingPowerState previous = state;
+		residency[previous.ordinal()] += now - stateSince;
+		entries[next.ordinal()]++;
+		transitions++;
+		stateSince = now;
+		candidate = null;
+		state = next;
+		Log.i(TAG, "Sensing state " + previous.getName() + " -> " + next.getName());
+		PhoneActivityDetector.setActivityUpdateInterval(next.getActivityUpdateIntervalMillis());
+		eventBus.postSticky(new EventSensingStateChanged(next, previous));
+	}
+
+	/**
+	 * Time spent in state since init, including current stay
+	 */
+	public static long getResidencyMillis(SensingPowerState s) {
+		return getResidencyMillis(s, SystemClock.elapsedRealtime());
+	}
+
+	private static long getResidencyMillis(SensingPowerState s, long now) {
+		return residency[s.ordinal()] + ( s == state ? now - stateSince : 0L );
+	}
+
+	public static long getEntries(SensingPowerState s) {
+		return entries[s.ordinal()];
+	}
+
+	public static long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * Candidate states dropped before their dwell time was up
+	 */
+	public static long getDebounced() {
+		return debounced;
+	}
+
+	/**
+	 * Input change listeners
+	 */
+	public void onEventMainThread(PhoneActivityDetector.EventActivityChanged event) {
+		evaluate();
+	}
+
+	public void onEventMainThread(PhoneActivityDetector.EventCarModeChange event) {
+		evaluate();
+	}
+
+	public void onEventMainThread(CobraRadarEvents.EventDeviceConnected event) {
+		evaluate();
+	}
+
+	public void onEventMainThread(CobraRadarEvents.EventDeviceDisconnected event) {
+		evaluate();
+	}
+
+	/**
+	 * What the phone is doing, and what runs while it does
+	 */
+	public enum SensingPowerState {
+		/**
+		 * Still and no radar connected, only activity detection and slow device scans run
+		 */
+		PARKED("Parked", 120000L, 120000L, 4, false),
+		WALKING("Walking", 60000L, 60000L, 2, false),
+		DRIVING("Driving", 0L, 60000L, 1, true),
+		/**
+		 * Car mode is a definite signal, entered at once
+		 */
+		CAR_DOCKED("Car docked", 0L, 120000L, 1, true);
+
+		private final String name;
+		private final long dwellMillis;
+		private final long activityUpdateIntervalMillis;
+		private final int scanIntervalMultiplier;
+		private final boolean isSensingAllowed;
+
+		private SensingPowerState(String name, long dwellMillis, long activityUpdateIntervalMillis,
+				int scanIntervalMultiplier, boolean isSensingAllowed) {
+			this.name = name;
+			this.dwellMillis = dwellMillis;
+			this.activityUpdateIntervalMillis = activityUpdateIntervalMillis;
+			this.scanIntervalMultiplier = scanIntervalMultiplier;
+			this.isSensingAllowed = isSensingAllowed;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Inputs must point to this state this long before it's entered
+		 */
+		public long getDwellMillis() {
+			return dwellMillis;
+		}
+
+		public long getActivityUpdateIntervalMillis() {
+			return activityUpdateIntervalMillis;
+		}
+
+		/**
+		 * Device scan interval is stretched by this
+		 */
+		public int getScanIntervalMultiplier() {
+			return scanIntervalMultiplier;
+		}
+
+		/**
+		 * TRUE if GPS, speed limit lookups and threat history prefetch may run
+		 */
+		public boolean isSensingAllowed() {
+			return isSensingAllowed;
+		}
+	}
+
+	/**
+	 * Event to be dispatched on event bus whenever sensing state changes, sticky
+	 */
+	public static class EventSensingStateChanged {
+
+		public EventSensingStateChanged(SensingPowerState state, SensingPowerState previous) {
+			this.state = state;
+			this.previous = previous;
+		}
+
+		public SensingPowerState state;
+		/**
+		 * null on init
+		 */
+		public SensingPowerState previous;
+	}
+}
@@ -4,6 +4,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.media.SoundPool;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.greatnowhere.radar.R;
@@ -23,6 +24,21 @@ public class SpeedLimitChecker {
 	
 	private static final float SOUND_MAX_PITCH = 1.5f;
 	
+	/**
+	 * Once warning is on, speed must drop this far below warning threshold to end it, kph
+	 */
+	public static final float EXIT_HYSTERESIS_KPH = 3f;
+	/**
+	 * How long speed must stay over threshold before warning starts, and back under it before warning ends
+	 */
+	public static final long ENTER_DWELL_MILLIS = 1000L;
+	public static final long EXIT_DWELL_MILLIS = 2000L;
+	/**
+	 * Alert repeat interval just over threshold, and at {@link #MAX_OVERSPEED} over it
+	 */
+	public static final long MAX_ALERT_INTERVAL_MILLIS = 3000L;
+	public static final long MIN_ALERT_INTERVAL_MILLIS = 500L;
+	
 	private static EventBus eventBus;
 	private static Context ctx;
 	private static SpeedLimitChecker instance;
@@ -35,20 +51,54 @@ public class SpeedLimitChecker {
 	/**
 	 * Current speed and speed limit, both in m/s
 	 */
-	private float currentSpeed;
-	private float speedLimit;
+	private volatile float currentSpeed;
+	private volatile float speedLimit;
+	private volatile LocationInfoLookupManager.EventSpeedLimitChange speedLimitEvent;
+	private LatestLocation.Subscription locationSubscription;
+	
+	/**
+	 * Preferences, cached so a fix doesn't read them
+	 */
+	private volatile boolean isWarnEnabled;
+	private volatile float warnMarginKph;
+	
+	/**
+	 * Only used on GPS thread
+	 */
+	private final OverSpeedEvaluator evaluator = new OverSpeedEvaluator(EXIT_HYSTERESIS_KPH, ENTER_DWELL_MILLIS, EXIT_DWELL_MILLIS,
+			MAX_ALERT_INTERVAL_MILLIS, MIN_ALERT_INTERVAL_MILLIS, MAX_OVERSPEED);
+	
+	/**
+	 * Re-check on 0.5m/s (~2kph) speed change, at most 4 times and at least once a second, so dwell times and
+	 * alert repeats are timed closely enough
+	 */
+	private static final LatestLocation.Threshold SPEED_THRESHOLD = new LatestLocation.Threshold(0.5f, 0f, 250L, 1000L);
 	
 	public static void init(Context c) {
 		ctx = c;
 		eventBus = EventBus.getDefault();
 		instance = new SpeedLimitChecker();
 		eventBus.register(instance);
+		instance.speedLimitEvent = eventBus.getStickyEvent(LocationInfoLookupManager.EventSpeedLimitChange.class);
+		if ( instance.speedLimitEvent != null && instance.speedLimitEvent.limit != null )
+			instance.speedLimit = instance.speedLimitEvent.limit.floatValue();
+		instance.readPreferences();
+		instance.locationSubscription = RadarLocationManager.getLatest().subscribe(new LatestLocation.Subscriber() {
+			public void onLocationUpdate(LatestLocation location) {
+				if ( instance != null )
+					instance.onLocationUpdate(location);
+			}
+		}, SPEED_THRESHOLD);
         instance.soundPool = new SoundPool(1, AlertAudioManager.OUTPUT_STREAM, 0);
         instance.alertSoundId = instance.soundPool.load(ctx, R.raw.threat, 1);
 	}
 	
 	public static void stop() {
 		if ( instance != null ) {
+			RadarLocationManager.getLatest().unsubscribe(instance.locationSubscription);
+			instance.stopAudibleWarning();
+			Log.i(TAG, "Over speed alerts " + instance.evaluator.getAlerts() + ", held back by dwell time "
+					+ instance.evaluator.getSuppressed());
 			instance.soundPool.release();
 			eventBus.unregister(instance);
 			instance = null;
@@ -56,11 +106,11 @@ public class SpeedLimitChecker {
 	}
 	
 	/**
-	 * Returns TRUE if speed limit should be checked as per preferences
-	 * @return
+	 * Caches whether speed limit should be checked as per preferences, and warning margin
 	 */
-	private boolean isPreferenceSet() {
-		return Preferences.isWarnOverSpeed() && Preferences.isLookupSpeedLimit() && RadarLocationManager.isReady();
+	private void readPreferences() {
+		isWarnEnabled = Preferences.isWarnOverSpeed() && Preferences.isLookupSpeedLimit();
+		warnMarginKph = Preferences.getWarnOverSpeedLimit();
 	}
 	
 	/**
@@ -73,59 +123,46 @@ public class SpeedLimitChecker {
 	
 	public void onEventAsync(Preferences.PreferenceOverSpeedSettingsChangedEvent event) {
 		Log.i(TAG, "Got preference changed event");
-		setAudibleWarning();
+		readPreferences();
 	}
 	
+	public void onEventAsync(Preferences.PreferenceLocationLookupSettingsChangedEvent event) {
+		readPreferences();
+	}
+	
+	/**
+	 * New limit takes effect on next fix, at most a second later
+	 * @param event
+	 */
 	public void onEventAsync(LocationInfoLookupManager.EventSpeedLimitChange event) {
 		Log.i(TAG, "Got speed limit change event");
 		speedLimit = ( event.limit != null ? event.limit.floatValue() : 0 );
-		setAudibleWarning();
-	}
-	
-	public void onEventAsync(RadarLocationManager.LocationChanged event) {
-		Log.i(TAG, "Got location change event");
-		currentSpeed = event.loc.getSpeed();
-		setAudibleWarning();
+		speedLimitEvent = event;
 	}
 	
-	private synchronized void setAudibleWarning() {
-		
+	private void onLocationUpdate(LatestLocation location) {
+		float speed = RadarLocationManager.getEffectiveSpeed();
+		currentSpeed = ( speed < 0 ? location.getSpeed() : speed );
+		evaluator.setMargin(warnMarginKph);
+		int action = evaluator.update(currentSpeed, ( isWarnEnabled ? speedLimit : 0f ), SystemClock.elapsedRealtime());
 		try {
-			RadarLocationManager.LocationChanged locationEvent = eventBus.getStickyEvent(RadarLocationManager.LocationChanged.class);
-			LocationInfoLookupManager.EventSpeedLimitChange speedLimitEvent = eventBus.getStickyEvent(LocationInfoLookupManager.EventSpeedLimitChange.class);
-			if ( locationEvent == null ) {
-				Log.w(TAG,"Location not known, cannot warn overspeed");
-				stopAudibleWarning();
-				return;
-			}
-			if ( speedLimitEvent == null || speedLimitEvent.limit == null ) {
-				Log.w(TAG,"Speed limit not known, cannot warn overspeed");
-				stopAudibleWarning();
-				return;
-			}
-			float currentSpeed = locationEvent.getCurrentSpeedKph();
-			int speedLimit = speedLimitEvent.getKPH();
-					
-			if (  ( currentSpeed - speedLimit) > Preferences.getWarnOverSpeedLimit() && isPreferenceSet() ) {
-				if ( !isOverSpeedAlertPlaying.get() )
+			if ( action == OverSpeedEvaluator.PLAY ) {
+				if ( !isOverSpeedAlertPlaying.getAndSet(true) )
 					AlertAudioManager.setOurAlertVolume();
-				soundPool.play(alertSoundId, 1f, 1f, 1, 0, getAlertPitch( currentSpeed - speedLimit - Preferences.getWarnOverSpeedLimit() ));
-				isOverSpeedAlertPlaying.set(true);
-			} else {
+				soundPool.play(alertSoundId, 1f, 1f, 1, 0, getAlertPitch(evaluator.getOverspeedKph()));
+			} else if ( action == OverSpeedEvaluator.STOP ) {
 				stopAudibleWarning();
 			}
 		} catch (Exception ex) {
 			Log.w(TAG,ex);
 		}
-		
 	}
 	
-	private synchronized void stopAudibleWarning() {
-		if ( isOverSpeedAlertPlaying.get() ) {
+	private void stopAudibleWarning() {
+		if ( isOverSpeedAlertPlaying.getAndSet(false) ) {
 			soundPool.stop(alertSoundId);
 			AlertAudioManager.restoreOldAlertVolume();
 		}
-		isOverSpeedAlertPlaying.set(false);
 	}
 	
 	/**
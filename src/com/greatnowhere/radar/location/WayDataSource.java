@@ -0,0 +1,20 @@
+package com.greatnowhere.radar.location;
+
+import android.location.Location;
+
+import com.octo.android.robospice.request.listener.RequestListener;
+import com.xapi.models.Response;
+
+/**
+ * Where way lookups get OSM ways from. {@link OSMWayDataSource} queries the OSM service, {@link LocalWayDataSource}
+ * answers from ways held in memory and stands in for the service in tests
+ */
+public interface WayDataSource {
+
+	/**
+	 * Looks up ways around location. Listener may be called before this returns
+	 */
+	void getWay(Location l, RequestListener<Response> listener);
+
+	void stop();
+}
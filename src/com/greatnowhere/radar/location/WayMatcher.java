@@ -0,0 +1,275 @@
+package com.greatnowhere.radar.location;
+
+import android.location.Location;
+
+import com.xapi.models.Node;
+import com.xapi.models.Way;
+
+/**
+ * Incremental map matcher. Keeps a probability for each candidate way, carried from fix to fix (hidden Markov model,
+ * forward step only): staying on a way is likelier than switching, and each fix weighs candidates by distance to their
+ * nearest segment and by how well that segment's direction fits the heading. Matched way changes only when another way
+ * is confidently the most likely one, so junctions and parallel roads don't make the match flip back and forth.
+ * Not thread safe, one instance per lookup source
+ */
+class WayMatcher {
+
+	static final int MAX_CANDIDATES = 8;
+	/**
+	 * GPS error, meters
+	 */
+	static final double DISTANCE_SIGMA_M = 10d;
+	/**
+	 * Heading error against road direction, degrees
+	 */
+	static final double HEADING_SIGMA_DEG = 25d;
+	/**
+	 * Heading weight never drops below this, road geometry can be coarse
+	 */
+	static final double HEADING_FLOOR = 0.05d;
+	/**
+	 * Below this speed heading is noise and is ignored, m/s
+	 */
+	static final float HEADING_MIN_SPEED_MPS = 2f;
+	/**
+	 * Probability mass that moves to other ways between fixes
+	 */
+	static final double SWITCH_PROBABILITY = 0.2d;
+	/**
+	 * Another way must reach this probability to replace matched way, any way this much to be matched from none
+	 */
+	static final double SWITCH_CONFIDENCE = 0.75d;
+	static final double MATCH_CONFIDENCE = 0.5d;
+	/**
+	 * Updates with no candidates before match is dropped
+	 */
+	static final int MAX_EMPTY_UPDATES = 3;
+
+	private static final double METERS_PER_DEGREE = 111320d;
+
+	// candidates of current fix
+	private final long[] ids = new long[MAX_CANDIDATES];
+	private final Way[] ways = new Way[MAX_CANDIDATES];
+	private final double[] weights = new double[MAX_CANDIDATES];
+	private int count = 0;
+
+	// carried probabilities
+	private long[] priorIds = new long[MAX_CANDIDATES];
+	private double[] priors = new double[MAX_CANDIDATES];
+	private int priorCount = 0;
+	private long[] nextIds = new long[MAX_CANDIDATES];
+	private double[] nextPriors = new double[MAX_CANDIDATES];
+	private final double[] bearing = new double[1];
+
+	private Way matched;
+	private double confidence = 0d;
+	private int emptyUpdates = 0;
+	private boolean isChanged = false;
+
+	private long updates = 0;
+	private long changes = 0;
+	private long suppressed = 0;
+
+	/**
+	 * Starts collecting candidates for a fix
+	 */
+	void begin() {
+		count = 0;
+	}
+
+	/**
+	 * Adds candidate way with its nearest segment's distance and direction. Further segments of same way are
+	 * kept only if nearer
+	 */
+	void addCandidate(Way way, long wayId, float distanceMeters, float segmentBearing, float heading, boolean hasHeading) {
+		double w = Math.exp(-0.5d * sq(distanceMeters / DISTANCE_SIGMA_M));
+		if ( hasHeading ) {
+			// roads are matched in either direction
+			double diff = Math.abs(heading - segmentBearing) % 180d;
+			diff = Math.min(diff, 180d - diff);
+			w *= Math.max(HEADING_FLOOR, Math.exp(-0.5d * sq(diff / HEADING_SIGMA_DEG)));
+		}
+		for ( int i = 0; i < count; i++ ) {
+			if ( ids[i] == wayId ) {
+				if ( w > weights[i] ) {
+					weights[i] = w;
+					ways[i] = way;
+				}
+				return;
+			}
+		}
+		int slot = count;
+		if ( count == MAX_CANDIDATES ) {
+			slot = 0;
+			for ( int i = 1; i < count; i++ ) {
+				if ( weights[i] < weights[slot] )
+					slot = i;
+			}
+			if ( weights[slot] >= w )
+				return;
+		} else {
+			count++;
+		}
+		ids[slot] = wayId;
+		ways[slot] = way;
+		weights[slot] = w;
+	}
+
+	/**
+	 * Adds candidate way with node geometry, measuring its nearest segment from fix
+	 * @return false if way has no usable geometry
+	 */
+	boolean addCandidate(Way way, Location fix) {
+		double d = nearestSegment(way, fix.getLatitude(), fix.getLongitude(), bearing);
+		if ( d < 0 || way.id == null )
+			return false;
+		addCandidate(way, way.id, (float) d, (float) bearing[0], fix.getBearing(), isHeadingUsable(fix));
+		return true;
+	}
+
+	/**
+	 * Distance from point to nearest segment of way
+	 * @param bearing if not null, filled in with that segment's direction, degrees
+	 * @return meters, -1 if way has no usable geometry
+	 */
+	static double nearestSegment(Way way, double lat, double lng, double[] bearing) {
+		if ( way == null || way.nodes == null || way.nodes.size() < 2 )
+			return -1d;
+		double metersPerLngDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+		double best = Double.MAX_VALUE;
+		for ( int i = 1; i < way.nodes.size(); i++ ) {
+			Node a = way.nodes.get(i - 1).node;
+			Node b = way.nodes.get(i).node;
+			if ( a == null || b == null || a.lat == null || a.lon == null || b.lat == null || b.lon == null )
+				return -1d;
+			double y1 = ( a.lat - lat ) * METERS_PER_DEGREE;
+			double x1 = ( a.lon - lng ) * metersPerLngDegree;
+			double y2 = ( b.lat - lat ) * METERS_PER_DEGREE;
+			double x2 = ( b.lon - lng ) * metersPerLngDegree;
+			double d = OfflineSpeedLimits.distanceToOrigin(x1, y1, x2, y2);
+			if ( d < best ) {
+				best = d;
+				if ( bearing != null )
+					bearing[0] = ( Math.toDegrees(Math.atan2(x2 - x1, y2 - y1)) + 360d ) % 360d;
+			}
+		}
+		return best;
+	}
+
+	static boolean isHeadingUsable(Location fix) {
+		return fix.hasBearing() && fix.hasSpeed() && fix.getSpeed() >= HEADING_MIN_SPEED_MPS;
+	}
+
+	/**
+	 * Runs forward step over collected candidates
+	 * @return true if matched way changed, see {@link #getMatched()}
+	 */
+	boolean update() {
+		updates++;
+		isChanged = false;
+		if ( count == 0 ) {
+			priorCount = 0;
+			if ( matched != null && ++emptyUpdates >= MAX_EMPTY_UPDATES )
+				setMatched(null, 0d);
+			else if ( matched != null )
+				confidence = 0d;
+			return isChanged;
+		}
+		emptyUpdates = 0;
+		double spread = ( priorCount == 0 ? 1d : SWITCH_PROBABILITY ) / count;
+		double total = 0d;
+		for ( int i = 0; i < count; i++ ) {
+			double prior = spread;
+			for ( int j = 0; j < priorCount; j++ ) {
+				if ( priorIds[j] == ids[i] ) {
+					prior += ( 1d - SWITCH_PROBABILITY ) * priors[j];
+					break;
+				}
+			}
+			nextIds[i] = ids[i];
+			nextPriors[i] = prior * weights[i];
+			total += nextPriors[i];
+		}
+		if ( total <= 0d ) {
+			// every candidate improbable, start over from them alone
+			total = 0d;
+			for ( int i = 0; i < count; i++ ) {
+				nextPriors[i] = weights[i] + Double.MIN_VALUE;
+				total += nextPriors[i];
+			}
+		}
+		int best = 0;
+		int current = -1;
+		for ( int i = 0; i < count; i++ ) {
+			nextPriors[i] /= total;
+			if ( nextPriors[i] > nextPriors[best] )
+				best = i;
+			if ( matched != null && ids[i] == matched.id )
+				current = i;
+		}
+		long[] swapIds = priorIds;
+		double[] swapPriors = priors;
+		priorIds = nextIds;
+		priors = nextPriors;
+		nextIds = swapIds;
+		nextPriors = swapPriors;
+		priorCount = count;
+
+		if ( current == best ) {
+			// same way, keep newest copy of it
+			matched = ways[best];
+			confidence = priors[best];
+		} else if ( priors[best] >= ( matched == null ? MATCH_CONFIDENCE : SWITCH_CONFIDENCE ) ) {
+			setMatched(ways[best], priors[best]);
+		} else {
+			suppressed++;
+			confidence = ( current >= 0 ? priors[current] : 0d );
+		}
+		return isChanged;
+	}
+
+	private void setMatched(Way way, double c) {
+		matched = way;
+		confidence = c;
+		isChanged = true;
+		changes++;
+	}
+
+	Way getMatched() {
+		return matched;
+	}
+
+	/**
+	 * Probability of matched way at last update, 0 if none matched or it wasn't among candidates
+	 */
+	double getConfidence() {
+		return confidence;
+	}
+
+	void reset() {
+		count = 0;
+		priorCount = 0;
+		matched = null;
+		confidence = 0d;
+		emptyUpdates = 0;
+	}
+
+	long getUpdates() {
+		return updates;
+	}
+
+	long getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Updates where a different way was likeliest but not confidently so
+	 */
+	long getSuppressed() {
+		return suppressed;
+	}
+
+	private static double sq(double d) {
+		return d * d;
+	}
+}
@@ -1,16 +1,11 @@
 package com.greatnowhere.radar.services;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Date;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
 
 import android.app.Service;
 import android.content.Intent;
-import android.os.Environment;
 import android.os.IBinder;
 import android.text.format.DateFormat;
 import android.util.Log;
@@ -21,6 +16,7 @@ import com.greatnowhere.radar.MainRadarActivity;
 import com.greatnowhere.radar.config.Preferences;
 import com.greatnowhere.radar.location.LocationInfoLookupManager;
 import com.greatnowhere.radar.location.PhoneActivityDetector;
+import com.greatnowhere.radar.location.SensingPowerManager;
 import com.greatnowhere.radar.location.RadarLocationManager;
 import com.greatnowhere.radar.location.SpeedLimitChecker;
 import com.greatnowhere.radar.messaging.ConnectivityStatus;
@@ -49,10 +45,9 @@ public class CollectorService extends Service {
     private EventBus eventBus;
 	private boolean isRadarInitialized = false;
     
-    private Queue<String> screenLog = new ConcurrentLinkedQueue<String>();
-    private String screenLogString = "";
-    
     private static CollectorService instance;
+    private static final FileLogWriter fileLog = new FileLogWriter();
+    private static final ScreenLog screenLog = new ScreenLog(300);
     
     public int onStartCommand(Intent intent, int flags, int startId) {
     	super.onStartCommand(intent, flags, startId);
@@ -84,6 +79,8 @@ public class CollectorService extends Service {
     	// Initialize preferences
     	Preferences.init(getApplicationContext());
     	
+    	fileLog.start();
+    	
 	    // Initialize alerts audio manager
 	    AlertAudioManager.init(getApplicationContext());
 	    
@@ -96,6 +93,9 @@ public class CollectorService extends Service {
 	    // Initialize activity detector
 	    PhoneActivityDetector.init(getApplicationContext());
 	    
+	    // Sensing power state, before anything that follows it
+	    SensingPowerManager.init();
+	    
 	    // ongoing notifications
 	    NotificationBuilder.init(getApplicationContext());
 	    
@@ -126,12 +126,16 @@ public class CollectorService extends Service {
         RadarManager.stop();
         TTSManager.stop();
         ThreatManager.stop();
+	    SensingPowerManager.stop();
 	    PhoneActivityDetector.stop();
         RadarLocationManager.destroy();
         RadarScanner.destroy();
         LocationInfoLookupManager.destroy();
         SpeedLimitChecker.stop();
         radarMessageHandler.unRegister();
+        Log.d(TAG, "File log lines written " + fileLog.getLinesWritten() + " dropped " + fileLog.getLinesDropped() 
+        		+ " rotations " + fileLog.getRotations());
+        fileLog.stop();
         isRadarInitialized = false;
         eventBus = null;
     }
@@ -160,20 +164,14 @@ public class CollectorService extends Service {
 		return ThreatManager.getCurrentThreatCredibility();
 	}
 	
-	public synchronized static String getLog() {
-		if ( instance != null )
-			return instance.screenLogString;
-		return "";
-	}
-	
-	private synchronized static String getLogAsString() {
-    	if ( instance == null )
-    		return null;
-		String log = "";
-		for ( String s : instance.screenLog ) {
-			log = s + "\n" + log;
-		}
-		return log;
+	/**
+	 * Copies screen log lines newer than given sequence number, oldest first
+	 * @param afterSequence sequence number returned by previous call, 0 for all lines
+	 * @param out
+	 * @return sequence number of newest line
+	 */
+	public static long copyLogSince(long afterSequence, List<String> out) {
+		return screenLog.copySince(afterSequence, out);
 	}
 
 	private static void addLogMessage(String msg) {
@@ -181,28 +179,24 @@ public class CollectorService extends Service {
 			return;
     	// generate timestamp
     	String tsMsg = DateFormat.format("M/d HH:mm:ss", new Date()).toString() + " " + msg;
-    	instance.screenLog.add(tsMsg);
-    	if ( instance.screenLog.size() > Preferences.getScreenLogScrollBackLimit() )
-    		instance.screenLog.remove();
-    	instance.screenLogString = getLogAsString();
-    	//log.setText(tsMsg + log.getText());
+    	screenLog.setCapacity(Preferences.getScreenLogScrollBackLimit());
+    	screenLog.add(tsMsg);
     	addFileLogMessage(tsMsg);
     	instance.eventBus.post(new MainRadarActivity.UIRefreshLogEvent());
     }
     
+    /**
+     * Queues line for {@link FileLogWriter}, file is written on its own thread
+     * @param msg
+     */
     private static void addFileLogMessage(String msg) {
     	if ( Preferences.getLogFileName().isEmpty() )
     		return;
-    	try {
-    		  File logFile = new File(
-    				  Environment.getExternalStorageDirectory(), 
-    				  Preferences.getLogFileName());
-    		  OutputStream os = new FileOutputStream(logFile, true);
-    		  os.write((msg + "\n").getBytes());
-    		  os.close();
-    	} catch (Exception e) {
-    		  e.printStackTrace();
-    	}
+    	fileLog.offer(msg);
+    }
+    
+    public static long getFileLogLinesDropped() {
+    	return fileLog.getLinesDropped();
     }
     
     /**
@@ -0,0 +1,270 @@
+package com.greatnowhere.radar.services;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Environment;
+import android.util.Log;
+
+import com.greatnowhere.radar.config.Preferences;
+
+/**
+ * Append-only log file written by a single background thread. Callers only offer a line to a bounded
+ * lock-free queue; when it is full the line is dropped and counted. The writer keeps the file channel open,
+ * batches lines through a reused buffer, forces to storage periodically and rotates the file by size and age,
+ * keeping {@link #KEEP_FILES} old files as name.1, name.2...
+ * Only the thread of the current run writes; a stopped run drains the queue unless a new run has started, which
+ * first waits for the old one to close its file
+ */
+class FileLogWriter implements Runnable {
+
+	private static final String TAG = FileLogWriter.class.getCanonicalName();
+
+	/**
+	 * Max queued lines, further lines are dropped
+	 */
+	static final int QUEUE_CAPACITY = 4096;
+	static final int BUFFER_BYTES = 16 * 1024;
+	/**
+	 * Written data is forced to storage at most this long after it was written
+	 */
+	static final long FORCE_INTERVAL_MS = 5000L;
+	static final long ROTATE_BYTES = 1024L * 1024L;
+	/**
+	 * Rotate after file was written to this long by this process
+	 */
+	static final long ROTATE_AGE_MS = 24L * 3600L * 1000L;
+	static final int KEEP_FILES = 3;
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	/**
+	 * Thread of current run, null when stopped
+	 */
+	private volatile Thread thread;
+	/**
+	 * Thread of last stopped run, may still be draining
+	 */
+	private Thread stopped;
+
+	private File file;
+	private FileOutputStream stream;
+	private FileChannel channel;
+	private long fileOpened;
+	private long lastForce;
+	private boolean isForcePending = false;
+
+	private final AtomicLong linesDropped = new AtomicLong();
+	private final AtomicLong linesWritten = new AtomicLong();
+	private final AtomicLong rotations = new AtomicLong();
+
+	synchronized void start() {
+		if ( thread != null )
+			return;
+		Thread t = new Thread(this, TAG);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		// old run stops draining once it sees a new one, buffer and file must not be shared with it
+		thread = t;
+		Thread old = stopped;
+		stopped = null;
+		if ( old != null ) {
+			LockSupport.unpark(old);
+			try {
+				old.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		t.start();
+	}
+
+	/**
+	 * Stops writer after it writes out what is queued
+	 */
+	synchronized void stop() {
+		Thread t = thread;
+		thread = null;
+		if ( t != null ) {
+			stopped = t;
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Queues line for writing. Never blocks
+	 * @return false if queue was full and line was dropped
+	 */
+	boolean offer(String line) {
+		int n = queued.incrementAndGet();
+		if ( n > QUEUE_CAPACITY ) {
+			queued.decrementAndGet();
+			linesDropped.incrementAndGet();
+			return false;
+		}
+		queue.offer(line);
+		// writer only parks on empty queue, so only first line needs to wake it up
+		if ( n == 1 ) {
+			Thread t = thread;
+			if ( t != null )
+				LockSupport.unpark(t);
+		}
+		return true;
+	}
+
+	public void run() {
+		try {
+			Thread self = Thread.currentThread();
+			while ( thread == self || ( thread == null && !queue.isEmpty() ) ) {
+				String line = queue.poll();
+				if ( line == null ) {
+					flushBuffer();
+					if ( isForcePending && System.currentTimeMillis() - lastForce >= FORCE_INTERVAL_MS )
+						force();
+					if ( thread == self )
+						LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MS));
+					continue;
+				}
+				queued.decrementAndGet();
+				write(line);
+			}
+			flushBuffer();
+			force();
+		} catch (Exception e) {
+			Log.e(TAG, "Log file writer failed", e);
+		} finally {
+			close();
+		}
+	}
+
+	private void write(String line) {
+		byte[] bytes;
+		try {
+			bytes = line.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = line.getBytes();
+		}
+		if ( bytes.length + 1 > buffer.remaining() )
+			flushBuffer();
+		if ( bytes.length + 1 > buffer.capacity() ) {
+			// longer than whole buffer, write directly
+			writeOut(ByteBuffer.wrap(bytes));
+			writeOut(ByteBuffer.wrap(NEWLINE));
+		} else {
+			buffer.put(bytes).put(NEWLINE[0]);
+		}
+		linesWritten.incrementAndGet();
+	}
+
+	private void flushBuffer() {
+		if ( buffer.position() == 0 )
+			return;
+		buffer.flip();
+		writeOut(buffer);
+		buffer.clear();
+	}
+
+	private void writeOut(ByteBuffer b) {
+		try {
+			if ( !ensureOpen() )
+				return;
+			while ( b.hasRemaining() ) {
+				channel.write(b);
+			}
+			isForcePending = true;
+			if ( channel.size() >= ROTATE_BYTES || System.currentTimeMillis() - fileOpened >= ROTATE_AGE_MS )
+				rotate();
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write log file " + file, e);
+			close();
+		}
+	}
+
+	/**
+	 * Opens log file, reopening it if its name was changed in preferences
+	 * @return false if file logging is off or file can't be opened
+	 */
+	private boolean ensureOpen() throws IOException {
+		String name = Preferences.getLogFileName();
+		if ( name == null || name.length() == 0 ) {
+			close();
+			return false;
+		}
+		File f = new File(Environment.getExternalStorageDirectory(), name);
+		if ( channel != null && f.equals(file) )
+			return true;
+		close();
+		file = f;
+		stream = new FileOutputStream(f, true);
+		channel = stream.getChannel();
+		fileOpened = System.currentTimeMillis();
+		return true;
+	}
+
+	private void rotate() throws IOException {
+		force();
+		File f = file;
+		close();
+		new File(f.getPath() + "." + KEEP_FILES).delete();
+		for ( int i = KEEP_FILES - 1; i >= 1; i-- ) {
+			File old = new File(f.getPath() + "." + i);
+			if ( old.exists() )
+				old.renameTo(new File(f.getPath() + "." + ( i + 1 )));
+		}
+		if ( !f.renameTo(new File(f.getPath() + ".1")) )
+			Log.w(TAG, "Failed to rotate log file " + f);
+		rotations.incrementAndGet();
+	}
+
+	private void force() {
+		lastForce = System.currentTimeMillis();
+		isForcePending = false;
+		if ( channel == null )
+			return;
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to sync log file", e);
+		}
+	}
+
+	private void close() {
+		if ( stream != null ) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+			}
+		}
+		stream = null;
+		channel = null;
+	}
+
+	long getLinesDropped() {
+		return linesDropped.get();
+	}
+
+	long getLinesWritten() {
+		return linesWritten.get();
+	}
+
+	long getRotations() {
+		return rotations.get();
+	}
+
+	int getQueuedCount() {
+		return queued.get();
+	}
+}
@@ -9,7 +9,9 @@ import com.greatnowhere.radar.config.Preferences.PreferenceOngoingNotificationsC
 import com.greatnowhere.radar.location.PhoneActivityDetector;
 import com.greatnowhere.radar.location.PhoneActivityDetector.ActivityStatus;
 import com.greatnowhere.radar.location.PhoneActivityDetector.EventActivityChanged;
-import com.greatnowhere.radar.location.PhoneActivityDetector.EventCarModeChange;
+import com.greatnowhere.radar.location.SensingPowerManager;
+import com.greatnowhere.radar.location.SensingPowerManager.EventSensingStateChanged;
+import com.greatnowhere.radar.location.SensingPowerManager.SensingPowerState;
 import com.greatnowhere.radar.util.AbstractEventBusListener;
 
 /**
@@ -37,22 +39,30 @@ public class RadarScanner extends AbstractEventBusListener {
 	}
 	
 	public static boolean isScanAllowed() {
+		SensingPowerState state = SensingPowerManager.getState();
 		boolean runScan = 
 				( Preferences.isScanForDevice() ) && // if scan is enabled at all
 				( Preferences.getDeviceScanInterval() > 0 ) && // and scan interval is defined
-				( Preferences.isScanForDeviceInCarModeOnly() ? PhoneActivityDetector.getIsCarMode() : true ) && // car mode
-				// driving mode
+				( Preferences.isScanForDeviceInCarModeOnly() ? state == SensingPowerState.CAR_DOCKED : true ) && // car mode
+				// driving mode, as detected; sensing state is driving also while activity is unknown
 				( Preferences.isScanForDeviceInDrivingModeOnly() ? 
 						PhoneActivityDetector.getActivityStatus() == ActivityStatus.DRIVING : true);
 		return runScan;
 	}
 	
+	/**
+	 * Scan interval, seconds, stretched while parked or walking
+	 */
+	public static int getScanInterval() {
+		return Preferences.getDeviceScanInterval() * SensingPowerManager.getState().getScanIntervalMultiplier();
+	}
+	
 	// decide whether to run scanner
 	public static synchronized void scan() {
 		boolean scanAllowed = isScanAllowed(); 
 		if ( scanAllowed ) {
 			Log.d(TAG,"scan allowed, starting");
-			RadarScanManager.scan(scanAllowed, Preferences.getDeviceScanInterval());
+			RadarScanManager.scan(scanAllowed, getScanInterval());
 		} else {
 			Log.d(TAG,"scan prohibited, stopping");
 			RadarScanManager.stop();
@@ -73,13 +83,13 @@ public class RadarScanner extends AbstractEventBusListener {
 		scan();
 	}
 	
-	// Phone activity changed listener
-	public void onEventAsync(EventActivityChanged event) {
+	// Sensing state changed listener
+	public void onEventAsync(EventSensingStateChanged event) {
 		scan();
 	}
 
-	// Car mode changed listener
-	public void onEventAsync(EventCarModeChange event) {
+	// Phone activity changed listener, for driving mode only scans
+	public void onEventAsync(EventActivityChanged event) {
 		scan();
 	}
 
@@ -0,0 +1,86 @@
+package com.greatnowhere.radar.services;
+
+import java.util.List;
+
+/**
+ * Fixed capacity ring of log lines. Every line gets a sequence number, increasing by one per line, so
+ * a reader can fetch only lines newer than the last one it has seen. Oldest lines are overwritten
+ */
+public class ScreenLog {
+
+	private String[] lines;
+	private int head = 0;
+	private int size = 0;
+	/**
+	 * Sequence number of newest line, 0 if none were added yet
+	 */
+	private long lastSequence = 0;
+
+	public ScreenLog(int capacity) {
+		lines = new String[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Adds a line, overwriting oldest one if full
+	 * @return sequence number of the line
+	 */
+	public synchronized long add(String line) {
+		lines[head] = line;
+		head = ( head + 1 ) % lines.length;
+		if ( size < lines.length )
+			size++;
+		return ++lastSequence;
+	}
+
+	/**
+	 * Changes capacity keeping newest lines
+	 */
+	public synchronized void setCapacity(int capacity) {
+		capacity = Math.max(1, capacity);
+		if ( capacity == lines.length )
+			return;
+		String[] resized = new String[capacity];
+		int n = Math.min(size, capacity);
+		for ( int i = 0; i < n; i++ ) {
+			resized[n - 1 - i] = getNewest(i);
+		}
+		lines = resized;
+		size = n;
+		head = n % capacity;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized int getCapacity() {
+		return lines.length;
+	}
+
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @param i 0 for newest line
+	 */
+	public synchronized String getNewest(int i) {
+		if ( i < 0 || i >= size )
+			throw new IndexOutOfBoundsException("Line " + i + " of " + size);
+		return lines[( head - 1 - i + lines.length ) % lines.length];
+	}
+
+	/**
+	 * Copies lines newer than given sequence number, oldest first. Lines already overwritten are skipped
+	 * @param afterSequence last sequence number the caller has
+	 * @param out
+	 * @return sequence number of newest line
+	 */
+	public synchronized long copySince(long afterSequence, List<String> out) {
+		int n = (int) Math.min(size, Math.max(0, lastSequence - afterSequence));
+		for ( int i = n - 1; i >= 0; i-- ) {
+			out.add(getNewest(i));
+		}
+		return lastSequence;
+	}
+}
@@ -0,0 +1,275 @@
+package com.greatnowhere.radar.threats;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.media.SoundPool;
+import android.util.Log;
+
+import com.cobra.iradar.protocol.CobraRadarMessageAlert;
+import com.greatnowhere.radar.R;
+
+/**
+ * Preloads every alert sample, including per-strength variants of radar bands, at startup.
+ * Generic threat sound and strength 1 variants are queued first so there is something to play as soon
+ * as possible; until a wanted sample is loaded the closest loaded one is played instead.
+ * Switching samples of a playing alert crossfades instead of restarting
+ */
+class AlertSoundBank {
+
+	private static final String TAG = AlertSoundBank.class.getCanonicalName();
+
+	/**
+	 * Each threat holds one stream, two while crossfading
+	 */
+	static final int MAX_STREAMS = 6;
+	static final int MAX_STRENGTH = 5;
+	static final long CROSSFADE_MS = 150L;
+	private static final int CROSSFADE_STEPS = 6;
+
+	private final SoundPool pool;
+	/**
+	 * Sample ids by alert sound name, indexed by strength - 1
+	 */
+	private final Map<String, int[]> samples = new HashMap<String, int[]>();
+	private final Set<Integer> loadedSamples = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private final int fallbackSample;
+	private final int totalSamples;
+	private final Timer fadeTimer = new Timer(TAG, true);
+	/**
+	 * Crossfades in progress, by stream being faded in
+	 */
+	private final Map<Integer, FadeTask> activeFades = new ConcurrentHashMap<Integer, FadeTask>();
+
+	private final AtomicLong alertsBeforeLoad = new AtomicLong();
+	private final AtomicLong alertsSilent = new AtomicLong();
+	private volatile long loadStartMillis;
+	private volatile long allLoadedMillis = 0;
+
+	AlertSoundBank(Context ctx, int streamType) {
+		pool = new SoundPool(MAX_STREAMS, streamType, 0);
+		pool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+			public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+				if ( status != 0 ) {
+					Log.w(TAG, "Sample " + sampleId + " failed to load, status " + status);
+					return;
+				}
+				loadedSamples.add(sampleId);
+				if ( loadedSamples.size() == totalSamples ) {
+					allLoadedMillis = System.currentTimeMillis();
+					Log.i(TAG, "All " + totalSamples + " alert samples loaded in " + ( allLoadedMillis - loadStartMillis ) + "ms");
+				}
+			}
+		});
+		loadStartMillis = System.currentTimeMillis();
+		int loads = 0;
+		// SoundPool decodes in load order, queue whatever makes alerts audible first
+		fallbackSample = pool.load(ctx, R.raw.threat, 1);
+		loads++;
+		int[] k = new int[MAX_STRENGTH];
+		int[] ka = new int[MAX_STRENGTH];
+		int[] ku = new int[MAX_STRENGTH];
+		int[] x = new int[MAX_STRENGTH];
+		ka[0] = pool.load(ctx, R.raw.ka1, 1);
+		k[0] = pool.load(ctx, R.raw.k1, 1);
+		x[0] = pool.load(ctx, R.raw.x1, 1);
+		ku[0] = pool.load(ctx, R.raw.ku1, 1);
+		int laser = pool.load(ctx, R.raw.laser, 1);
+		int hazard = pool.load(ctx, R.raw.ev, 1);
+		int rdd = pool.load(ctx, R.raw.vg2, 1);
+		loads += 7;
+		int[] kaRes = { R.raw.ka2, R.raw.ka3, R.raw.ka4, R.raw.ka5 };
+		int[] kRes = { R.raw.k2, R.raw.k3, R.raw.k4, R.raw.k5 };
+		int[] xRes = { R.raw.x2, R.raw.x3, R.raw.x4, R.raw.x5 };
+		int[] kuRes = { R.raw.ku2, R.raw.ku3, R.raw.ku4, R.raw.ku5 };
+		for ( int i = 1; i < MAX_STRENGTH; i++ ) {
+			ka[i] = pool.load(ctx, kaRes[i - 1], 1);
+			k[i] = pool.load(ctx, kRes[i - 1], 1);
+			x[i] = pool.load(ctx, xRes[i - 1], 1);
+			ku[i] = pool.load(ctx, kuRes[i - 1], 1);
+			loads += 4;
+		}
+		totalSamples = loads;
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_KA, ka);
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_POP, ka);
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_K, k);
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_KU, ku);
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_X, x);
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_LASER, single(laser));
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_HAZARD, single(hazard));
+		samples.put(CobraRadarMessageAlert.ALERT_SOUND_RDD, single(rdd));
+	}
+
+	private static int[] single(int sampleId) {
+		int[] s = new int[MAX_STRENGTH];
+		for ( int i = 0; i < MAX_STRENGTH; i++ ) {
+			s[i] = sampleId;
+		}
+		return s;
+	}
+
+	/**
+	 * Returns sample to play for given alert sound and strength. If the wanted sample is not loaded yet,
+	 * returns closest loaded variant of same sound, or generic threat sound
+	 * @param sound one of CobraRadarMessageAlert.ALERT_SOUND_*
+	 * @param strength 1 to {@link #MAX_STRENGTH}
+	 * @return sample id, 0 if nothing is loaded yet
+	 */
+	int getSampleId(String sound, int strength) {
+		int[] variants = samples.get(sound);
+		if ( variants == null ) {
+			return ( loadedSamples.contains(fallbackSample) ? fallbackSample : 0 );
+		}
+		int wanted = Math.max(1, Math.min(strength, MAX_STRENGTH)) - 1;
+		if ( loadedSamples.contains(variants[wanted]) )
+			return variants[wanted];
+		// closest loaded variant, prefer weaker ones as those load first
+		for ( int d = 1; d < MAX_STRENGTH; d++ ) {
+			if ( wanted - d >= 0 && loadedSamples.contains(variants[wanted - d]) )
+				return variants[wanted - d];
+			if ( wanted + d < MAX_STRENGTH && loadedSamples.contains(variants[wanted + d]) )
+				return variants[wanted + d];
+		}
+		return ( loadedSamples.contains(fallbackSample) ? fallbackSample : 0 );
+	}
+
+	/**
+	 * Reports a sample switch if the sample isn't the one wanted. Call only when playing sample changes,
+	 * so same sample kept looping at another volume isn't counted again
+	 * @param sampleId sample from {@link #getSampleId(String, int)}
+	 */
+	void reportSampleChange(String sound, int strength, int sampleId) {
+		if ( sampleId == 0 ) {
+			alertsSilent.incrementAndGet();
+			Log.w(TAG, sound + " alert fired before any sample was loaded");
+			return;
+		}
+		int[] variants = samples.get(sound);
+		if ( variants == null )
+			return;
+		int wanted = Math.max(1, Math.min(strength, MAX_STRENGTH)) - 1;
+		if ( sampleId == variants[wanted] )
+			return;
+		alertsBeforeLoad.incrementAndGet();
+		if ( sampleId == fallbackSample ) {
+			Log.w(TAG, sound + " not loaded yet, playing generic threat sound");
+			return;
+		}
+		for ( int i = 0; i < MAX_STRENGTH; i++ ) {
+			if ( variants[i] == sampleId ) {
+				Log.w(TAG, sound + " strength " + strength + " not loaded yet, playing strength " + ( i + 1 ));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts looping given sample. If another stream is playing, fades it out while new one fades in
+	 * @param oldStreamId currently playing stream, or 0
+	 * @param sampleId sample from {@link #getSampleId(String, int)}
+	 * @param volume target volume 0..1
+	 * @return new stream id, 0 if nothing is playing
+	 */
+	int crossfade(int oldStreamId, int sampleId, float volume) {
+		if ( sampleId == 0 ) {
+			stop(oldStreamId);
+			return 0;
+		}
+		if ( oldStreamId == 0 ) {
+			return pool.play(sampleId, volume, volume, 1, -1, 1f);
+		}
+		// old stream may itself still be fading in, finish that fade right away
+		finishFade(oldStreamId);
+		int newStreamId = pool.play(sampleId, 0f, 0f, 1, -1, 1f);
+		if ( newStreamId == 0 ) {
+			// out of streams, keep old one playing
+			pool.setVolume(oldStreamId, volume, volume);
+			return oldStreamId;
+		}
+		FadeTask fade = new FadeTask(oldStreamId, newStreamId, volume);
+		activeFades.put(newStreamId, fade);
+		fadeTimer.schedule(fade, 0, CROSSFADE_MS / CROSSFADE_STEPS);
+		return newStreamId;
+	}
+
+	void setVolume(int streamId, float volume) {
+		if ( streamId == 0 )
+			return;
+		FadeTask fade = activeFades.get(streamId);
+		if ( fade != null )
+			fade.volume = volume;
+		pool.setVolume(streamId, volume, volume);
+	}
+
+	void stop(int streamId) {
+		if ( streamId == 0 )
+			return;
+		finishFade(streamId);
+		pool.stop(streamId);
+	}
+
+	private void finishFade(int streamId) {
+		FadeTask fade = activeFades.remove(streamId);
+		if ( fade != null ) {
+			fade.cancel();
+			pool.stop(fade.oldStreamId);
+			pool.setVolume(streamId, fade.volume, fade.volume);
+		}
+	}
+
+	boolean isFullyLoaded() {
+		return loadedSamples.size() == totalSamples;
+	}
+
+	/**
+	 * Number of alerts played with a substitute sample because wanted one wasn't loaded yet
+	 */
+	long getAlertsBeforeLoad() {
+		return alertsBeforeLoad.get();
+	}
+
+	/**
+	 * Number of alerts which couldn't be played at all because no sample was loaded yet
+	 */
+	long getAlertsSilent() {
+		return alertsSilent.get();
+	}
+
+	/**
+	 * Ramps new stream up and old stream down, then stops old stream
+	 */
+	private class FadeTask extends TimerTask {
+		final int oldStreamId;
+		final int newStreamId;
+		volatile float volume;
+		private int step = 0;
+
+		FadeTask(int oldStreamId, int newStreamId, float volume) {
+			this.oldStreamId = oldStreamId;
+			this.newStreamId = newStreamId;
+			this.volume = volume;
+		}
+
+		@Override
+		public void run() {
+			step++;
+			float in = volume * step / CROSSFADE_STEPS;
+			float out = volume - in;
+			pool.setVolume(newStreamId, in, in);
+			if ( step >= CROSSFADE_STEPS ) {
+				cancel();
+				activeFades.remove(newStreamId);
+				pool.stop(oldStreamId);
+			} else {
+				pool.setVolume(oldStreamId, out, out);
+			}
+		}
+	}
+}
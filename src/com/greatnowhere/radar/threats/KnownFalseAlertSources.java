@@ -0,0 +1,143 @@
+package com.greatnowhere.radar.threats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.greatnowhere.radar.location.GeoGrid;
+import com.greatnowhere.radar.messaging.RadarMessageThreat;
+
+/**
+ * Read-only dataset of known false alert emitters (door openers, blind spot systems, traffic sensors).
+ * File is memory-mapped and never copied to heap: a 16 byte header followed by fixed {@link #RECORD_SIZE}
+ * byte records sorted by cell id, looked up by binary search.
+ * <pre>
+ * header: int magic 'KFAS', int version, int record count, int reserved
+ * record: long cell id ({@link GeoGrid}), int alert code, int min freq MHz, int max freq MHz, float confidence 0..1
+ * </pre>
+ * All values big endian
+ */
+public class KnownFalseAlertSources {
+
+	private static final String TAG = KnownFalseAlertSources.class.getCanonicalName();
+
+	public static final String FILE_NAME = "known_false_alerts.dat";
+	public static final int RECORD_SIZE = 24;
+	private static final int HEADER_SIZE = 16;
+	private static final int MAGIC = 0x4B464153; // KFAS
+	private static final int VERSION = 1;
+
+	private static volatile MappedByteBuffer data;
+	private static int recordCount = 0;
+
+	/**
+	 * Maps dataset from app's external files dir, if present
+	 * @param ctx
+	 */
+	public static synchronized void init(Context ctx) {
+		if ( data != null )
+			return;
+		File dir = ctx.getExternalFilesDir(null);
+		if ( dir == null )
+			return;
+		File f = new File(dir, FILE_NAME);
+		if ( !f.exists() )
+			return;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.BIG_ENDIAN);
+			if ( channel.size() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION ) {
+				Log.w(TAG, "Not a known false alert dataset: " + f);
+				return;
+			}
+			int count = map.getInt(8);
+			if ( count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > channel.size() ) {
+				Log.w(TAG, "Truncated known false alert dataset: " + f);
+				return;
+			}
+			recordCount = count;
+			data = map;
+			Log.i(TAG, "Mapped " + count + " known false alert sources");
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to map known false alert dataset", e);
+		} finally {
+			// mapping stays valid after channel is closed
+			if ( raf != null ) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	public static boolean isLoaded() {
+		return data != null;
+	}
+
+	public static int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Returns confidence that given alert at given location comes from a known false alert source.
+	 * Looks at location's cell and its 8 neighbours, so sources near cell borders are found
+	 * @return 0..1, 0 if no known source matches
+	 */
+	public static float getConfidence(RadarMessageThreat alert, double latitude, double longitude) {
+		MappedByteBuffer buf = data;
+		if ( buf == null )
+			return 0f;
+		int code = alert.alertType.getCode();
+		int freq = Math.round(alert.frequency * 1000f);
+		int row = GeoGrid.getRow(latitude);
+		int column = GeoGrid.getColumn(longitude);
+		float best = 0f;
+		for ( int dr = -1; dr <= 1; dr++ ) {
+			for ( int dc = -1; dc <= 1; dc++ ) {
+				long cell = GeoGrid.getCellId(row + dr, column + dc);
+				if ( cell >= 0 )
+					best = Math.max(best, getConfidence(buf, cell, code, freq));
+			}
+		}
+		return best;
+	}
+
+	private static float getConfidence(MappedByteBuffer buf, long cell, int code, int freq) {
+		float best = 0f;
+		for ( int i = lowerBound(buf, cell); i < recordCount; i++ ) {
+			int offset = HEADER_SIZE + i * RECORD_SIZE;
+			if ( buf.getLong(offset) != cell )
+				break;
+			if ( buf.getInt(offset + 8) == code && buf.getInt(offset + 12) <= freq && freq <= buf.getInt(offset + 16) ) {
+				best = Math.max(best, buf.getFloat(offset + 20));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Index of first record with cell id >= given one
+	 */
+	private static int lowerBound(MappedByteBuffer buf, long cell) {
+		int lo = 0;
+		int hi = recordCount;
+		while ( lo < hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			if ( buf.getLong(HEADER_SIZE + mid * RECORD_SIZE) < cell )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
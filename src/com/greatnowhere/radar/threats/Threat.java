@@ -1,20 +1,11 @@
 package com.greatnowhere.radar.threats;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import android.content.res.ColorStateList;
-import android.graphics.PorterDuff.Mode;
-import android.location.Location;
 import android.util.Log;
-import android.view.View;
-import android.widget.ProgressBar;
-import android.widget.TextView;
 
-import com.greatnowhere.radar.R;
 import com.greatnowhere.radar.config.Preferences;
 import com.greatnowhere.radar.location.RadarLocationManager;
 import com.greatnowhere.radar.messaging.RadarMessageThreat;
@@ -33,19 +24,27 @@ public class Threat {
 	public static final float AUTOMUTE_VOLUME_PCT = 0.2f;
 	
 	/**
-	 * View displaying current threat
+	 * Latest display state of this threat, rendered by {@link ThreatOverlayRenderer}
 	 */
-	private View view;
+	private final ThreatOverlayRenderer.ThreatState overlayState = new ThreatOverlayRenderer.ThreatState();
 	protected RadarMessageThreat alert;
 	private int soundStreamId;
-	private TextView band;
-	private TextView freq;
-	private ProgressBar strength;
+	/**
+	 * Sample currently looping on soundStreamId
+	 */
+	private int soundSampleId;
+	/**
+	 * Sample last reported to sound bank, -1 if none yet
+	 */
+	private int reportedSampleId = -1;
 	/**
 	 * Max strength of this threat
 	 */
 	protected int maxStrength = 0;
-	protected Set<Location> locations;
+	/**
+	 * Simplified location track, null if locations aren't logged
+	 */
+	protected ThreatTrack track;
 	protected Long startTimeMillis = System.currentTimeMillis();
 	protected Long endTimeMillis;
 	protected ThreatManager.ThreatCredibility credibility = ThreatCredibility.LEGIT;
@@ -57,25 +56,21 @@ public class Threat {
 	protected float volume = 1f;
 	
 	/**
-	 * True if this threat has been added to the view
+	 * True if this threat should be shown in the threats view
 	 */
-	private boolean isShowing = false;
+	private volatile boolean isShowing = false;
 	
 	public Threat() {
 		
 	}
 	
-	public Threat(View v, RadarMessageThreat a, ThreatManager.ThreatCredibility cred) {
-		view = v;
+	public Threat(RadarMessageThreat a, ThreatManager.ThreatCredibility cred) {
 		alert = a;
 		credibility = cred;
-		band = (TextView) view.findViewById(R.id.textViewBand);
-		freq = (TextView) view.findViewById(R.id.textViewFrequency);
-		strength = (ProgressBar) view.findViewById(R.id.threatViewStrength);
 	}
 
 	void showThreat() {
-		if ( view == null || alert == null )
+		if ( alert == null )
 			return;
 		
 		updateThreat(alert.strength, credibility);
@@ -84,6 +79,10 @@ public class Threat {
 	void removeThreat() {
 		Log.i(TAG,"removeThreat " + toString());
 		endTimeMillis = System.currentTimeMillis();
+		if ( track != null ) {
+			track.finish();
+			Log.d(TAG, "Track of " + toString() + " kept " + track.size() + " of " + track.getPointsSeen() + " fixes");
+		}
 		hideThreat();
 		isShowing = false;
 		silenceAlert();
@@ -97,6 +96,7 @@ public class Threat {
 			Log.i(TAG,"silence " + toString());
 			ThreatManager.alertSounds.stop(soundStreamId);
 			soundStreamId = 0;
+			soundSampleId = 0;
 			AlertAudioManager.restoreOldAlertVolume();
 			isThreatAudibleNow.set(false);
 		}
@@ -105,12 +105,8 @@ public class Threat {
 	private void hideThreat() {
 		if ( isShowing ) {
 			Log.d(TAG,"hideThreat" + toString());
-			ThreatManager.post(new Runnable() {
-				public void run() {
-					ThreatManager.instance.mainThreatLayout.removeView(view);
-					isShowing = false;
-				}
-			});
+			isShowing = false;
+			ThreatManager.renderer.submitHidden(overlayState);
 		}
 	}
 	
@@ -129,11 +125,22 @@ public class Threat {
 			if ( Preferences.isAutoMuteImmediatelyDuringCalls() && ThreatManager.isPhoneCallActive() ) {
 				volume = AUTOMUTE_VOLUME_PCT;
 			}
-			if ( soundStreamId != 0 ) 
-				ThreatManager.alertSounds.stop(soundStreamId);
-			// start looping play
-			soundStreamId = ThreatManager.alertSounds.play(ThreatManager.alertSoundsLoaded.get(alert.alertType.getSound()), volume, volume, 1, -1, 
-					ThreatManager.getThreatSoundPitch(alert.strength));
+			int sampleId = ThreatManager.alertSounds.getSampleId(alert.alertType.getSound(), alert.strength);
+			if ( soundStreamId != 0 && sampleId == soundSampleId ) {
+				// same sample keeps looping, only volume may have changed
+				ThreatManager.alertSounds.setVolume(soundStreamId, volume);
+			} else {
+				if ( sampleId != reportedSampleId ) {
+					reportedSampleId = sampleId;
+					ThreatManager.alertSounds.reportSampleChange(alert.alertType.getSound(), alert.strength, sampleId);
+				}
+				// start looping play, crossfading from previous strength sample if any
+				int streamId = ThreatManager.alertSounds.crossfade(soundStreamId, sampleId, volume);
+				// same stream back means no free stream to switch to, old sample keeps playing
+				if ( streamId != soundStreamId )
+					soundSampleId = ( streamId == 0 ? 0 : sampleId );
+				soundStreamId = streamId;
+			}
 		} else {
 			silenceAlert();
 		}
@@ -146,31 +153,18 @@ public class Threat {
 	}
 	
 	private void updateThreat(int newStrength, ThreatCredibility cred) {
-		if ( view == null || alert == null )
+		if ( alert == null )
 			return;
-		recordLocation();
+		recordLocation(newStrength);
 		maxStrength = Math.max(maxStrength, newStrength);
 		// only update if strength or credibility changes
 		if ( newStrength != alert.strength || credibility != cred || !isShowing ) {
 			this.alert.strength = newStrength;
 			this.credibility = cred;
 			if ( isShowVisibleThreat() ) {
-				ThreatManager.post(new Runnable() {
-					public void run() {
-						if ( !isShowing ) {
-							ThreatManager.instance.mainThreatLayout.addView(view);
-							isShowing = true;
-						}
-						band.setText(alert.alertType.getName());
-						freq.setText(Float.toString(alert.frequency) + " Ghz");
-						int color = ThreatManager.getThreatColor(alert.strength, credibility);
-						ColorStateList threatColor = ColorStateList.valueOf(color);
-						band.setTextColor(threatColor);
-						freq.setTextColor(threatColor);
-						strength.setProgress(alert.strength);
-						strength.getProgressDrawable().getCurrent().setColorFilter(color, Mode.MULTIPLY);
-					}
-				});
+				isShowing = true;
+				ThreatManager.renderer.submit(overlayState, true, alert.alertType.getName(), alert.frequency, 
+						alert.strength, ThreatManager.getThreatColor(alert.strength, credibility));
 			} else {
 				hideThreat();
 			}
@@ -178,11 +172,11 @@ public class Threat {
 		}
 	}
 	
-	private void recordLocation() {
+	private void recordLocation(int strength) {
 		if ( Preferences.isLogThreatLocation() && RadarLocationManager.isReady() ) {
-			if ( locations == null )
-				locations = new LinkedHashSet<Location>();
-			locations.add(RadarLocationManager.getCurrentLoc());
+			if ( track == null )
+				track = new ThreatTrack(Preferences.getFakeAlertDetectionRadius());
+			track.add(RadarLocationManager.getCurrentLoc(), strength);
 		}
 	}
 	
@@ -0,0 +1,244 @@
+package com.greatnowhere.radar.threats;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.cobra.iradar.protocol.CobraRadarMessageAlert.Alert;
+import com.greatnowhere.radar.R;
+import com.greatnowhere.radar.config.Preferences;
+
+/**
+ * Lists logged threats newest first, loading next page as the list nears its end.
+ * Filters can be passed as intent extras, see EXTRA_ constants
+ */
+public class ThreatHistoryActivity extends Activity {
+
+	public static final String EXTRA_FROM_TIME = "fromTime";
+	public static final String EXTRA_TO_TIME = "toTime";
+	public static final String EXTRA_ALERT_CODE = "alertCode";
+	public static final String EXTRA_CREDIBILITY = "credibility";
+	public static final String EXTRA_LOCATION_NAME = "locationName";
+	/**
+	 * double[] { minLat, minLong, maxLat, maxLong }
+	 */
+	public static final String EXTRA_BOUNDING_BOX = "boundingBox";
+
+	/**
+	 * Start loading next page when this few rows are left below visible ones
+	 */
+	private static final int PREFETCH_ROWS = 10;
+	/**
+	 * Longest wait for threats still queued by the logger before history is read without them
+	 */
+	private static final long FLUSH_TIMEOUT_MS = 5000L;
+
+	private final ThreatHistoryQuery query = new ThreatHistoryQuery();
+	private final List<ThreatHistoryQuery.Entry> entries = new ArrayList<ThreatHistoryQuery.Entry>();
+	private ThreatHistoryQuery.Page lastPage;
+	private PageLoader loader;
+	private SummaryLoader summaryLoader;
+	/**
+	 * Pages are loaded only once queued threats are written, see {@link SummaryLoader}
+	 */
+	private boolean isFlushed = false;
+	private HistoryAdapter adapter;
+	private TextView summary;
+	private DateFormat dateFormat;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		Preferences.init(getApplicationContext());
+		ThreatLogger.init(getApplicationContext());
+		setContentView(R.layout.threat_history);
+		dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+		summary = (TextView) findViewById(R.id.historyIdSummary);
+		ListView list = (ListView) findViewById(R.id.historyIdList);
+		adapter = new HistoryAdapter(this);
+		list.setAdapter(adapter);
+		list.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				if ( firstVisibleItem + visibleItemCount + PREFETCH_ROWS >= totalItemCount )
+					loadNextPage();
+			}
+		});
+		applyFilters(getIntent().getExtras());
+		summaryLoader = new SummaryLoader();
+		summaryLoader.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if ( summaryLoader != null )
+			summaryLoader.cancel(false);
+		if ( loader != null )
+			loader.cancel(false);
+		super.onDestroy();
+	}
+
+	private void applyFilters(Bundle extras) {
+		if ( extras == null )
+			return;
+		query.setTimeRange(extras.containsKey(EXTRA_FROM_TIME) ? extras.getLong(EXTRA_FROM_TIME) : null,
+				extras.containsKey(EXTRA_TO_TIME) ? extras.getLong(EXTRA_TO_TIME) : null);
+		if ( extras.containsKey(EXTRA_ALERT_CODE) )
+			query.setAlertCode(extras.getInt(EXTRA_ALERT_CODE));
+		if ( extras.containsKey(EXTRA_CREDIBILITY) )
+			query.setCredibilityCode(extras.getInt(EXTRA_CREDIBILITY));
+		query.setLocationName(extras.getString(EXTRA_LOCATION_NAME));
+		double[] box = extras.getDoubleArray(EXTRA_BOUNDING_BOX);
+		if ( box != null && box.length == 4 )
+			query.setBoundingBox(box[0], box[1], box[2], box[3]);
+	}
+
+	private void loadNextPage() {
+		if ( !isFlushed || loader != null || ( lastPage != null && !lastPage.hasMore ) )
+			return;
+		loader = new PageLoader();
+		loader.execute(lastPage);
+	}
+
+	private void showSummary(ThreatHistoryQuery.Summary s) {
+		if ( s.count == 0 ) {
+			summary.setText(R.string.historyTxtEmpty);
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(s.count).append(" threats, ").append(dateFormat.format(new Date(s.firstTime))).append(" - ")
+				.append(dateFormat.format(new Date(s.lastTime))).append("\n");
+		sb.append(ThreatManager.ThreatCredibility.LEGIT.getName()).append(": ").append(s.legit).append(", ")
+				.append(ThreatManager.ThreatCredibility.SUSPECT_FAKE.getName()).append(": ").append(s.suspect).append(", ")
+				.append(ThreatManager.ThreatCredibility.FAKE.getName()).append(": ").append(s.fake).append(", ")
+				.append(ThreatManager.ThreatCredibility.HIDDEN.getName()).append(": ").append(s.hidden).append("\n");
+		for ( int i = 0; i < s.alertCodes.size(); i++ ) {
+			if ( i > 0 )
+				sb.append(", ");
+			sb.append(getAlertName(s.alertCodes.get(i))).append(": ").append(s.alertCounts.get(i));
+		}
+		sb.append("\nOn ").append(s.locations).append(" roads, total ").append(s.totalDurationMillis / 1000L).append("s");
+		summary.setText(sb.toString());
+	}
+
+	private static String getAlertName(int code) {
+		Alert a = Alert.fromRadarCode(code);
+		return ( a == null ? "Unknown " + code : a.getName() );
+	}
+
+	/**
+	 * Waits for threats still queued by the logger, which would be missing from history otherwise,
+	 * then loads summary and starts page loading
+	 */
+	private class SummaryLoader extends AsyncTask<Void, Void, ThreatHistoryQuery.Summary> {
+		@Override
+		protected ThreatHistoryQuery.Summary doInBackground(Void... params) {
+			ThreatLogger.flushAndWait(FLUSH_TIMEOUT_MS);
+			return ThreatLogger.getThreatHistorySummary(query);
+		}
+
+		@Override
+		protected void onPostExecute(ThreatHistoryQuery.Summary s) {
+			summaryLoader = null;
+			isFlushed = true;
+			showSummary(s);
+			loadNextPage();
+		}
+
+		@Override
+		protected void onCancelled() {
+			summaryLoader = null;
+		}
+	}
+
+	private class PageLoader extends AsyncTask<ThreatHistoryQuery.Page, Void, ThreatHistoryQuery.Page> {
+		@Override
+		protected ThreatHistoryQuery.Page doInBackground(ThreatHistoryQuery.Page... params) {
+			return ThreatLogger.queryThreatHistory(query, params[0]);
+		}
+
+		@Override
+		protected void onPostExecute(ThreatHistoryQuery.Page page) {
+			loader = null;
+			lastPage = page;
+			entries.addAll(page.entries);
+			adapter.notifyDataSetChanged();
+		}
+
+		@Override
+		protected void onCancelled() {
+			loader = null;
+		}
+	}
+
+	private class HistoryAdapter extends BaseAdapter {
+
+		private final LayoutInflater inflater;
+
+		HistoryAdapter(Context ctx) {
+			inflater = LayoutInflater.from(ctx);
+		}
+
+		@Override
+		public int getCount() {
+			return entries.size();
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return entries.get(position);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return entries.get(position).id;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			RowHolder holder;
+			if ( convertView == null ) {
+				convertView = inflater.inflate(R.layout.threat_history_row, parent, false);
+				holder = new RowHolder();
+				holder.title = (TextView) convertView.findViewById(R.id.historyRowIdTitle);
+				holder.detail = (TextView) convertView.findViewById(R.id.historyRowIdDetail);
+				convertView.setTag(holder);
+			} else {
+				holder = (RowHolder) convertView.getTag();
+			}
+			ThreatHistoryQuery.Entry e = entries.get(position);
+			holder.title.setText(getAlertName(e.alertCode) + ( e.frequency > 0 ? " " + e.frequency : "" ) + " - "
+					+ e.getCredibility().getName());
+			holder.detail.setText(dateFormat.format(new Date(e.startTime)) + ", " + ( e.getDurationMillis() / 1000L ) + "s"
+					+ ( e.locationName == null ? "" : ", " + e.locationName ) + ", " + e.locationCount + " points");
+			return convertView;
+		}
+	}
+
+	private static class RowHolder {
+		TextView title;
+		TextView detail;
+	}
+}
@@ -0,0 +1,305 @@
+package com.greatnowhere.radar.threats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.greatnowhere.radar.location.GeoGrid;
+
+/**
+ * Logged threat locations of grid cells along the road ahead, loaded in background before we get there, so
+ * the similar threat count at alert time is answered from memory. Counts only when every cell within radius
+ * is loaded, else caller queries database. Cells where threats were logged since loading are dropped
+ */
+class ThreatHistoryCache {
+
+	private static final String TAG = ThreatHistoryCache.class.getCanonicalName();
+
+	static final int MAX_CELLS = 512;
+	/**
+	 * Same tolerances as similar threat query
+	 */
+	static final float FREQ_TOLERANCE_GHZ = 0.05f;
+	private static final double ONE_DEGREE_KM = 111.3d;
+	/**
+	 * Cells loaded with one query, grouped by row
+	 */
+	private static final int MAX_CELLS_PER_QUERY = 16;
+
+	private final Map<Long, Cell> cells = new ConcurrentHashMap<Long, Cell>();
+	private final Map<Long, Boolean> loading = new ConcurrentHashMap<Long, Boolean>();
+	private final ExecutorService loader = Executors.newSingleThreadExecutor();
+	/**
+	 * Bumped on every invalidation, a load that saw a different value started before it and is discarded
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong cellsLoaded = new AtomicLong();
+	/**
+	 * Cells within radius of counted location, reused by {@link #count}, guarded by itself
+	 */
+	private final CellList needed = new CellList();
+
+	/**
+	 * Queues loading of cells within radius of given points that aren't loaded yet
+	 */
+	void prefetch(final double[] latitudes, final double[] longitudes, int count, float radiusKm) {
+		CellList all = new CellList();
+		for ( int i = 0; i < count; i++ ) {
+			addCells(latitudes[i], longitudes[i], radiusKm, all);
+		}
+		final List<Long> wanted = new ArrayList<Long>();
+		for ( int i = 0; i < all.size; i++ ) {
+			Long cell = all.ids[i];
+			if ( !cells.containsKey(cell) && loading.put(cell, Boolean.TRUE) == null )
+				wanted.add(cell);
+		}
+		if ( wanted.isEmpty() )
+			return;
+		loader.execute(new Runnable() {
+			public void run() {
+				try {
+					load(ThreatLogger.getDatabase(), wanted);
+				} catch (Exception e) {
+					Log.w(TAG, "Failed to load threat history cells", e);
+				} finally {
+					for ( Long cell : wanted ) {
+						loading.remove(cell);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Counts distinct logged threats of same type, frequency within tolerance and a location within radius,
+	 * like the similar threat query
+	 * @return count, -1 if some cell within radius isn't loaded
+	 */
+	int count(int alertCode, float frequency, double latitude, double longitude, float radiusKm) {
+		double cosLat = Math.cos(Math.toRadians(latitude));
+		int[] ids = null;
+		int found = 0;
+		synchronized ( needed ) {
+			needed.size = 0;
+			addCells(latitude, longitude, radiusKm, needed);
+			for ( int n = 0; n < needed.size; n++ ) {
+				Cell cell = cells.get(needed.ids[n]);
+				if ( cell == null ) {
+					misses.incrementAndGet();
+					return -1;
+				}
+				for ( int i = 0; i < cell.size; i++ ) {
+					if ( cell.types[i] != alertCode || Math.abs(frequency - cell.freqs[i]) >= FREQ_TOLERANCE_GHZ
+							|| Math.abs(cell.lats[i] - latitude) * ONE_DEGREE_KM >= radiusKm
+							|| Math.abs(cell.lngs[i] - longitude) * ONE_DEGREE_KM * cosLat >= radiusKm )
+						continue;
+					if ( ids == null )
+						ids = new int[8];
+					else if ( found == ids.length )
+						ids = Arrays.copyOf(ids, found * 2);
+					ids[found++] = cell.threatIds[i];
+				}
+			}
+		}
+		hits.incrementAndGet();
+		if ( found == 0 )
+			return 0;
+		Arrays.sort(ids, 0, found);
+		int distinct = 1;
+		for ( int i = 1; i < found; i++ ) {
+			if ( ids[i] != ids[i - 1] )
+				distinct++;
+		}
+		return distinct;
+	}
+
+	/**
+	 * Drops cell of location where a threat was just logged
+	 */
+	void invalidate(double latitude, double longitude) {
+		generation.incrementAndGet();
+		cells.remove(GeoGrid.getCellId(latitude, longitude));
+	}
+
+	/**
+	 * Drops all cells, after threats were deleted or imported
+	 */
+	void clear() {
+		generation.incrementAndGet();
+		cells.clear();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getCellsLoaded() {
+		return cellsLoaded.get();
+	}
+
+	/**
+	 * Adds cells within radius of location, same ring as {@link ThreatHistoryFilter} checks
+	 */
+	private static void addCells(double latitude, double longitude, float radiusKm, CellList out) {
+		int row = GeoGrid.getRow(latitude);
+		int column = GeoGrid.getColumn(longitude);
+		double cellKm = GeoGrid.CELL_DEGREES * ONE_DEGREE_KM;
+		int rowRing = (int) Math.ceil(radiusKm / cellKm);
+		int columnRing = (int) Math.ceil(radiusKm / ( cellKm * Math.max(0.01d, Math.cos(Math.toRadians(latitude)))));
+		for ( int dr = -rowRing; dr <= rowRing; dr++ ) {
+			for ( int dc = -columnRing; dc <= columnRing; dc++ ) {
+				long cell = GeoGrid.getCellId(row + dr, column + dc);
+				if ( cell >= 0 )
+					out.add(cell);
+			}
+		}
+	}
+
+	/**
+	 * Loads cells, a few adjacent ones of a row per query. Adjacent cells of a row have consecutive ids,
+	 * so each query is one range over the cell index
+	 */
+	private void load(SQLiteDatabase db, List<Long> wanted) {
+		long[] sorted = new long[wanted.size()];
+		for ( int i = 0; i < sorted.length; i++ ) {
+			sorted[i] = wanted.get(i);
+		}
+		Arrays.sort(sorted);
+		int start = 0;
+		while ( start < sorted.length ) {
+			int end = start + 1;
+			// same row, contiguous columns
+			while ( end < sorted.length && end - start < MAX_CELLS_PER_QUERY && sorted[end] == sorted[end - 1] + 1 )
+				end++;
+			loadRun(db, sorted, start, end);
+			start = end;
+		}
+		trim();
+	}
+
+	private void loadRun(SQLiteDatabase db, long[] sorted, int start, int end) {
+		int gen = generation.get();
+		CellBuilder[] builders = new CellBuilder[end - start];
+		for ( int i = 0; i < builders.length; i++ ) {
+			builders[i] = new CellBuilder();
+		}
+		Cursor c = db.rawQuery("select l.threat_id, t.type, t.freq, cast(l.lat as real), cast(l.long as real), l.cell "
+				+ "from threats_locations l join threats t on t.id=l.threat_id "
+				+ "where l.cell between cast(? as integer) and cast(? as integer)",
+				new String[] { Long.toString(sorted[start]), Long.toString(sorted[end - 1]) });
+		try {
+			while ( c.moveToNext() ) {
+				int i = (int) ( c.getLong(5) - sorted[start] );
+				builders[i].add(c.getInt(0), c.getInt(1), c.getFloat(2), c.getDouble(3), c.getDouble(4));
+			}
+		} finally {
+			c.close();
+		}
+		if ( generation.get() != gen )
+			return;
+		for ( int i = 0; i < builders.length; i++ ) {
+			cells.put(sorted[start + i], builders[i].build());
+			cellsLoaded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops oldest loaded cells over limit
+	 */
+	private void trim() {
+		while ( cells.size() > MAX_CELLS ) {
+			Long oldest = null;
+			long oldestLoaded = Long.MAX_VALUE;
+			for ( Map.Entry<Long, Cell> e : cells.entrySet() ) {
+				if ( e.getValue().loaded < oldestLoaded ) {
+					oldest = e.getKey();
+					oldestLoaded = e.getValue().loaded;
+				}
+			}
+			if ( oldest == null )
+				return;
+			cells.remove(oldest);
+		}
+	}
+
+	/**
+	 * Cell ids without duplicates, in a reusable primitive array
+	 */
+	private static class CellList {
+		long[] ids = new long[16];
+		int size;
+
+		void add(long id) {
+			for ( int i = 0; i < size; i++ ) {
+				if ( ids[i] == id )
+					return;
+			}
+			if ( size == ids.length )
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * Threat locations of a cell, in parallel arrays. Immutable once built
+	 */
+	private static class Cell {
+		final long loaded = System.currentTimeMillis();
+		int size;
+		int[] threatIds;
+		int[] types;
+		float[] freqs;
+		double[] lats;
+		double[] lngs;
+	}
+
+	private static class CellBuilder {
+		private final Cell cell = new Cell();
+
+		CellBuilder() {
+			cell.threatIds = new int[4];
+			cell.types = new int[4];
+			cell.freqs = new float[4];
+			cell.lats = new double[4];
+			cell.lngs = new double[4];
+		}
+
+		void add(int threatId, int type, float freq, double lat, double lng) {
+			if ( cell.size == cell.threatIds.length ) {
+				int n = cell.size * 2;
+				cell.threatIds = Arrays.copyOf(cell.threatIds, n);
+				cell.types = Arrays.copyOf(cell.types, n);
+				cell.freqs = Arrays.copyOf(cell.freqs, n);
+				cell.lats = Arrays.copyOf(cell.lats, n);
+				cell.lngs = Arrays.copyOf(cell.lngs, n);
+			}
+			cell.threatIds[cell.size] = threatId;
+			cell.types[cell.size] = type;
+			cell.freqs[cell.size] = freq;
+			cell.lats[cell.size] = lat;
+			cell.lngs[cell.size] = lng;
+			cell.size++;
+		}
+
+		Cell build() {
+			return cell;
+		}
+	}
+}
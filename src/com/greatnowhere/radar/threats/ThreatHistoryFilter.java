@@ -0,0 +1,323 @@
+package com.greatnowhere.radar.threats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.greatnowhere.radar.location.GeoGrid;
+
+/**
+ * Bloom filter over logged threat locations, keyed by (grid cell, alert type, frequency bucket).
+ * A negative answer means no similar threat was ever logged nearby, so the similar threat query can be skipped.
+ * Built from database on first use, persisted to a file and updated as threats are logged. Deleted threats
+ * are not removed, which only adds false positives; filter is rebuilt once it gets too full
+ */
+class ThreatHistoryFilter {
+
+	private static final String TAG = ThreatHistoryFilter.class.getCanonicalName();
+
+	/**
+	 * 2^21 bits = 256KB, about 1% false positives at 200k keys
+	 */
+	static final int BITS_LOG2 = 21;
+	static final int HASHES = 5;
+	/**
+	 * Width of frequency bucket, GHz. Same as tolerance of similar threat query, so a match is always in
+	 * the same or adjacent bucket
+	 */
+	static final float FREQ_BUCKET_GHZ = 0.05f;
+	/**
+	 * Rebuild when this share of bits is set
+	 */
+	static final double MAX_FILL_RATIO = 0.5d;
+
+	private static final int MAGIC = 0x54484246; // THBF
+	private static final int VERSION = 1;
+	private static final int BITS = 1 << BITS_LOG2;
+	private static final long BIT_MASK = BITS - 1;
+	private static final int PAGE_ROWS = 2048;
+
+	private final File file;
+	private final AtomicLongArray bits = new AtomicLongArray(BITS / 64);
+	private final AtomicLong bitsSet = new AtomicLong();
+	private volatile boolean isReady = false;
+	private volatile boolean isDirty = false;
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	ThreatHistoryFilter(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads persisted filter, or rebuilds it from database if missing, corrupt or too full.
+	 * Slow, call on background thread
+	 */
+	void loadOrBuild(SQLiteDatabase db) {
+		if ( !load() || getFillRatio() > MAX_FILL_RATIO ) {
+			build(db);
+			save();
+		}
+		isReady = true;
+	}
+
+	private boolean load() {
+		if ( !file.exists() )
+			return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BITS_LOG2 || in.readInt() != HASHES )
+				return false;
+			long set = 0;
+			for ( int i = 0; i < bits.length(); i++ ) {
+				long w = in.readLong();
+				bits.set(i, w);
+				set += Long.bitCount(w);
+			}
+			bitsSet.set(set);
+			Log.i(TAG, "Loaded threat history filter, fill " + getFillRatio());
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to load threat history filter", e);
+			clear();
+			return false;
+		} finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes filter if it changed since last save. Written to temp file and renamed, never leaves a torn file
+	 */
+	void save() {
+		if ( !isDirty && file.exists() )
+			return;
+		isDirty = false;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(BITS_LOG2);
+			out.writeInt(HASHES);
+			for ( int i = 0; i < bits.length(); i++ ) {
+				out.writeLong(bits.get(i));
+			}
+			out.close();
+			out = null;
+			if ( !tmp.renameTo(file) )
+				Log.w(TAG, "Failed to replace threat history filter file");
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to save threat history filter", e);
+			isDirty = true;
+		} finally {
+			if ( out != null ) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds filter from all logged locations, reading database in keyset pages
+	 */
+	void build(SQLiteDatabase db) {
+		long started = System.currentTimeMillis();
+		clear();
+		long lastId = -1;
+		long rows = 0;
+		while ( true ) {
+			Cursor c = db.rawQuery("select l.id,t.type,t.freq,l.lat,l.long from threats_locations l join threats t on t.id=l.threat_id "
+					+ "where l.id>? order by l.id limit " + PAGE_ROWS, new String[] { Long.toString(lastId) });
+			int n = 0;
+			try {
+				while ( c.moveToNext() ) {
+					lastId = c.getLong(0);
+					add(c.getInt(1), c.getFloat(2), c.getDouble(3), c.getDouble(4));
+					n++;
+				}
+			} finally {
+				c.close();
+			}
+			rows += n;
+			if ( n < PAGE_ROWS )
+				break;
+		}
+		Log.i(TAG, "Built threat history filter from " + rows + " locations in " + ( System.currentTimeMillis() - started )
+				+ "ms, fill " + getFillRatio());
+	}
+
+	/**
+	 * Rebuilds filter after bulk changes, e.g. an import
+	 */
+	void rebuild(SQLiteDatabase db) {
+		isReady = false;
+		build(db);
+		save();
+		isReady = true;
+	}
+
+	private void clear() {
+		for ( int i = 0; i < bits.length(); i++ ) {
+			bits.set(i, 0L);
+		}
+		bitsSet.set(0);
+	}
+
+	/**
+	 * Records a logged threat location
+	 */
+	void add(int alertCode, float frequency, double latitude, double longitude) {
+		long h1 = hash(GeoGrid.getCellId(latitude, longitude), alertCode, getBucket(frequency));
+		long h2 = mix(h1) | 1L;
+		for ( int i = 0; i < HASHES; i++ ) {
+			setBit(( h1 + i * h2 ) & BIT_MASK);
+		}
+		isDirty = true;
+	}
+
+	/**
+	 * Returns false if no threat of this type and frequency was ever logged within radius of location.
+	 * Always true until filter is loaded
+	 */
+	boolean mightContain(int alertCode, float frequency, double latitude, double longitude, double radiusKm) {
+		if ( !isReady )
+			return true;
+		queries.incrementAndGet();
+		int row = GeoGrid.getRow(latitude);
+		int column = GeoGrid.getColumn(longitude);
+		double cellKm = GeoGrid.CELL_DEGREES * 111.3d;
+		int rowRing = (int) Math.ceil(radiusKm / cellKm);
+		int columnRing = (int) Math.ceil(radiusKm / ( cellKm * Math.max(0.01d, Math.cos(Math.toRadians(latitude)))));
+		int bucket = getBucket(frequency);
+		for ( int dr = -rowRing; dr <= rowRing; dr++ ) {
+			for ( int dc = -columnRing; dc <= columnRing; dc++ ) {
+				long cell = GeoGrid.getCellId(row + dr, column + dc);
+				if ( cell < 0 )
+					continue;
+				for ( int db = -1; db <= 1; db++ ) {
+					if ( contains(hash(cell, alertCode, bucket + db)) )
+						return true;
+				}
+			}
+		}
+		skipped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Reports that a positive answer turned out to have no similar threats in database
+	 */
+	void reportFalsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	private boolean contains(long h1) {
+		long h2 = mix(h1) | 1L;
+		for ( int i = 0; i < HASHES; i++ ) {
+			long bit = ( h1 + i * h2 ) & BIT_MASK;
+			if ( ( bits.get((int) ( bit >>> 6 )) & ( 1L << ( bit & 63 ) ) ) == 0 )
+				return false;
+		}
+		return true;
+	}
+
+	private void setBit(long bit) {
+		int word = (int) ( bit >>> 6 );
+		long mask = 1L << ( bit & 63 );
+		while ( true ) {
+			long w = bits.get(word);
+			if ( ( w & mask ) != 0 )
+				return;
+			if ( bits.compareAndSet(word, w, w | mask) ) {
+				bitsSet.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private static int getBucket(float frequency) {
+		return (int) Math.floor(frequency / FREQ_BUCKET_GHZ);
+	}
+
+	private static long hash(long cell, int alertCode, int bucket) {
+		long h = cell * 0x9E3779B97F4A7C15L + alertCode;
+		h = h * 0x9E3779B97F4A7C15L + bucket;
+		return mix(h);
+	}
+
+	/**
+	 * 64 bit finalizer from MurmurHash3
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	boolean isReady() {
+		return isReady;
+	}
+
+	double getFillRatio() {
+		return (double) bitsSet.get() / BITS;
+	}
+
+	/**
+	 * False positive rate expected from current fill
+	 */
+	double getEstimatedFalsePositiveRate() {
+		return Math.pow(getFillRatio(), HASHES);
+	}
+
+	/**
+	 * Observed false positive rate: positives which found nothing in database, out of all lookups of
+	 * never-seen threats
+	 */
+	double getObservedFalsePositiveRate() {
+		long fp = falsePositives.get();
+		long negatives = skipped.get() + fp;
+		return ( negatives == 0 ? 0d : (double) fp / negatives );
+	}
+
+	/**
+	 * Share of lookups answered without querying database
+	 */
+	double getSkipRatio() {
+		long q = queries.get();
+		return ( q == 0 ? 0d : (double) skipped.get() / q );
+	}
+
+	long getQueries() {
+		return queries.get();
+	}
+
+	long getSkipped() {
+		return skipped.get();
+	}
+}
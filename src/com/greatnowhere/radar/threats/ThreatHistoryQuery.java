@@ -0,0 +1,287 @@
+package com.greatnowhere.radar.threats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.cobra.iradar.protocol.CobraRadarMessageAlert.Alert;
+
+/**
+ * Filtered query over logged threats, newest first. Pages are fetched by keyset on (timestamp, id), so
+ * each page is an index range scan on threat_ind2 no matter how deep into history it is, instead of an OFFSET
+ * which walks all skipped rows. Rows are read straight off the cursor, one page at a time
+ */
+public class ThreatHistoryQuery {
+
+	public static final int DEFAULT_PAGE_SIZE = 50;
+
+	private static final String COLUMNS = "id,type,freq,timestamp,end_timestamp,fake,location_name,"
+			+ "(select count(*) from threats_locations where threat_id=threats.id)";
+
+	private Long fromTime;
+	private Long toTime;
+	private Integer alertCode;
+	private Integer credibility;
+	private String locationName;
+	private double[] boundingBox;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	/**
+	 * Limits to threats started within given range, millis. Either end may be null
+	 */
+	public ThreatHistoryQuery setTimeRange(Long from, Long to) {
+		fromTime = from;
+		toTime = to;
+		return this;
+	}
+
+	public ThreatHistoryQuery setAlert(Alert alert) {
+		alertCode = ( alert == null ? null : alert.getCode() );
+		return this;
+	}
+
+	public ThreatHistoryQuery setAlertCode(Integer code) {
+		alertCode = code;
+		return this;
+	}
+
+	public ThreatHistoryQuery setCredibility(ThreatManager.ThreatCredibility c) {
+		credibility = ( c == null ? null : c.getCode() );
+		return this;
+	}
+
+	public ThreatHistoryQuery setCredibilityCode(Integer code) {
+		credibility = code;
+		return this;
+	}
+
+	/**
+	 * Limits to threats whose road name starts with given text
+	 */
+	public ThreatHistoryQuery setLocationName(String name) {
+		locationName = ( name == null || name.length() == 0 ? null : name );
+		return this;
+	}
+
+	/**
+	 * Limits to threats with at least one logged location within given box
+	 */
+	public ThreatHistoryQuery setBoundingBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+		boundingBox = new double[] { minLatitude, minLongitude, maxLatitude, maxLongitude };
+		return this;
+	}
+
+	public ThreatHistoryQuery clearBoundingBox() {
+		boundingBox = null;
+		return this;
+	}
+
+	public ThreatHistoryQuery setPageSize(int size) {
+		pageSize = Math.max(1, size);
+		return this;
+	}
+
+	/**
+	 * Builds where clause of filters, appending bound args
+	 */
+	private String buildFilter(List<String> args) {
+		StringBuilder sb = new StringBuilder("1=1");
+		if ( fromTime != null ) {
+			sb.append(" and timestamp>=?");
+			args.add(fromTime.toString());
+		}
+		if ( toTime != null ) {
+			sb.append(" and timestamp<?");
+			args.add(toTime.toString());
+		}
+		if ( alertCode != null ) {
+			sb.append(" and type=?");
+			args.add(alertCode.toString());
+		}
+		if ( credibility != null ) {
+			sb.append(" and fake=?");
+			args.add(credibility.toString());
+		}
+		if ( locationName != null ) {
+			sb.append(" and location_name like ? escape '\\'");
+			args.add(locationName.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+		}
+		if ( boundingBox != null ) {
+			// lat/long are stored as text, compare as numbers
+			sb.append(" and exists (select 1 from threats_locations where threat_id=threats.id"
+					+ " and cast(lat as real) between ? and ? and cast(long as real) between ? and ?)");
+			args.add(Double.toString(boundingBox[0]));
+			args.add(Double.toString(boundingBox[2]));
+			args.add(Double.toString(boundingBox[1]));
+			args.add(Double.toString(boundingBox[3]));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Loads first page of results
+	 */
+	public Page loadFirstPage(SQLiteDatabase db) {
+		return loadPage(db, null);
+	}
+
+	/**
+	 * Loads page following given one
+	 * @param previous last loaded page, null for first page
+	 */
+	public Page loadPage(SQLiteDatabase db, Page previous) {
+		if ( previous != null && !previous.hasMore )
+			return new Page(Collections.<Entry>emptyList(), false, previous.lastTimestamp, previous.lastId);
+		List<String> args = new ArrayList<String>();
+		StringBuilder sql = new StringBuilder("select ").append(COLUMNS).append(" from threats where ")
+				.append(buildFilter(args));
+		if ( previous != null ) {
+			// written out instead of a row value, which older SQLite lacks; first term keeps the index range
+			sql.append(" and timestamp<=? and (timestamp<? or id<?)");
+			args.add(Long.toString(previous.lastTimestamp));
+			args.add(Long.toString(previous.lastTimestamp));
+			args.add(Long.toString(previous.lastId));
+		}
+		// one extra row tells if there is a next page
+		sql.append(" order by timestamp desc, id desc limit ").append(pageSize + 1);
+		List<Entry> entries = new ArrayList<Entry>(pageSize);
+		boolean hasMore = false;
+		Cursor c = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+		try {
+			while ( c.moveToNext() ) {
+				if ( entries.size() == pageSize ) {
+					hasMore = true;
+					break;
+				}
+				entries.add(new Entry(c));
+			}
+		} finally {
+			c.close();
+		}
+		Entry last = ( entries.isEmpty() ? null : entries.get(entries.size() - 1) );
+		return new Page(entries, hasMore, ( last == null ? 0L : last.startTime ), ( last == null ? 0L : last.id ));
+	}
+
+	/**
+	 * Aggregates all threats matching filters
+	 */
+	public Summary loadSummary(SQLiteDatabase db) {
+		List<String> args = new ArrayList<String>();
+		String where = buildFilter(args);
+		String[] bound = args.toArray(new String[args.size()]);
+		Summary s = new Summary();
+		Cursor c = db.rawQuery("select count(*),min(timestamp),max(timestamp),"
+				+ "sum(fake=" + ThreatManager.ThreatCredibility.LEGIT.getCode() + "),"
+				+ "sum(fake=" + ThreatManager.ThreatCredibility.SUSPECT_FAKE.getCode() + "),"
+				+ "sum(fake=" + ThreatManager.ThreatCredibility.FAKE.getCode() + "),"
+				+ "sum(fake=" + ThreatManager.ThreatCredibility.HIDDEN.getCode() + "),"
+				+ "sum(case when end_timestamp>timestamp then end_timestamp-timestamp else 0 end),"
+				+ "count(distinct location_name) from threats where " + where, bound);
+		try {
+			if ( c.moveToFirst() ) {
+				s.count = c.getInt(0);
+				s.firstTime = c.getLong(1);
+				s.lastTime = c.getLong(2);
+				s.legit = c.getInt(3);
+				s.suspect = c.getInt(4);
+				s.fake = c.getInt(5);
+				s.hidden = c.getInt(6);
+				s.totalDurationMillis = c.getLong(7);
+				s.locations = c.getInt(8);
+			}
+		} finally {
+			c.close();
+		}
+		c = db.rawQuery("select type,count(*) from threats where " + where + " group by type order by 2 desc", bound);
+		try {
+			while ( c.moveToNext() ) {
+				s.alertCodes.add(c.getInt(0));
+				s.alertCounts.add(c.getInt(1));
+			}
+		} finally {
+			c.close();
+		}
+		return s;
+	}
+
+	/**
+	 * One logged threat
+	 */
+	public static class Entry {
+		public final long id;
+		public final int alertCode;
+		public final float frequency;
+		public final long startTime;
+		public final long endTime;
+		public final int credibility;
+		public final String locationName;
+		public final int locationCount;
+
+		private Entry(Cursor c) {
+			id = c.getLong(0);
+			alertCode = c.getInt(1);
+			frequency = c.getFloat(2);
+			startTime = c.getLong(3);
+			endTime = ( c.isNull(4) ? 0L : c.getLong(4) );
+			credibility = ( c.isNull(5) ? ThreatManager.ThreatCredibility.LEGIT.getCode() : c.getInt(5) );
+			locationName = c.getString(6);
+			locationCount = c.getInt(7);
+		}
+
+		public Alert getAlert() {
+			return Alert.fromRadarCode(alertCode);
+		}
+
+		public ThreatManager.ThreatCredibility getCredibility() {
+			for ( ThreatManager.ThreatCredibility c : ThreatManager.ThreatCredibility.values() ) {
+				if ( c.getCode() == credibility )
+					return c;
+			}
+			return ThreatManager.ThreatCredibility.LEGIT;
+		}
+
+		public long getDurationMillis() {
+			return ( endTime > startTime ? endTime - startTime : 0L );
+		}
+	}
+
+	/**
+	 * Page of entries plus the keyset position to continue from
+	 */
+	public static class Page {
+		public final List<Entry> entries;
+		public final boolean hasMore;
+		private final long lastTimestamp;
+		private final long lastId;
+
+		private Page(List<Entry> entries, boolean hasMore, long lastTimestamp, long lastId) {
+			this.entries = entries;
+			this.hasMore = hasMore;
+			this.lastTimestamp = lastTimestamp;
+			this.lastId = lastId;
+		}
+	}
+
+	/**
+	 * Totals over all matching threats
+	 */
+	public static class Summary {
+		public int count;
+		public long firstTime;
+		public long lastTime;
+		public int legit;
+		public int suspect;
+		public int fake;
+		public int hidden;
+		public long totalDurationMillis;
+		public int locations;
+		/**
+		 * Alert codes and their counts, most frequent first
+		 */
+		public final List<Integer> alertCodes = new ArrayList<Integer>();
+		public final List<Integer> alertCounts = new ArrayList<Integer>();
+	}
+}
@@ -0,0 +1,475 @@
+package com.greatnowhere.radar.threats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Environment;
+import android.util.Log;
+
+import com.greatnowhere.radar.config.Preferences;
+import com.greatnowhere.radar.location.GeoGrid;
+import com.greatnowhere.radar.messaging.RadarMessageNotification;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Streams threat history to and from a compact columnar file.
+ * File is a header followed by blocks of up to {@link #BLOCK_ROWS} rows of either threats or locations. Inside
+ * a block each column is stored contiguously, ids and timestamps as zigzag varint deltas, coordinates as
+ * 1e-7 degree fixed point deltas. Every block carries a CRC32 of its payload. Export reads one snapshot in
+ * keyset pages, so memory use doesn't depend on history size. Import inserts in one transaction, so a corrupt or
+ * truncated file leaves nothing behind
+ */
+public class ThreatLogArchive {
+
+	private static final String TAG = ThreatLogArchive.class.getCanonicalName();
+
+	public static final String DEFAULT_FILE_NAME = "iradar-threats.tlog";
+	static final int BLOCK_ROWS = 1024;
+
+	private static final int MAGIC = 0x544C4F47; // TLOG
+	private static final int VERSION = 1;
+	private static final int BLOCK_END = 0;
+	private static final int BLOCK_THREATS = 1;
+	private static final int BLOCK_LOCATIONS = 2;
+	private static final double COORD_SCALE = 1e7d;
+	/**
+	 * Sanity bound on block payload, guards against allocating garbage lengths from a corrupt file
+	 */
+	private static final int MAX_BLOCK_BYTES = 4 * 1024 * 1024;
+
+	private final SQLiteDatabase db;
+
+	// one block worth of rows, reused
+	private final long[] ids = new long[BLOCK_ROWS];
+	private final long[] refs = new long[BLOCK_ROWS];
+	private final long[] times = new long[BLOCK_ROWS];
+	private final long[] times2 = new long[BLOCK_ROWS];
+	private final long[] lats = new long[BLOCK_ROWS];
+	private final long[] lngs = new long[BLOCK_ROWS];
+	private final int[] ints1 = new int[BLOCK_ROWS];
+	private final int[] ints2 = new int[BLOCK_ROWS];
+	private final int[] ints3 = new int[BLOCK_ROWS];
+	private final String[] names = new String[BLOCK_ROWS];
+	private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64 * 1024);
+	private final CRC32 crc = new CRC32();
+
+	ThreatLogArchive(SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * Writes whole threat history to file. Both passes read one snapshot, so a threat committed between them
+	 * can't leave locations without their threat in the file. Threat log writer waits until export is done
+	 * @return number of threats and locations written
+	 */
+	long[] export(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 64 * 1024));
+		long threats = 0, locations = 0;
+		db.beginTransactionNonExclusive();
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			long lastId = -1;
+			int n;
+			while ( ( n = readThreats(lastId) ) > 0 ) {
+				writeThreatBlock(out, n);
+				lastId = ids[n - 1];
+				threats += n;
+			}
+			lastId = -1;
+			while ( ( n = readLocations(lastId) ) > 0 ) {
+				writeLocationBlock(out, n);
+				lastId = ids[n - 1];
+				locations += n;
+			}
+			out.writeByte(BLOCK_END);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			out.close();
+		}
+		return new long[] { threats, locations };
+	}
+
+	private int readThreats(long afterId) {
+		Cursor c = db.rawQuery("select id,type,freq,timestamp,end_timestamp,fake,location_name from threats "
+				+ "where id>? order by id limit " + BLOCK_ROWS, new String[] { Long.toString(afterId) });
+		int n = 0;
+		try {
+			while ( c.moveToNext() ) {
+				ids[n] = c.getLong(0);
+				ints1[n] = c.getInt(1);
+				ints2[n] = Math.round(c.getFloat(2) * 1000f);
+				times[n] = c.getLong(3);
+				times2[n] = c.getLong(4);
+				ints3[n] = c.getInt(5);
+				names[n] = c.getString(6);
+				n++;
+			}
+		} finally {
+			c.close();
+		}
+		return n;
+	}
+
+	private int readLocations(long afterId) {
+		Cursor c = db.rawQuery("select id,threat_id,lat,long,ts,speed,bearing from threats_locations "
+				+ "where id>? order by id limit " + BLOCK_ROWS, new String[] { Long.toString(afterId) });
+		int n = 0;
+		try {
+			while ( c.moveToNext() ) {
+				ids[n] = c.getLong(0);
+				refs[n] = c.getLong(1);
+				lats[n] = Math.round(c.getDouble(2) * COORD_SCALE);
+				lngs[n] = Math.round(c.getDouble(3) * COORD_SCALE);
+				times[n] = c.getLong(4);
+				ints1[n] = Math.round(c.getFloat(5) * 100f);
+				ints2[n] = Math.round(c.getFloat(6) * 10f);
+				n++;
+			}
+		} finally {
+			c.close();
+		}
+		return n;
+	}
+
+	private void writeThreatBlock(DataOutputStream out, int n) throws IOException {
+		payload.reset();
+		writeDeltas(ids, n);
+		for ( int i = 0; i < n; i++ )
+			writeVarint(zigzag(ints1[i]));
+		writeIntDeltas(ints2, n);
+		writeDeltas(times, n);
+		for ( int i = 0; i < n; i++ )
+			writeVarint(zigzag(times2[i] - times[i]));
+		for ( int i = 0; i < n; i++ )
+			writeVarint(zigzag(ints3[i]));
+		for ( int i = 0; i < n; i++ )
+			writeString(names[i]);
+		writeBlock(out, BLOCK_THREATS, n);
+	}
+
+	private void writeLocationBlock(DataOutputStream out, int n) throws IOException {
+		payload.reset();
+		writeDeltas(ids, n);
+		writeDeltas(refs, n);
+		writeDeltas(lats, n);
+		writeDeltas(lngs, n);
+		writeDeltas(times, n);
+		for ( int i = 0; i < n; i++ )
+			writeVarint(zigzag(ints1[i]));
+		for ( int i = 0; i < n; i++ )
+			writeVarint(zigzag(ints2[i]));
+		writeBlock(out, BLOCK_LOCATIONS, n);
+	}
+
+	private void writeBlock(DataOutputStream out, int type, int n) throws IOException {
+		byte[] bytes = payload.toByteArray();
+		crc.reset();
+		crc.update(bytes);
+		out.writeByte(type);
+		out.writeInt(n);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Appends file contents to database, all or nothing. Ids are shifted past existing rows so imports never collide
+	 * @return number of threats and locations imported
+	 */
+	long[] importFrom(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+		long threats = 0, locations = 0;
+		long threatIdOffset = DatabaseUtils.longForQuery(db, "select ifnull(max(id),0) from threats", null);
+		long locationIdOffset = DatabaseUtils.longForQuery(db, "select ifnull(max(id),0) from threats_locations", null);
+		SQLiteStatement insThreat = db.compileStatement("insert into threats(id,type,freq,timestamp,end_timestamp,fake,location_name) "
+				+ "values (?,?,?,?,?,?,?)");
+		SQLiteStatement insLocation = db.compileStatement("insert into threats_locations(id,threat_id,lat,long,ts,speed,bearing,"
+				+ "coslat,sinlat,coslong,sinlong,cell) values (?,?,?,?,?,?,?,?,?,?,?,?)");
+		db.beginTransaction();
+		try {
+			if ( in.readInt() != MAGIC )
+				throw new IOException("Not a threat log archive");
+			int version = in.readByte();
+			if ( version != VERSION )
+				throw new IOException("Unsupported archive version " + version);
+			while ( true ) {
+				int type = in.readByte();
+				if ( type == BLOCK_END )
+					break;
+				int n = in.readInt();
+				int length = in.readInt();
+				if ( n < 0 || n > BLOCK_ROWS || length < 0 || length > MAX_BLOCK_BYTES )
+					throw new IOException("Bad block header, " + n + " rows " + length + " bytes");
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				crc.reset();
+				crc.update(bytes);
+				if ( (int) crc.getValue() != in.readInt() )
+					throw new IOException("Checksum mismatch in block " + ( threats + locations ));
+				Block b = new Block(bytes);
+				if ( type == BLOCK_THREATS ) {
+					decodeThreats(b, n);
+					for ( int i = 0; i < n; i++ ) {
+						insThreat.bindLong(1, ids[i] + threatIdOffset);
+						insThreat.bindLong(2, ints1[i]);
+						insThreat.bindDouble(3, ints2[i] / 1000f);
+						insThreat.bindLong(4, times[i]);
+						insThreat.bindLong(5, times2[i]);
+						insThreat.bindLong(6, ints3[i]);
+						if ( names[i] == null )
+							insThreat.bindNull(7);
+						else
+							insThreat.bindString(7, names[i]);
+						insThreat.executeInsert();
+					}
+					threats += n;
+				} else if ( type == BLOCK_LOCATIONS ) {
+					decodeLocations(b, n);
+					for ( int i = 0; i < n; i++ ) {
+						double lat = lats[i] / COORD_SCALE;
+						double lng = lngs[i] / COORD_SCALE;
+						insLocation.bindLong(1, ids[i] + locationIdOffset);
+						insLocation.bindLong(2, refs[i] + threatIdOffset);
+						insLocation.bindString(3, ThreatLogger.double2String(lat));
+						insLocation.bindString(4, ThreatLogger.double2String(lng));
+						insLocation.bindLong(5, times[i]);
+						insLocation.bindDouble(6, ints1[i] / 100f);
+						insLocation.bindDouble(7, ints2[i] / 10f);
+						// derived columns are recomputed, not stored in archive
+						insLocation.bindString(8, ThreatLogger.double2String(Math.cos(ThreatLogger.deg2rad(lat))));
+						insLocation.bindString(9, ThreatLogger.double2String(Math.sin(ThreatLogger.deg2rad(lat))));
+						insLocation.bindString(10, ThreatLogger.double2String(Math.cos(ThreatLogger.deg2rad(lng))));
+						insLocation.bindString(11, ThreatLogger.double2String(Math.sin(ThreatLogger.deg2rad(lng))));
+						insLocation.bindLong(12, GeoGrid.getCellId(lat, lng));
+						insLocation.executeInsert();
+					}
+					locations += n;
+				} else {
+					throw new IOException("Unknown block type " + type);
+				}
+			}
+			db.setTransactionSuccessful();
+		} catch (EOFException e) {
+			throw new IOException("Archive is truncated");
+		} finally {
+			db.endTransaction();
+			insThreat.close();
+			insLocation.close();
+			in.close();
+		}
+		// rebuild indexes and planner statistics after bulk load
+		db.execSQL("REINDEX threats");
+		db.execSQL("REINDEX threats_locations");
+		db.execSQL("ANALYZE");
+		ThreatLogger.rebuildHistoryFilter();
+		return new long[] { threats, locations };
+	}
+
+	private void decodeThreats(Block b, int n) throws IOException {
+		readDeltas(b, ids, n);
+		for ( int i = 0; i < n; i++ )
+			ints1[i] = (int) unzigzag(b.readVarint());
+		readIntDeltas(b, ints2, n);
+		readDeltas(b, times, n);
+		for ( int i = 0; i < n; i++ )
+			times2[i] = times[i] + unzigzag(b.readVarint());
+		for ( int i = 0; i < n; i++ )
+			ints3[i] = (int) unzigzag(b.readVarint());
+		for ( int i = 0; i < n; i++ )
+			names[i] = b.readString();
+	}
+
+	private void decodeLocations(Block b, int n) throws IOException {
+		readDeltas(b, ids, n);
+		readDeltas(b, refs, n);
+		readDeltas(b, lats, n);
+		readDeltas(b, lngs, n);
+		readDeltas(b, times, n);
+		for ( int i = 0; i < n; i++ )
+			ints1[i] = (int) unzigzag(b.readVarint());
+		for ( int i = 0; i < n; i++ )
+			ints2[i] = (int) unzigzag(b.readVarint());
+	}
+
+	private void writeDeltas(long[] values, int n) {
+		long prev = 0;
+		for ( int i = 0; i < n; i++ ) {
+			writeVarint(zigzag(values[i] - prev));
+			prev = values[i];
+		}
+	}
+
+	private void writeIntDeltas(int[] values, int n) {
+		long prev = 0;
+		for ( int i = 0; i < n; i++ ) {
+			writeVarint(zigzag(values[i] - prev));
+			prev = values[i];
+		}
+	}
+
+	private static void readDeltas(Block b, long[] values, int n) throws IOException {
+		long prev = 0;
+		for ( int i = 0; i < n; i++ ) {
+			prev += unzigzag(b.readVarint());
+			values[i] = prev;
+		}
+	}
+
+	private static void readIntDeltas(Block b, int[] values, int n) throws IOException {
+		long prev = 0;
+		for ( int i = 0; i < n; i++ ) {
+			prev += unzigzag(b.readVarint());
+			values[i] = (int) prev;
+		}
+	}
+
+	private void writeVarint(long v) {
+		while ( ( v & ~0x7FL ) != 0 ) {
+			payload.write((int) ( ( v & 0x7F ) | 0x80 ));
+			v >>>= 7;
+		}
+		payload.write((int) v);
+	}
+
+	/**
+	 * Strings are stored as varint length + 1 (0 for null) and UTF-8 bytes
+	 */
+	private void writeString(String s) {
+		if ( s == null ) {
+			writeVarint(0);
+			return;
+		}
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		writeVarint(bytes.length + 1);
+		payload.write(bytes, 0, bytes.length);
+	}
+
+	private static long zigzag(long v) {
+		return ( v << 1 ) ^ ( v >> 63 );
+	}
+
+	private static long unzigzag(long v) {
+		return ( v >>> 1 ) ^ -( v & 1 );
+	}
+
+	/**
+	 * Cursor over a verified block payload
+	 */
+	private static class Block {
+		private final byte[] bytes;
+		private int pos = 0;
+
+		Block(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		long readVarint() throws IOException {
+			long v = 0;
+			int shift = 0;
+			while ( shift < 64 ) {
+				if ( pos >= bytes.length )
+					throw new IOException("Block ends inside a value");
+				int b = bytes[pos++];
+				v |= (long) ( b & 0x7F ) << shift;
+				if ( ( b & 0x80 ) == 0 )
+					return v;
+				shift += 7;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		String readString() throws IOException {
+			int length = (int) readVarint();
+			if ( length == 0 )
+				return null;
+			length--;
+			if ( length > bytes.length - pos )
+				throw new IOException("Block ends inside a string");
+			String s = new String(bytes, pos, length, "UTF-8");
+			pos += length;
+			return s;
+		}
+	}
+
+	/**
+	 * Runs export or import in background and reports the result
+	 * @author pzeltins
+	 *
+	 */
+	public static class ArchiveService extends IntentService {
+
+		public static final String ACTION_EXPORT = ArchiveService.class.getCanonicalName() + ".EXPORT";
+		public static final String ACTION_IMPORT = ArchiveService.class.getCanonicalName() + ".IMPORT";
+		/**
+		 * Absolute file path, defaults to {@link ThreatLogArchive#DEFAULT_FILE_NAME} on external storage
+		 */
+		public static final String EXTRA_FILE = "archiveFile";
+		private static final long EXPORT_FLUSH_TIMEOUT_MS = 10000L;
+
+		public ArchiveService() {
+			super(ArchiveService.class.getCanonicalName());
+		}
+
+		@Override
+		protected void onHandleIntent(Intent intent) {
+			Preferences.init(getApplicationContext());
+			ThreatLogger.init(getApplicationContext());
+			String path = intent.getStringExtra(EXTRA_FILE);
+			File f = ( path != null ? new File(path) : new File(Environment.getExternalStorageDirectory(), DEFAULT_FILE_NAME) );
+			ThreatLogArchive archive = new ThreatLogArchive(ThreatLogger.getDatabase());
+			long started = System.currentTimeMillis();
+			String result;
+			try {
+				if ( ACTION_IMPORT.equals(intent.getAction()) ) {
+					long[] counts = archive.importFrom(f);
+					result = "Imported " + counts[0] + " threats, " + counts[1] + " locations from " + f.getName();
+				} else {
+					// threats still queued by the logger go in too
+					if ( !ThreatLogger.flushAndWait(EXPORT_FLUSH_TIMEOUT_MS) )
+						Log.w(TAG, "Queued threats not written in time, exporting without them");
+					long[] counts = archive.export(f);
+					result = "Exported " + counts[0] + " threats, " + counts[1] + " locations to " + f.getName()
+							+ " (" + ( f.length() / 1024 ) + "KB)";
+				}
+				result += " in " + ( System.currentTimeMillis() - started ) + "ms";
+				Log.i(TAG, result);
+			} catch (IOException e) {
+				result = getFailure(intent, e);
+			} catch (SQLException e) {
+				result = getFailure(intent, e);
+			}
+			EventBus.getDefault().post(new RadarMessageNotification(result));
+		}
+
+		private static String getFailure(Intent intent, Exception e) {
+			Log.e(TAG, "Threat log archive failed", e);
+			return "Threat history " + ( ACTION_IMPORT.equals(intent.getAction()) ? "import" : "export" )
+					+ " failed: " + e.getMessage();
+		}
+	}
+}
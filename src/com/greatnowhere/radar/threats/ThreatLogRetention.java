@@ -0,0 +1,159 @@
+package com.greatnowhere.radar.threats;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Enforces threat log retention policies: max number of threats, max age and max database size.
+ * Threats are deleted oldest first in bounded chunks, each in its own short transaction, so
+ * {@link ThreatLogWriter} and credibility lookups are never blocked for long. Freed pages are returned
+ * to the file system with incremental vacuum
+ */
+class ThreatLogRetention {
+
+	private static final String TAG = ThreatLogRetention.class.getCanonicalName();
+
+	/**
+	 * Threats deleted per transaction. Locations cascade, so actual row count is larger
+	 */
+	static final int CHUNK_THREATS = 100;
+	/**
+	 * Pages released per incremental vacuum step
+	 */
+	static final int VACUUM_CHUNK_PAGES = 256;
+	/**
+	 * Safety bound on chunks deleted by the size policy in one run
+	 */
+	private static final int MAX_SIZE_CHUNKS = 1000;
+
+	private final SQLiteDatabase db;
+	private final SQLiteStatement deleteOldest;
+	private final SQLiteStatement deleteOlderThan;
+
+	ThreatLogRetention(SQLiteDatabase db) {
+		this.db = db;
+		deleteOldest = db.compileStatement("delete from threats where id in "
+				+ "(select id from threats order by timestamp, id limit ?)");
+		deleteOlderThan = db.compileStatement("delete from threats where id in "
+				+ "(select id from threats where timestamp<? order by timestamp, id limit " + CHUNK_THREATS + ")");
+	}
+
+	/**
+	 * Applies all policies
+	 * @param maxCount max threats to keep, 0 if unlimited
+	 * @param maxAgeMillis max threat age, 0 if unlimited
+	 * @param maxBytes max database size, 0 if unlimited
+	 * @return what was deleted and reclaimed
+	 */
+	Result enforce(int maxCount, long maxAgeMillis, long maxBytes) {
+		Result r = new Result();
+		r.bytesBefore = getFileBytes();
+		long started = System.currentTimeMillis();
+
+		if ( maxAgeMillis > 0 ) {
+			deleteOlderThan.bindLong(1, System.currentTimeMillis() - maxAgeMillis);
+			int deleted;
+			do {
+				deleted = deleteOlderThan.executeUpdateDelete();
+				r.threatsDeletedByAge += deleted;
+			} while ( deleted >= CHUNK_THREATS );
+		}
+
+		if ( maxCount > 0 ) {
+			long excess = DatabaseUtils.queryNumEntries(db, "threats") - maxCount;
+			while ( excess > 0 ) {
+				int deleted = deleteOldestChunk((int) Math.min(excess, CHUNK_THREATS));
+				if ( deleted == 0 )
+					break;
+				r.threatsDeletedByCount += deleted;
+				excess -= deleted;
+			}
+		}
+
+		if ( maxBytes > 0 ) {
+			// pages on the freelist are reusable, so only count pages in use
+			int chunks = 0;
+			while ( getUsedBytes() > maxBytes && chunks++ < MAX_SIZE_CHUNKS ) {
+				int deleted = deleteOldestChunk(CHUNK_THREATS);
+				if ( deleted == 0 )
+					break;
+				r.threatsDeletedBySize += deleted;
+			}
+		}
+
+		if ( r.getThreatsDeleted() > 0 || getFreePages() > 0 ) {
+			incrementalVacuum();
+		}
+		r.bytesAfter = getFileBytes();
+		Log.i(TAG, r.toString() + " in " + ( System.currentTimeMillis() - started ) + "ms");
+		return r;
+	}
+
+	private int deleteOldestChunk(int count) {
+		deleteOldest.bindLong(1, count);
+		return deleteOldest.executeUpdateDelete();
+	}
+
+	/**
+	 * Releases free pages to file system in small steps
+	 */
+	private void incrementalVacuum() {
+		long free;
+		while ( ( free = getFreePages() ) > 0 ) {
+			// pragma returns a row per step, must be stepped to completion
+			Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + Math.min(free, VACUUM_CHUNK_PAGES) + ")", null);
+			try {
+				while ( c.moveToNext() ) {
+				}
+			} finally {
+				c.close();
+			}
+			if ( getFreePages() >= free ) {
+				// auto_vacuum not in effect, nothing more to do
+				break;
+			}
+		}
+	}
+
+	private long getPageSize() {
+		return DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+	}
+
+	private long getFreePages() {
+		return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+	}
+
+	private long getFileBytes() {
+		return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * getPageSize();
+	}
+
+	private long getUsedBytes() {
+		return ( DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) - getFreePages() ) * getPageSize();
+	}
+
+	static class Result {
+		int threatsDeletedByAge;
+		int threatsDeletedByCount;
+		int threatsDeletedBySize;
+		long bytesBefore;
+		long bytesAfter;
+
+		int getThreatsDeleted() {
+			return threatsDeletedByAge + threatsDeletedByCount + threatsDeletedBySize;
+		}
+
+		long getBytesReclaimed() {
+			return Math.max(0, bytesBefore - bytesAfter);
+		}
+
+		@Override
+		public String toString() {
+			return "Threat log pruned " + getThreatsDeleted() + " threats (age " + threatsDeletedByAge + ", count "
+					+ threatsDeletedByCount + ", size " + threatsDeletedBySize + "), reclaimed " + ( getBytesReclaimed() / 1024 )
+					+ "KB, db now " + ( bytesAfter / 1024 ) + "KB";
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package com.greatnowhere.radar.threats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.greatnowhere.radar.location.GeoGrid;
+
+/**
+ * Write-behind queue for ended threats. Threats are snapshotted and appended to a spill file on the caller thread,
+ * then handed to a single writer thread, which inserts them into the database in batched transactions once enough
+ * rows are pending or enough time passed. Spill records are numbered; after each flush the spill header records
+ * the last committed number, and the file is truncated once nothing newer is spilled. On startup records past
+ * that number are replayed, skipping threats already in the database, so queued threats survive process death
+ * and a death between commit and header update doesn't duplicate them.
+ * Written locations are also added to {@link ThreatHistoryFilter}, which is loaded or built here before replay
+ */
+class ThreatLogWriter implements Runnable {
+
+	private static final String TAG = ThreatLogWriter.class.getCanonicalName();
+
+	/**
+	 * Flush once this many threats, or this many track points, are pending
+	 */
+	static final int FLUSH_THREATS = 16;
+	static final int FLUSH_LOCATIONS = 2000;
+	/**
+	 * Flush at latest this long after first pending threat was queued
+	 */
+	static final long FLUSH_INTERVAL_MS = 30000L;
+
+	private static final int SPILL_VERSION = 2;
+	/**
+	 * Spill file header: format version, then last committed sequence number
+	 */
+	private static final int SPILL_FILE_VERSION = 2;
+	private static final int SPILL_HEADER_BYTES = 12;
+	private static final int SPILL_COMMITTED_OFFSET = 4;
+	/**
+	 * Record length and CRC before each record
+	 */
+	private static final int SPILL_RECORD_HEADER_BYTES = 12;
+
+	private final File spillFile;
+	private final ThreatHistoryFilter historyFilter;
+	private final ThreatHistoryCache historyCache;
+	private final BlockingQueue<PendingThreat> queue = new LinkedBlockingQueue<PendingThreat>();
+	private final List<PendingThreat> batch = new ArrayList<PendingThreat>();
+	private int batchLocations = 0;
+	private long batchDeadline = 0;
+	private volatile boolean isFlushRequested = false;
+	/**
+	 * Spill file and sequence numbers, appended to on caller threads and marked committed on writer thread
+	 */
+	private final Object spillLock = new Object();
+	private RandomAccessFile spill;
+	private long nextSequence = 1;
+	private long committedSequence = 0;
+	/**
+	 * Read from spill file in {@link #start()}, written first by writer thread
+	 */
+	private List<PendingThreat> replay;
+	private SQLiteStatement countThreat;
+	/**
+	 * Compiled once, only used on writer thread
+	 */
+	private SQLiteStatement insThreat;
+	private SQLiteStatement insLocation;
+
+	private final AtomicLong threatsWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final AtomicLong threatsReplayed = new AtomicLong();
+
+	ThreatLogWriter(File spillFile, ThreatHistoryFilter historyFilter, ThreatHistoryCache historyCache) {
+		this.spillFile = spillFile;
+		this.historyFilter = historyFilter;
+		this.historyCache = historyCache;
+	}
+
+	/**
+	 * Reads spill file left by previous process and starts writer thread, which first replays it
+	 */
+	void start() {
+		replay = openSpill();
+		Thread t = new Thread(this, TAG);
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Appends threat to spill file and queues it for writing. Doesn't wait for database
+	 */
+	void enqueue(PendingThreat t) {
+		// queued in sequence order, so committing a batch's last number commits everything before it
+		synchronized (spillLock) {
+			appendSpill(t);
+			queue.offer(t);
+		}
+	}
+
+	/**
+	 * Asks writer to flush whatever is pending without waiting for batch size or interval
+	 */
+	void requestFlush() {
+		isFlushRequested = true;
+		queue.offer(PendingThreat.FLUSH_MARKER);
+	}
+
+	/**
+	 * Requests flush and waits until every threat queued so far is committed
+	 * @return false on timeout or interrupt
+	 */
+	boolean flushAndWait(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (spillLock) {
+			long target = nextSequence - 1;
+			if ( committedSequence >= target )
+				return true;
+			requestFlush();
+			try {
+				while ( committedSequence < target ) {
+					long wait = deadline - System.currentTimeMillis();
+					if ( wait <= 0 )
+						return false;
+					spillLock.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void run() {
+		try {
+			historyFilter.loadOrBuild(ThreatLogger.getDatabase());
+		} catch (Exception e) {
+			// filter stays not ready and answers every lookup with "maybe"
+			Log.e(TAG, "Failed to load threat history filter", e);
+		}
+		try {
+			replaySpill();
+		} catch (Exception e) {
+			// retried before next flush
+			Log.e(TAG, "Failed to replay spill file", e);
+		}
+		while ( true ) {
+			try {
+				long wait = ( batch.isEmpty() ? FLUSH_INTERVAL_MS : Math.max(0, batchDeadline - System.currentTimeMillis()) );
+				PendingThreat t = queue.poll(wait, TimeUnit.MILLISECONDS);
+				if ( t != null && t != PendingThreat.FLUSH_MARKER ) {
+					if ( batch.isEmpty() )
+						batchDeadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+					batch.add(t);
+					batchLocations += t.locationCount;
+				}
+				if ( !batch.isEmpty() && ( isFlushRequested || batch.size() >= FLUSH_THREATS
+						|| batchLocations >= FLUSH_LOCATIONS || System.currentTimeMillis() >= batchDeadline ) ) {
+					isFlushRequested = false;
+					if ( replay != null )
+						replaySpill();
+					flush();
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// keep batch and spill, retry on next round
+				Log.e(TAG, "Threat log flush failed", e);
+				batchDeadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+			}
+		}
+	}
+
+	private void flush() throws IOException {
+		write(batch, false);
+		Log.d(TAG, "Wrote " + batch.size() + " threats, " + batchLocations + " locations");
+		markCommitted(batch.get(batch.size() - 1).sequence);
+		batch.clear();
+		batchLocations = 0;
+		historyFilter.save();
+	}
+
+	/**
+	 * Inserts threats and their tracks in one transaction
+	 * @param isReplay skip threats already in database, written before previous process died
+	 */
+	private void write(List<PendingThreat> threats, boolean isReplay) {
+		SQLiteDatabase db = ThreatLogger.getDatabase();
+		if ( insThreat == null ) {
+			insThreat = db.compileStatement("insert into threats(type,freq,timestamp,end_timestamp,fake,location_name) "
+					+ "values (?,?,?,?,?,?)");
+			insLocation = db.compileStatement("insert into threats_locations(threat_id,lat,long,ts,speed,bearing,"
+					+ "coslat,sinlat,coslong,sinlong,cell) values (?,?,?,?,?,?,?,?,?,?,?)");
+		}
+		if ( isReplay && countThreat == null )
+			countThreat = db.compileStatement("select count(*) from threats where timestamp=? and type=? and end_timestamp=?");
+		db.beginTransaction();
+		try {
+			for ( PendingThreat t : threats ) {
+				if ( isReplay ) {
+					countThreat.bindLong(1, t.startTime);
+					countThreat.bindLong(2, t.type);
+					countThreat.bindLong(3, t.endTime);
+					if ( countThreat.simpleQueryForLong() > 0 )
+						continue;
+				}
+				insThreat.bindLong(1, t.type);
+				insThreat.bindDouble(2, t.frequency);
+				insThreat.bindLong(3, t.startTime);
+				insThreat.bindLong(4, t.endTime);
+				insThreat.bindLong(5, t.credibility);
+				if ( t.locationName == null )
+					insThreat.bindNull(6);
+				else
+					insThreat.bindString(6, t.locationName);
+				long threatId = insThreat.executeInsert();
+				for ( int i = 0; i < t.locationCount; i++ ) {
+					double lat = t.lat[i];
+					double lng = t.lng[i];
+					insLocation.bindLong(1, threatId);
+					insLocation.bindString(2, ThreatLogger.double2String(lat));
+					insLocation.bindString(3, ThreatLogger.double2String(lng));
+					insLocation.bindLong(4, t.time[i]);
+					insLocation.bindDouble(5, t.speed[i]);
+					insLocation.bindDouble(6, t.bearing[i]);
+					insLocation.bindString(7, ThreatLogger.double2String(Math.cos(ThreatLogger.deg2rad(lat))));
+					insLocation.bindString(8, ThreatLogger.double2String(Math.sin(ThreatLogger.deg2rad(lat))));
+					insLocation.bindString(9, ThreatLogger.double2String(Math.cos(ThreatLogger.deg2rad(lng))));
+					insLocation.bindString(10, ThreatLogger.double2String(Math.sin(ThreatLogger.deg2rad(lng))));
+					insLocation.bindLong(11, GeoGrid.getCellId(lat, lng));
+					insLocation.executeInsert();
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		// only committed rows go to the filter
+		for ( PendingThreat t : threats ) {
+			for ( int i = 0; i < t.locationCount; i++ ) {
+				historyFilter.add(t.type, t.frequency, t.lat[i], t.lng[i]);
+				historyCache.invalidate(t.lat[i], t.lng[i]);
+			}
+		}
+		threatsWritten.addAndGet(threats.size());
+		batchesWritten.incrementAndGet();
+	}
+
+	/**
+	 * Numbers threat and appends it to spill file, in one write
+	 */
+	private void appendSpill(PendingThreat t) {
+		synchronized (spillLock) {
+			t.sequence = nextSequence++;
+			if ( spill == null )
+				return;
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(SPILL_RECORD_HEADER_BYTES + 72 + t.locationCount * 40);
+				DataOutputStream out = new DataOutputStream(bytes);
+				// placeholders for length and CRC
+				out.writeInt(0);
+				out.writeLong(0L);
+				t.writeTo(out);
+				byte[] record = bytes.toByteArray();
+				int length = record.length - SPILL_RECORD_HEADER_BYTES;
+				CRC32 crc = new CRC32();
+				crc.update(record, SPILL_RECORD_HEADER_BYTES, length);
+				ByteBuffer.wrap(record).putInt(length).putLong(crc.getValue());
+				spill.seek(spill.length());
+				spill.write(record);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to spill threat", e);
+			}
+		}
+	}
+
+	/**
+	 * Records threats up to sequence number as committed, truncating spill file if nothing newer is in it
+	 */
+	private void markCommitted(long sequence) {
+		synchronized (spillLock) {
+			committedSequence = sequence;
+			spillLock.notifyAll();
+			if ( spill == null )
+				return;
+			// batch is in db now, a failed update only makes replay look for it there
+			try {
+				if ( sequence >= nextSequence - 1 )
+					spill.setLength(SPILL_HEADER_BYTES);
+				spill.seek(SPILL_COMMITTED_OFFSET);
+				spill.writeLong(sequence);
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to update spill file", e);
+			}
+		}
+	}
+
+	/**
+	 * Opens spill file, reading threats left uncommitted by previous process. A torn or corrupt record
+	 * ends them, and is cut off so new records follow whole ones
+	 * @return threats to replay
+	 */
+	private List<PendingThreat> openSpill() {
+		List<PendingThreat> threats = new ArrayList<PendingThreat>();
+		synchronized (spillLock) {
+			try {
+				spill = new RandomAccessFile(spillFile, "rw");
+				int length = (int) spill.length();
+				byte[] all = new byte[length];
+				spill.readFully(all);
+				ByteBuffer in = ByteBuffer.wrap(all);
+				long lastSequence = 0;
+				int end = 0;
+				if ( length >= SPILL_HEADER_BYTES && in.getInt() == SPILL_FILE_VERSION ) {
+					committedSequence = in.getLong();
+					lastSequence = committedSequence;
+					end = SPILL_HEADER_BYTES;
+					while ( in.remaining() >= SPILL_RECORD_HEADER_BYTES ) {
+						int recordLength = in.getInt();
+						long expectedCrc = in.getLong();
+						if ( recordLength <= 0 || recordLength > in.remaining() )
+							break;
+						CRC32 crc = new CRC32();
+						crc.update(all, in.position(), recordLength);
+						if ( crc.getValue() != expectedCrc ) {
+							Log.w(TAG, "Corrupt spill record, stopping replay");
+							break;
+						}
+						PendingThreat t = PendingThreat.readFrom(new DataInputStream(
+								new ByteArrayInputStream(all, in.position(), recordLength)));
+						in.position(in.position() + recordLength);
+						end = in.position();
+						lastSequence = Math.max(lastSequence, t.sequence);
+						if ( t.sequence > committedSequence )
+							threats.add(t);
+					}
+				} else if ( length > 0 ) {
+					Log.w(TAG, "Unknown spill file format, discarding");
+				}
+				nextSequence = lastSequence + 1;
+				if ( end == 0 ) {
+					spill.setLength(0);
+					spill.seek(0);
+					spill.writeInt(SPILL_FILE_VERSION);
+					spill.writeLong(committedSequence);
+				} else {
+					spill.setLength(end);
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to open spill file, threats won't survive process death", e);
+				if ( spill != null ) {
+					try {
+						spill.close();
+					} catch (IOException e1) {
+					}
+				}
+				spill = null;
+			}
+		}
+		return threats;
+	}
+
+	/**
+	 * Writes threats left in spill file by previous process. Kept for retry if that fails, as later batches
+	 * must not be committed before them
+	 */
+	private void replaySpill() {
+		if ( replay == null )
+			return;
+		if ( !replay.isEmpty() ) {
+			write(replay, true);
+			threatsReplayed.addAndGet(replay.size());
+			Log.i(TAG, "Replayed " + replay.size() + " threats from spill file");
+			markCommitted(replay.get(replay.size() - 1).sequence);
+		}
+		replay = null;
+	}
+
+	long getThreatsWritten() {
+		return threatsWritten.get();
+	}
+
+	long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	long getThreatsReplayed() {
+		return threatsReplayed.get();
+	}
+
+	int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Immutable snapshot of an ended threat and its track, in primitive arrays
+	 */
+	static class PendingThreat {
+
+		static final PendingThreat FLUSH_MARKER = new PendingThreat(0, 0f, 0L, 0L, 0, null, 0);
+
+		/**
+		 * Spill sequence number, set when spilled
+		 */
+		long sequence;
+		final int type;
+		final float frequency;
+		final long startTime;
+		final long endTime;
+		final int credibility;
+		final String locationName;
+		final int locationCount;
+		final double[] lat;
+		final double[] lng;
+		final long[] time;
+		final float[] speed;
+		final float[] bearing;
+
+		private PendingThreat(int type, float frequency, long startTime, long endTime, int credibility,
+				String locationName, int locationCount) {
+			this.type = type;
+			this.frequency = frequency;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.credibility = credibility;
+			this.locationName = locationName;
+			this.locationCount = locationCount;
+			lat = new double[locationCount];
+			lng = new double[locationCount];
+			time = new long[locationCount];
+			speed = new float[locationCount];
+			bearing = new float[locationCount];
+		}
+
+		static PendingThreat from(Threat threat, String locationName) {
+			ThreatTrack track = threat.track;
+			int n = ( track == null ? 0 : track.size() );
+			PendingThreat t = new PendingThreat(threat.alert.alertType.getCode(), threat.alert.frequency,
+					threat.startTimeMillis, ( threat.endTimeMillis == null ? 0L : threat.endTimeMillis ),
+					threat.credibility.getCode(), locationName, n);
+			for ( int i = 0; i < n; i++ ) {
+				t.lat[i] = track.getLatitude(i);
+				t.lng[i] = track.getLongitude(i);
+				t.time[i] = track.getTime(i);
+				t.speed[i] = track.getSpeed(i);
+				t.bearing[i] = track.getBearing(i);
+			}
+			return t;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeByte(SPILL_VERSION);
+			out.writeLong(sequence);
+			out.writeInt(type);
+			out.writeFloat(frequency);
+			out.writeLong(startTime);
+			out.writeLong(endTime);
+			out.writeInt(credibility);
+			out.writeBoolean(locationName != null);
+			if ( locationName != null )
+				out.writeUTF(locationName);
+			out.writeInt(locationCount);
+			for ( int i = 0; i < locationCount; i++ ) {
+				out.writeDouble(lat[i]);
+				out.writeDouble(lng[i]);
+				out.writeLong(time[i]);
+				out.writeFloat(speed[i]);
+				out.writeFloat(bearing[i]);
+			}
+		}
+
+		static PendingThreat readFrom(DataInputStream in) throws IOException {
+			int version = in.readByte();
+			if ( version != SPILL_VERSION )
+				throw new IOException("Unknown spill record version " + version);
+			long sequence = in.readLong();
+			int type = in.readInt();
+			float frequency = in.readFloat();
+			long startTime = in.readLong();
+			long endTime = in.readLong();
+			int credibility = in.readInt();
+			String locationName = ( in.readBoolean() ? in.readUTF() : null );
+			int n = in.readInt();
+			PendingThreat t = new PendingThreat(type, frequency, startTime, endTime, credibility, locationName, n);
+			t.sequence = sequence;
+			for ( int i = 0; i < n; i++ ) {
+				t.lat[i] = in.readDouble();
+				t.lng[i] = in.readDouble();
+				t.time[i] = in.readLong();
+				t.speed[i] = in.readFloat();
+				t.bearing[i] = in.readFloat();
+			}
+			return t;
+		}
+	}
+}
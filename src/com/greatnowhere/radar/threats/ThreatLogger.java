@@ -1,7 +1,6 @@
 package com.greatnowhere.radar.threats;
 
-import java.util.ArrayList;
-import java.util.Date;
+import java.io.File;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -9,29 +8,30 @@ import android.annotation.SuppressLint;
 import android.app.AlarmManager;
 import android.app.IntentService;
 import android.app.PendingIntent;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
-import android.os.Parcelable;
 import android.util.Log;
 
 import com.greatnowhere.radar.MainRadarApplication;
 import com.greatnowhere.radar.config.Preferences;
+import com.greatnowhere.radar.location.GeoGrid;
 import com.greatnowhere.radar.location.LocationInfoLookupManager;
+import com.greatnowhere.radar.messaging.RadarMessageNotification;
 import com.greatnowhere.radar.messaging.RadarMessageThreat;
-import com.greatnowhere.radar.threats.ThreatManager.ThreatCredibility;
 
 import de.greenrobot.event.EventBus;
 
 public class ThreatLogger extends SQLiteOpenHelper {
 
 	private static final String DB_NAME = MainRadarApplication.class.getCanonicalName();
-	private static final int DB_VERSION = 6;
+	private static final int DB_VERSION = 8;
 	
 	private static final String TAG = ThreatLogger.class.getCanonicalName();
 	
@@ -48,8 +48,38 @@ public class ThreatLogger extends SQLiteOpenHelper {
 	private static AlarmManager alarmManager;
 	private static PendingIntent logCleanupIntent;
 	private static EventBus eventBus;
+	private static ThreatLogWriter writer;
+	private static final String SPILL_FILE_NAME = "threatlog.spill";
+	private static ThreatHistoryFilter historyFilter;
+	private static final String HISTORY_FILTER_FILE_NAME = "threat_history.bloom";
+	private static ThreatHistoryCache historyCache;
 	
 	private static final double OneDegreeKm = 111.3D;
+	private static final String REAL_ARG = "cast(? as real)";
+	/**
+	 * One retention run at a time
+	 */
+	private static final Object retentionLock = new Object();
+	/**
+	 * Page cache of main connection, in pages
+	 */
+	private static final int CACHE_SIZE_PAGES = 512;
+	private static final long AUTO_VACUUM_INCREMENTAL = 2;
+	
+	/**
+	 * Arguments are bound as strings, so numeric ones are cast: a text value compared with an expression is
+	 * always greater than it, which would make every location match
+	 */
+	private static final String SIMILAR_THREAT_FILTER = "from threats where type=? and abs(" + REAL_ARG + "-freq)<0.05 and exists "
+			+ "(select 1 from threats_locations where threat_id=threats.id and abs(" + LATITUDE + "-" + REAL_ARG + ")*" + OneDegreeKm 
+			+ "<" + REAL_ARG + " and abs(" + LONGITUDE + "-" + REAL_ARG + ")*" + OneDegreeKm + "*" + REAL_ARG + "<" + REAL_ARG + ")";
+	
+	/**
+	 * Database connection held for the lifetime of the process. In WAL mode reads on it don't wait for
+	 * {@link ThreatLogWriter} transactions
+	 */
+	private SQLiteDatabase db;
+	private SQLiteStatement countSimilarStatement;
 	
 	public static synchronized void init(Context ctx) {
 		if ( instance == null ) 
@@ -59,8 +89,14 @@ public class ThreatLogger extends SQLiteOpenHelper {
 		ThreatLogger.ctx = ctx;
 		if ( eventBus == null )
 			eventBus = EventBus.getDefault();
+		if ( writer == null ) {
+			historyFilter = new ThreatHistoryFilter(new File(ctx.getFilesDir(), HISTORY_FILTER_FILE_NAME));
+			historyCache = new ThreatHistoryCache();
+			writer = new ThreatLogWriter(new File(ctx.getFilesDir(), SPILL_FILE_NAME), historyFilter, historyCache);
+			writer.start();
+		}
 		
-		if ( Preferences.isLogThreats() && Preferences.isLogThreatLimitNumeric() ) {
+		if ( Preferences.isLogThreats() && isRetentionLimited() ) {
 			Intent i = new Intent(ctx, DBPruneService.class);
 			logCleanupIntent = PendingIntent.getService(ctx, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
 			alarmManager.setInexactRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + 3600000L, AlarmManager.INTERVAL_DAY, logCleanupIntent);
@@ -70,94 +106,254 @@ public class ThreatLogger extends SQLiteOpenHelper {
 	private ThreatLogger(Context context, String name, CursorFactory factory,
 			int version) {
 		super(context, name, factory, version);
+		setWriteAheadLoggingEnabled(true);
+	}
+	
+	/**
+	 * Returns held database connection, opening it on first use
+	 * @return
+	 */
+	static synchronized SQLiteDatabase getDatabase() {
+		if ( instance.db == null || !instance.db.isOpen() ) {
+			instance.db = instance.getWritableDatabase();
+			instance.countSimilarStatement = null;
+		}
+		return instance.db;
 	}
 
+	/**
+	 * Queues ended threat for writing to database. Returns once it's in spill file, rows are written in batches
+	 * by {@link ThreatLogWriter}
+	 * @param threat
+	 */
 	public static void logThreat(Threat threat) {
-		Intent i = new Intent(ctx, ThreatLoggerService.class);
-		i.putExtra(ThreatLoggerService.KEY_BUNDLE_ALERT, threat.alert);
-		if ( threat.locations != null )
-			i.putParcelableArrayListExtra(ThreatLoggerService.KEY_BUNDLE_LOCATIONS, new ArrayList<Parcelable>(threat.locations));
-		i.putExtra(ThreatLoggerService.KEY_BUNDLE_START_TIME, threat.startTimeMillis);
-		i.putExtra(ThreatLoggerService.KEY_BUNDLE_END_TIME, threat.endTimeMillis);
-		i.putExtra(ThreatLoggerService.KEY_BUNDLE_CREDIBILITY, threat.credibility);
-		i.putExtra(ThreatLoggerService.KEY_BUNDLE_LOCATION_NAME, LocationInfoLookupManager.getCurrentWayName());
-		ctx.startService(i);
+		if ( writer == null )
+			return;
+		writer.enqueue(ThreatLogWriter.PendingThreat.from(threat, LocationInfoLookupManager.getCurrentWayName()));
 	}
 	
-	public static int countSimilarThreatOccurences(RadarMessageThreat threat, Location loc, float radius) {
-		Threat t = new Threat();
-		t.locations = new LinkedHashSet<Location>();
-		t.locations.add(loc);
-		t.alert = threat;
-		return countSimilarThreatOccurences(t, radius);
+	/**
+	 * Writes pending threats without waiting for batch to fill up
+	 */
+	public static void flush() {
+		if ( writer != null )
+			writer.requestFlush();
+	}
+	
+	/**
+	 * Writes pending threats and waits until threats queued so far are in database. Not on main thread
+	 * @param timeoutMillis
+	 * @return false if they weren't written in time
+	 */
+	public static boolean flushAndWait(long timeoutMillis) {
+		return ( writer == null || writer.flushAndWait(timeoutMillis) );
 	}
 	
 	/**
-	 * Counts threats in database with the same alert type, frequency and within "radius" of the location
+	 * Loads a page of logged threats matching query
+	 * @param query
+	 * @param previous last loaded page, null for first page
+	 * @return
+	 */
+	public static ThreatHistoryQuery.Page queryThreatHistory(ThreatHistoryQuery query, ThreatHistoryQuery.Page previous) {
+		return query.loadPage(getDatabase(), previous);
+	}
+	
+	/**
+	 * Totals of logged threats matching query
+	 */
+	public static ThreatHistoryQuery.Summary getThreatHistorySummary(ThreatHistoryQuery query) {
+		return query.loadSummary(getDatabase());
+	}
+	
+	/**
+	 * Counts threats in database with the same alert type, frequency and within "radius" of any of the threat's locations
 	 * @param threat
 	 * @param radius in km
 	 * @return
 	 */
 	public static int countSimilarThreatOccurences(Threat threat, float radius) {
-		SQLiteDatabase db = instance.getReadableDatabase();
-		Set<Integer> threat_ids = new LinkedHashSet<Integer>();
-		//String partialDistance = double2String(convertKmToPartialDistance(radius));
+		ThreatTrack track = threat.track;
+		if ( track == null || track.size() == 0 )
+			return 0;
 		Log.d(TAG, "Looking for threats " + threat.alert.alertType.getName() + " freq " + threat.alert.frequency 
 				+ " radius " + radius);
-		if ( threat.locations != null ) {
-			for ( Location l : threat.locations ) {
-				String sql = "select distinct id from threats where type=? and abs(?-freq)<0.05 and exists (select * from threats_locations "
-						+ "where threat_id=threats.id and " + buildDistanceQuery2(l.getLatitude(), l.getLongitude(), radius) + ")";
-				Log.d(TAG, "Looking for threats close to lat " + double2String(l.getLatitude())
-						+ " long " + double2String(l.getLongitude()) + " sql " + sql);
-				Cursor c = db.rawQuery(sql, new String[] { Integer.toString(threat.alert.alertType.getCode()),
-						Float.toString(threat.alert.frequency) } );
-				if ( c.getCount() > 0 ) {
-					while (c.moveToNext() ) {
-						threat_ids.add(c.getInt(0));
-						Log.d(TAG,"added threat id " + c.getInt(0));
-					}
+		if ( track.size() == 1 ) {
+			return countSimilarThreatOccurences(threat.alert, track.getLatitude(0), track.getLongitude(0), radius);
+		}
+		SQLiteDatabase db = getDatabase();
+		Set<Integer> threat_ids = new LinkedHashSet<Integer>();
+		for ( int i = 0; i < track.size(); i++ ) {
+			Cursor c = db.rawQuery("select distinct id " + SIMILAR_THREAT_FILTER, 
+					similarThreatArgs(threat.alert, track.getLatitude(i), track.getLongitude(i), radius));
+			try {
+				while ( c.moveToNext() ) {
+					threat_ids.add(c.getInt(0));
 				}
+			} finally {
+				c.close();
 			}
 		}
 		Log.d(TAG,"found " + threat_ids.size() + " unique threats");
-		//eventBus.post(new RadarMessageNotification("False threat scanner found " + threat_ids.size() + " similar threats"));
 		return threat_ids.size();
 	}
 	
 	/**
-	 * Leaves no more than maxRecordCount records on threats database
-	 * @param maxRecordCount
+	 * Counts threats in database with the same alert type, frequency and within "radius" of the location.
+	 * Called on alert path, uses a compiled statement. Skips the query if {@link ThreatHistoryFilter} knows
+	 * no such threat was ever logged nearby
+	 * @param threat
+	 * @param loc
+	 * @param radius in km
+	 * @return
+	 */
+	public static int countSimilarThreatOccurences(RadarMessageThreat threat, Location loc, float radius) {
+		if ( historyFilter != null && !historyFilter.mightContain(threat.alertType.getCode(), threat.frequency, 
+				loc.getLatitude(), loc.getLongitude(), radius) ) {
+			return 0;
+		}
+		int count = countSimilarThreatOccurences(threat, loc.getLatitude(), loc.getLongitude(), radius);
+		if ( count == 0 && historyFilter != null && historyFilter.isReady() )
+			historyFilter.reportFalsePositive();
+		return count;
+	}
+	
+	/**
+	 * Rebuilds history filter from database, after rows were added behind writer's back
+	 */
+	static void rebuildHistoryFilter() {
+		if ( historyCache != null )
+			historyCache.clear();
+		if ( historyFilter != null )
+			historyFilter.rebuild(getDatabase());
+	}
+	
+	/**
+	 * Loads logged threat locations around given points into memory in background, so similar threat counts
+	 * there don't query database
+	 * @param latitudes
+	 * @param longitudes
+	 * @param count points to use
+	 * @param radius in km, as will be passed to {@link #countSimilarThreatOccurences(RadarMessageThreat, Location, float)}
 	 */
-	public static void purgeOldLogRecords(int maxRecordCount) {
-		SQLiteDatabase db = instance.getWritableDatabase(); 
-		db.execSQL("delete from threats where id in (select id from threats order by timestamp desc limit " + maxRecordCount + ")");
+	public static void prefetchHistory(double[] latitudes, double[] longitudes, int count, float radius) {
+		if ( historyCache != null )
+			historyCache.prefetch(latitudes, longitudes, count, radius);
+	}
+	
+	public static long getHistoryCacheHits() {
+		return ( historyCache == null ? 0L : historyCache.getHits() );
+	}
+	
+	public static long getHistoryCacheMisses() {
+		return ( historyCache == null ? 0L : historyCache.getMisses() );
+	}
+	
+	public static long getHistoryCacheCellsLoaded() {
+		return ( historyCache == null ? 0L : historyCache.getCellsLoaded() );
+	}
+	
+	/**
+	 * Share of similar threat lookups answered by history filter without a query
+	 */
+	public static double getHistoryFilterSkipRatio() {
+		return ( historyFilter == null ? 0d : historyFilter.getSkipRatio() );
+	}
+	
+	/**
+	 * Observed history filter false positive rate, see {@link ThreatHistoryFilter#getObservedFalsePositiveRate()}
+	 */
+	public static double getHistoryFilterFalsePositiveRate() {
+		return ( historyFilter == null ? 0d : historyFilter.getObservedFalsePositiveRate() );
+	}
+	
+	public static double getHistoryFilterEstimatedFalsePositiveRate() {
+		return ( historyFilter == null ? 0d : historyFilter.getEstimatedFalsePositiveRate() );
+	}
+	
+	public static long getHistoryFilterQueries() {
+		return ( historyFilter == null ? 0L : historyFilter.getQueries() );
+	}
+	
+	private static int countSimilarThreatOccurences(RadarMessageThreat threat, double latitude, double longitude, float radius) {
+		int cached = ( historyCache == null ? -1 
+				: historyCache.count(threat.alertType.getCode(), threat.frequency, latitude, longitude, radius) );
+		if ( cached >= 0 ) {
+			Log.d(TAG,"found " + cached + " similar threats in prefetched history");
+			return cached;
+		}
+		SQLiteDatabase db = getDatabase();
+		String[] args = similarThreatArgs(threat, latitude, longitude, radius);
+		long count;
+		synchronized (ThreatLogger.class) {
+			if ( instance.countSimilarStatement == null )
+				instance.countSimilarStatement = db.compileStatement("select count(distinct id) " + SIMILAR_THREAT_FILTER);
+			instance.countSimilarStatement.bindAllArgsAsStrings(args);
+			count = instance.countSimilarStatement.simpleQueryForLong();
+		}
+		Log.d(TAG,"found " + count + " similar threats");
+		return (int) count;
+	}
+	
+	private static String[] similarThreatArgs(RadarMessageThreat threat, double latitude, double longitude, double radius) {
+		/**
+		 * 1 deg lat = 111.3km
+		 * 1 deg long = 111.3km * cos(lat)
+		 */
+		String r = Double.toString(radius);
+		return new String[] { Integer.toString(threat.alertType.getCode()), Float.toString(threat.frequency),
+				Double.toString(latitude), r, Double.toString(longitude), Double.toString(Math.cos(deg2rad(latitude))), r };
+	}
+	
+	private static boolean isRetentionLimited() {
+		return Preferences.isLogThreatLimitNumeric() || Preferences.getLogThreatMaxAgeDays() > 0 
+				|| Preferences.getLogThreatMaxSizeMb() > 0;
 	}
 	
 	/**
-	 * Purges log records prior to specified cutoff datetime
-	 * @param cutoffDateTime
+	 * Deletes oldest threats as per preferences (max count, max age, max db size) and reports what was reclaimed.
+	 * Holds its own lock only, so logging and alert time queries carry on between its short transactions
+	 * @return
 	 */
-	public static void purgeOldLogRecords(Date cutoffDateTime) {
-		SQLiteDatabase db = instance.getWritableDatabase();
-		db.execSQL("delete from threats where timestamp>" + cutoffDateTime.getTime());
+	public static ThreatLogRetention.Result enforceRetention() {
+		ThreatLogRetention.Result r;
+		synchronized (retentionLock) {
+			ThreatLogRetention retention = new ThreatLogRetention(getDatabase());
+			r = retention.enforce(
+					( Preferences.isLogThreatLimitNumeric() ? Preferences.getLogThreatLimitNumeric() : 0 ),
+					Preferences.getLogThreatMaxAgeDays() * AlarmManager.INTERVAL_DAY,
+					Preferences.getLogThreatMaxSizeMb() * 1024L * 1024L);
+		}
+		if ( r.getThreatsDeleted() > 0 && historyCache != null )
+			historyCache.clear();
+		if ( r.getThreatsDeleted() > 0 && eventBus != null ) {
+			eventBus.post(new RadarMessageNotification(r.toString()));
+		}
+		return r;
 	}
 	
 	@Override
 	public void onConfigure(SQLiteDatabase db) {
-		super.onOpen(db);
+		super.onConfigure(db);
 		db.setForeignKeyConstraintsEnabled(true);
+		// WAL is fsynced at checkpoints only, a crash may lose last commits but never corrupts db
+		db.execSQL("PRAGMA synchronous=NORMAL");
+		db.execSQL("PRAGMA cache_size=" + CACHE_SIZE_PAGES);
+		db.execSQL("PRAGMA temp_store=MEMORY");
+		// takes effect right away on new db, existing one is converted in onOpen
+		db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
 	}
 	
-	public static void injectLocationValues(ContentValues values, double latitude, double longitude) {
-	    values.put(LATITUDE, double2String(latitude));
-	    values.put(LONGITUDE, double2String(longitude));
-	    values.put(COSLAT, double2String(Math.cos(deg2rad(latitude))));
-	    values.put(SINLAT, double2String(Math.sin(deg2rad(latitude))));
-	    values.put(COSLNG, double2String(Math.cos(deg2rad(longitude))));
-	    values.put(SINLNG, double2String(Math.sin(deg2rad(longitude))));
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if ( DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL ) {
+			// one-time rebuild so that pruned pages can be released incrementally later
+			Log.i(TAG, "Converting threat log to incremental auto vacuum");
+			db.execSQL("VACUUM");
+		}
 	}
-
+	
 	public static double deg2rad(double deg) {
 	    return (deg * Math.PI / 180D);
 	}
@@ -180,68 +376,6 @@ public class ThreatLogger extends SQLiteOpenHelper {
 		return String.format("%32.19f", d);
 	}
 	
-	/**
-	 * 
-	 * @see http://stackoverflow.com/questions/3126830/query-to-get-records-based-on-radius-in-sqlite/9536914#9536914
-	 * 
-	 * Build query based on distance using spherical law of cosinus
-	 * 
-	 * d = acos(sin(lat1).sin(lat2)+cos(lat1).cos(lat2).cos(long2−long1)).R
-	 * where R=6371 and latitudes and longitudes expressed in radians
-	 * 
-	 * In Sqlite we do not have access to acos() sin() and lat() functions.
-	 * Knowing that cos(A-B) = cos(A).cos(B) + sin(A).sin(B)
-	 * We can determine a distance stub as:
-	 * d = sin(lat1).sin(lat2)+cos(lat1).cos(lat2).(cos(long2).cos(long1)+sin(long2).sin(long1))
-	 * 
-	 * First comparison point being fixed, sin(lat1) cos(lat1) sin(long1) and cos(long1)
-	 * can be replaced by constants.
-	 * 
-	 * Location aware table must therefore have the following columns to build the equation:
-	 * sinlat => sin(radians(lat))
-	 * coslat => cos(radians(lat))
-	 * coslng => cos(radians(lng))
-	 * sinlng => sin(radians(lng))
-	 *  
-	 * Function will return a real between -1 and 1 which can be used to order the query.
-	 * Distance in km is after expressed from R.acos(result) 
-	 *  
-	 * @param latitude, latitude of search
-	 * @param longitude, longitude of search
-	 * @return selection query to compute the distance
-	 */
-	public static String buildDistanceQuery(double latitude, double longitude) {
-	    final double coslat = Math.cos(deg2rad(latitude));
-	    final double sinlat = Math.sin(deg2rad(latitude));
-	    final double coslng = Math.cos(deg2rad(longitude));
-	    final double sinlng = Math.sin(deg2rad(longitude));
-	    //@formatter:off
-	    return "(" + double2String(coslat) + "*" + COSLAT
-	            + "*(" + COSLNG + "*" + double2String(coslng)
-	            + "+" + SINLNG + "*" + double2String(sinlng)
-	            + ")+" + double2String(sinlat) + "*" + SINLAT 
-	            + ")";
-	    //@formatter:on
-	}
-	
-	/**
-	 * Simplistic approach at figuring whether two locations are within specified radius of each other
-	 * Based on assumption that one degree latitude is 111.3km, and one degree longitude is 111.3km * cos(lat)
-	 * @param latitude
-	 * @param longitude
-	 * @param radius km
-	 * @return
-	 */
-	public static String buildDistanceQuery2(double latitude, double longitude, double radius) {
-		/**
-		 * 1 deg lat = 111.3km
-		 * 1 deg long = 111.3km * cos(lat)
-		 */
-		double mx = Math.cos(latitude);
-		return "( abs(" + LATITUDE + " - " + double2String(latitude) + ")*" + OneDegreeKm + " < " + radius +
-				" and abs(" + LONGITUDE + " - "  + double2String(longitude) + ")*" + OneDegreeKm + "*" + mx + " < " + radius + ")";
-	}
-
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		db.execSQL("create table threats(id integer primary key autoincrement, type integer, "
@@ -249,20 +383,55 @@ public class ThreatLogger extends SQLiteOpenHelper {
 		db.execSQL("create table threats_locations(id integer primary key autoincrement, threat_id integer,"
 				+ " lat real, long real,ts integer,"
 				+ COSLAT + " text," + SINLAT + " text," + COSLNG + " text," + SINLNG + " text,speed real,bearing real," 
-				+ "foreign key(threat_id) references threats(id) on delete cascade);");
+				+ "cell integer,foreign key(threat_id) references threats(id) on delete cascade);");
 		db.execSQL("create index threat_ind1 on threats(type,freq);");
+		createHistoryIndexes(db);
+		createCellIndex(db);
+	}
+	
+	/**
+	 * Index for history paging by (timestamp, id), and for joining locations to their threat
+	 */
+	private static void createHistoryIndexes(SQLiteDatabase db) {
+		db.execSQL("create index if not exists threat_ind2 on threats(timestamp,id);");
+		db.execSQL("create index if not exists threat_loc_ind1 on threats_locations(threat_id);");
+	}
+
+	/**
+	 * Index for loading locations by {@link GeoGrid} cell, see {@link ThreatHistoryCache}
+	 */
+	private static void createCellIndex(SQLiteDatabase db) {
+		db.execSQL("create index if not exists threat_loc_ind2 on threats_locations(cell);");
+	}
+
+	/**
+	 * Fills in grid cell of locations logged before it was stored
+	 */
+	private static void backfillCells(SQLiteDatabase db) {
+		SQLiteStatement upd = db.compileStatement("update threats_locations set cell=? where id=?");
+		Cursor c = db.rawQuery("select id,lat,long from threats_locations", null);
+		try {
+			while ( c.moveToNext() ) {
+				upd.bindLong(1, GeoGrid.getCellId(c.getDouble(1), c.getDouble(2)));
+				upd.bindLong(2, c.getLong(0));
+				upd.executeUpdateDelete();
+			}
+		} finally {
+			c.close();
+			upd.close();
+		}
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		if ( oldVersion == 1 && newVersion == 2 ) {
+		if ( oldVersion == 1 && newVersion >= 2 ) {
 			db.execSQL("alter table threats_loc add column " + COSLAT + " real;");
 			db.execSQL("alter table threats_loc add column " + SINLAT + " real;");
 			db.execSQL("alter table threats_loc add column " + COSLNG + " real;");
 			db.execSQL("alter table threats_loc add column " + SINLNG + " real;");
 			oldVersion = 2;
 		}
-		if ( oldVersion == 2 && newVersion == 3 ) {
+		if ( oldVersion == 2 && newVersion >= 3 ) {
 			db.execSQL("create table threats_locations(id integer primary key autoincrement, threat_id integer, lat real, long real, ts integer,"
 					+ "foreign key(threat_id) references threats(id) on delete cascade);");
 			db.execSQL("insert into threats_locations select * from threats_loc;");
@@ -271,13 +440,13 @@ public class ThreatLogger extends SQLiteOpenHelper {
 			db.execSQL("alter table threats_locations add column bearing real;");
 			oldVersion = 3;
 		}
-		if ( oldVersion == 3 && newVersion == 4 ) {
+		if ( oldVersion == 3 && newVersion >= 4 ) {
 			db.execSQL("alter table threats add column end_timestamp integer;");
 			db.execSQL("alter table threats add column fake integer;");
 			db.execSQL("create index threat_ind1 on threats(type,freq);");
 			oldVersion = 4;
 		}
-		if ( oldVersion == 4 && newVersion == 5 ) {
+		if ( oldVersion == 4 && newVersion >= 5 ) {
 			db.execSQL("create table threats_loc2(id integer primary key autoincrement, threat_id integer, " 
 					+ "lat text, long text, ts integer," 
 					+ "speed real, bearing real," 
@@ -294,10 +463,20 @@ public class ThreatLogger extends SQLiteOpenHelper {
 			db.execSQL("alter table threats_loc2 rename to threats_locations;");
 			oldVersion = 5;
 		}
-		if ( oldVersion == 5 && newVersion == 6 ) {
+		if ( oldVersion == 5 && newVersion >= 6 ) {
 			db.execSQL("alter table threats add column location_name text;");
 			oldVersion = 6;
 		}
+		if ( oldVersion == 6 && newVersion >= 7 ) {
+			createHistoryIndexes(db);
+			oldVersion = 7;
+		}
+		if ( oldVersion == 7 && newVersion >= 8 ) {
+			db.execSQL("alter table threats_locations add column cell integer;");
+			backfillCells(db);
+			createCellIndex(db);
+			oldVersion = 8;
+		}
 	}
 	
 	/**
@@ -313,72 +492,11 @@ public class ThreatLogger extends SQLiteOpenHelper {
 
 		@Override
 		protected void onHandleIntent(Intent intent) {
-			// Keep X last records
 			Preferences.init(getApplicationContext());
 			ThreatLogger.init(getApplicationContext());
-			if ( Preferences.isLogThreatLimitNumeric() ) {
-				purgeOldLogRecords(Preferences.getLogThreatLimitNumeric());
-			}
+			enforceRetention();
 		}
 		
 	}
 	
-	/**
-	 * Threat logger service, performs db operations in background
-	 * @author pzeltins
-	 *
-	 */
-	public static class ThreatLoggerService extends IntentService {
-
-		public ThreatLoggerService() {
-			super(ThreatLoggerService.class.getCanonicalName());
-		}
-
-		protected static final String KEY_BUNDLE_ALERT = "alertObj";
-		protected static final String KEY_BUNDLE_LOCATIONS = "setOfLocations";
-		protected static final String KEY_BUNDLE_START_TIME = "threatStartTime";
-		protected static final String KEY_BUNDLE_END_TIME = "threatEndTime";
-		protected static final String KEY_BUNDLE_CREDIBILITY = "threatCredibility";
-		protected static final String KEY_BUNDLE_LOCATION_NAME = "threatLocationName";
-		
-		@Override
-		protected void onHandleIntent(Intent intent) {
-			RadarMessageThreat t = (RadarMessageThreat) intent.getSerializableExtra(KEY_BUNDLE_ALERT);
-			if ( t == null )
-				return;
-			
-			ArrayList<Location> locations = intent.getParcelableArrayListExtra(KEY_BUNDLE_LOCATIONS);
-			Long startTime = intent.getLongExtra(KEY_BUNDLE_START_TIME, 0);
-			Long endTime = intent.getLongExtra(KEY_BUNDLE_END_TIME, 0);
-			ThreatManager.ThreatCredibility cred = (ThreatCredibility) intent.getSerializableExtra(KEY_BUNDLE_CREDIBILITY);
-			String locName = intent.getStringExtra(KEY_BUNDLE_LOCATION_NAME);
-			
-			SQLiteDatabase db = instance.getWritableDatabase(); 
-			db.beginTransaction();
-			ContentValues v = new ContentValues();
-			v.put("type", t.alertType.getCode());
-			v.put("freq", t.frequency);
-			v.put("timestamp", startTime);
-			v.put("end_timestamp", endTime);
-			v.put("fake", cred.getCode());
-			v.put("location_name", locName);
-			long threatId = db.insert("threats", null, v);
-			if ( locations != null ) {
-				for ( Location l : locations ) {
-					v = new ContentValues();
-					v.put("threat_id", threatId);
-					injectLocationValues(v, l.getLatitude(), l.getLongitude());
-					v.put("ts", l.getTime());
-					v.put("speed", l.getSpeed());
-					v.put("bearing", l.getBearing());
-					db.insert("threats_locations", null, v);
-				}
-			}
-			db.setTransactionSuccessful();
-			db.endTransaction();
-		}
-		
-		
-	}
-	
 }
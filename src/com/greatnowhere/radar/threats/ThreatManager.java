@@ -1,24 +1,18 @@
 package com.greatnowhere.radar.threats;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
-import android.media.SoundPool;
+import android.location.Location;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.view.Gravity;
-import android.view.View;
 import android.view.WindowManager;
-import android.widget.LinearLayout;
 
-import com.cobra.iradar.protocol.CobraRadarMessageAlert;
-import com.greatnowhere.radar.R;
 import com.greatnowhere.radar.config.Preferences;
 import com.greatnowhere.radar.location.RadarLocationManager;
 import com.greatnowhere.radar.location.SpeedLimitChecker;
@@ -39,15 +33,21 @@ public class ThreatManager {
 	/**
 	 * Threats currently displayed
 	 */
-	private static List<Threat> activeThreats = new ArrayList<Threat>();
+	private static volatile List<Threat> activeThreats = new CopyOnWriteArrayList<Threat>();
 	
 	private static WindowManager wm = null;
 	private static WindowManager.LayoutParams params;
-	static SoundPool alertSounds = null;
-	static Map<String, Integer> alertSoundsLoaded = new HashMap<String, Integer>();
-	View mainThreatView;
-	LinearLayout mainThreatLayout;
+	static AlertSoundBank alertSounds = null;
+	/**
+	 * Alerts before load last shown in screen log
+	 */
+	private static long reportedAlertsBeforeLoad = 0;
+	ThreatOverlayView mainThreatView;
 	private static AtomicBoolean isThreatActive = new AtomicBoolean(false);
+	/**
+	 * Applies threat view changes once per display frame
+	 */
+	static final ThreatOverlayRenderer renderer = new ThreatOverlayRenderer();
 	private static EventBus eventBus;
 	protected static ThreatManager instance;
 	private static Threat currentThreat;
@@ -56,6 +56,12 @@ public class ThreatManager {
 	
 	private static Context ctx;
 	
+	/**
+	 * Known false alert source confidence at which threat is considered fake, or suspect
+	 */
+	private static final float KNOWN_SOURCE_FAKE_CONFIDENCE = 0.8f;
+	private static final float KNOWN_SOURCE_SUSPECT_CONFIDENCE = 0.4f;
+	
 	public static void init(Context appContext) {
 		if ( ctx != null )
 			return;
@@ -68,9 +74,6 @@ public class ThreatManager {
 		ctx = appContext;
 		
 		tm = (TelephonyManager) ctx.getSystemService(Context.TELEPHONY_SERVICE);
-        // Inflate main threats layout
-        instance.mainThreatView = View.inflate(ctx, R.layout.threats_view, null);
-        
 		eventBus.post(new UIRunnableEvent(new Runnable() {
 			public void run() {
 			    params = new WindowManager.LayoutParams(
@@ -88,21 +91,16 @@ public class ThreatManager {
 		        params.dimAmount = 0.4f;
 		        wm = (WindowManager) ctx.getSystemService(Context.WINDOW_SERVICE);
 		        
-		        instance.mainThreatLayout = (LinearLayout) instance.mainThreatView.findViewById(R.id.layoutThreats);
+		        // All threats are drawn by a single view, no inflation happens when alerts come in
+		        instance.mainThreatView = new ThreatOverlayView(ctx);
+		        renderer.start(wm, params, instance.mainThreatView);
 		        
-		        alertSounds = new SoundPool(3, AlertAudioManager.OUTPUT_STREAM, 0);
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_KA, alertSounds.load(ctx, R.raw.ka1, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_HAZARD, alertSounds.load(ctx, R.raw.ev, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_K, alertSounds.load(ctx, R.raw.k1, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_KU, alertSounds.load(ctx, R.raw.ku1, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_LASER, alertSounds.load(ctx, R.raw.laser, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_POP, alertSounds.load(ctx, R.raw.ka1, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_RDD, alertSounds.load(ctx, R.raw.vg2, 1));
-		        alertSoundsLoaded.put(CobraRadarMessageAlert.ALERT_SOUND_X, alertSounds.load(ctx, R.raw.x1, 1));
+		        alertSounds = new AlertSoundBank(ctx, AlertAudioManager.OUTPUT_STREAM);
 		        
 		        // Initialize location manager
 		        RadarLocationManager.init(ctx);
 		        ThreatLogger.init(ctx);
+		        KnownFalseAlertSources.init(ctx);
 			}
 		}));
 	}
@@ -122,19 +120,32 @@ public class ThreatManager {
 	public static void stop() {
     	Log.d(TAG, "stop");
 		removeThreats();
+		// ended threats are still queued for logging, write them out now
+		ThreatLogger.flush();
 		RadarLocationManager.stop();
 	}
 
 	private static ThreatCredibility getThreatCredibility(RadarMessageThreat alert) {
 
 		ThreatCredibility cred = ThreatCredibility.LEGIT;
+		// extrapolated through GPS dropouts
+		Location l = RadarLocationManager.getEstimatedLoc();
+		// check known false alert sources dataset
+		if ( Preferences.isFakeAlertDetection() && KnownFalseAlertSources.isLoaded() && RadarLocationManager.isReady() ) {
+			float confidence = KnownFalseAlertSources.getConfidence(alert, l.getLatitude(), l.getLongitude());
+			if ( confidence >= KNOWN_SOURCE_FAKE_CONFIDENCE ) {
+				cred = ThreatCredibility.FAKE;
+			} else if ( confidence >= KNOWN_SOURCE_SUSPECT_CONFIDENCE ) {
+				cred = ThreatCredibility.SUSPECT_FAKE;
+			}
+		}
 		// check if fake
 		if ( Preferences.isFakeAlertDetection() && Preferences.isLogThreatLocation() && RadarLocationManager.isReady() ) {
-			int countSimilar = ThreatLogger.countSimilarThreatOccurences(alert, RadarLocationManager.getCurrentLoc(), Preferences.getFakeAlertDetectionRadius());
+			int countSimilar = ThreatLogger.countSimilarThreatOccurences(alert, l, Preferences.getFakeAlertDetectionRadius());
 			if ( countSimilar > Preferences.getFakeAlertOccurenceThreshold() ) {
 				cred = ThreatCredibility.FAKE;
 			}
-			if ( countSimilar >= 1 && countSimilar <= Preferences.getFakeAlertOccurenceThreshold() ) {
+			if ( countSimilar >= 1 && countSimilar <= Preferences.getFakeAlertOccurenceThreshold() && cred == ThreatCredibility.LEGIT ) {
 				cred = ThreatCredibility.SUSPECT_FAKE;
 			}
 		}
@@ -145,9 +156,10 @@ public class ThreatManager {
 			cred = ThreatCredibility.HIDDEN;
 		}
 		
-		// check if we are above min required speed
+		// check if we are above min required speed; if speed isn't known any more, don't hide
 		if ( Preferences.getThreatShowMinSpeed() > 0 && RadarLocationManager.isReady() ) {
-			if ( RadarLocationManager.getCurrentSpeedKph() <= Preferences.getThreatShowMinSpeed() ) {
+			float speed = RadarLocationManager.getEffectiveSpeedKph();
+			if ( speed >= 0 && speed <= Preferences.getThreatShowMinSpeed() ) {
 				cred = ThreatCredibility.HIDDEN;
 			}
 		}
@@ -166,10 +178,11 @@ public class ThreatManager {
 		}
 		Threat t = findExistingThreat( alert );
 		if ( t == null ) {
-			View v = View.inflate(ctx, R.layout.threat, null);
-			t = new Threat(v, alert, cred);
+			t = new Threat(alert, cred);
 			t.showThreat();
 			activeThreats.add(t);
+			if ( activeThreats.size() == 1 )
+				eventBus.post(new EventThreatsActiveChanged(true));
 			addLogMessage(t.toString());
 		} else {
 			t.updateThreat(alert, cred);
@@ -179,13 +192,16 @@ public class ThreatManager {
 		return cred;
 	}
 	
+	/**
+	 * TRUE if any threat, shown or not, is being tracked
+	 */
+	public static boolean hasActiveThreats() {
+		return !activeThreats.isEmpty();
+	}
+	
 	private synchronized static void showMainView() {
 		isThreatActive.set(true);
-		eventBus.post(new UIRunnableEvent(new Runnable() {
-			public void run() {
-				wm.addView(instance.mainThreatView, params);
-			}
-		}));
+		renderer.setOverlayVisible(true);
 	}
 	
 	public synchronized static void removeThreats() {
@@ -195,19 +211,36 @@ public class ThreatManager {
 		if ( activeThreats.size() == 0 ) 
 			return;
 		
-		for ( Threat t : activeThreats ) {
+		List<Threat> ended = activeThreats;
+		activeThreats = new CopyOnWriteArrayList<Threat>();
+		for ( Threat t : ended ) {
 			addLogMessage("Ended threat " + t.toString());
 			t.removeThreat();
 		}
-		activeThreats = new ArrayList<Threat>();
+		eventBus.post(new EventThreatsActiveChanged(false));
 		AlertAudioManager.restoreOldAlertVolume();
 		isThreatActive.set(false);
-		eventBus.post(new UIRunnableEvent(new Runnable() {
-			public void run() {
-				instance.mainThreatLayout.removeAllViews();
-				wm.removeView(instance.mainThreatView);
-			}
-		}));
+		renderer.setOverlayVisible(false);
+		Log.d(TAG, "Overlay frames " + renderer.getFramesRendered() + " updates applied " + renderer.getUpdatesApplied()
+				+ " skipped " + renderer.getUpdatesSkipped());
+		if ( ThreatLogger.getHistoryFilterQueries() > 0 ) {
+			Log.d(TAG, "Threat history filter lookups " + ThreatLogger.getHistoryFilterQueries() + " skipped " 
+					+ ThreatLogger.getHistoryFilterSkipRatio() + " false positives " + ThreatLogger.getHistoryFilterFalsePositiveRate()
+					+ " estimated " + ThreatLogger.getHistoryFilterEstimatedFalsePositiveRate());
+		}
+		if ( ThreatLogger.getHistoryCacheCellsLoaded() > 0 ) {
+			Log.d(TAG, "Prefetched threat history cells " + ThreatLogger.getHistoryCacheCellsLoaded() + " hits " 
+					+ ThreatLogger.getHistoryCacheHits() + " misses " + ThreatLogger.getHistoryCacheMisses());
+		}
+		if ( alertSounds != null && alertSounds.getAlertsBeforeLoad() != reportedAlertsBeforeLoad ) {
+			reportedAlertsBeforeLoad = alertSounds.getAlertsBeforeLoad();
+			addLogMessage("Alerts fired before their sound loaded: " + alertSounds.getAlertsBeforeLoad() 
+					+ ", silent: " + alertSounds.getAlertsSilent());
+		}
+		if ( instance.mainThreatView != null ) {
+			Log.d(TAG, "Overlay draws " + instance.mainThreatView.getDrawCount() + " last " + instance.mainThreatView.getLastDrawMicros()
+					+ "us avg " + instance.mainThreatView.getAverageDrawMicros() + "us max " + instance.mainThreatView.getMaxDrawMicros() + "us");
+		}
 		
 		if ( wasScreenOn.get() ) {
 			turnScreenOff();
@@ -239,10 +272,6 @@ public class ThreatManager {
 		return Color.argb(255, red, green, blue);
 	}
 	
-	static float getThreatSoundPitch(int strength) {
-		return (((float) strength - 1) / 16f) + 1f;
-	}
-
 	/**
 	 * Hacky helper class and event handlers for UI interaction
 	 * @param event
@@ -263,6 +292,14 @@ public class ThreatManager {
 		}
 	}
 	
+	/**
+	 * Number of threat view updates superseded by a newer state before they could be drawn
+	 * @return
+	 */
+	public static long getOverlaySkippedUpdates() {
+		return renderer.getUpdatesSkipped();
+	}
+	
 	public static void addLogMessage(String s) {
 		eventBus.post(new RadarMessageNotification(s));
 	}
@@ -271,6 +308,17 @@ public class ThreatManager {
 		return (tm.getCallState() != TelephonyManager.CALL_STATE_IDLE);
 	}
 	
+	/**
+	 * Posted when first threat starts being tracked, and when all threats end
+	 */
+	public static class EventThreatsActiveChanged {
+		public final boolean isActive;
+		
+		public EventThreatsActiveChanged(boolean active) {
+			isActive = active;
+		}
+	}
+	
 	/**
 	 * Status returned by newThreat
 	 * can be FAKE, POSSIBLE_FAKE, etc
@@ -0,0 +1,179 @@
+package com.greatnowhere.radar.threats;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+/**
+ * Applies threat overlay changes once per display frame.
+ * Threats submit their latest desired state from any thread; only the newest state submitted before
+ * the next frame is drawn, older ones are dropped and counted as skipped
+ */
+class ThreatOverlayRenderer implements Choreographer.FrameCallback {
+
+	private static final String TAG = ThreatOverlayRenderer.class.getCanonicalName();
+
+	private final Queue<ThreatState> dirtyStates = new ConcurrentLinkedQueue<ThreatState>();
+	private final AtomicBoolean isFramePending = new AtomicBoolean(false);
+	private volatile boolean isOverlayWanted = false;
+
+	private final AtomicLong framesRendered = new AtomicLong();
+	private final AtomicLong updatesApplied = new AtomicLong();
+	private final AtomicLong updatesSkipped = new AtomicLong();
+
+	/**
+	 * UI thread only
+	 */
+	private volatile Choreographer choreographer;
+	private WindowManager wm;
+	private WindowManager.LayoutParams params;
+	private ThreatOverlayView overlayView;
+	private boolean isOverlayAttached = false;
+
+	/**
+	 * Binds renderer to overlay window. Must be called on UI thread, any state submitted earlier is
+	 * rendered on next frame
+	 */
+	void start(WindowManager wm, WindowManager.LayoutParams params, ThreatOverlayView overlayView) {
+		this.wm = wm;
+		this.params = params;
+		this.overlayView = overlayView;
+		choreographer = Choreographer.getInstance();
+		isFramePending.set(false);
+		scheduleFrame();
+	}
+
+	/**
+	 * Submits desired state of a single threat row
+	 */
+	void submit(ThreatState state, boolean visible, String bandName, float frequency, int strength, int color) {
+		boolean wasPending;
+		synchronized (state) {
+			wasPending = state.isPending;
+			state.visible = visible;
+			state.bandName = bandName;
+			state.frequency = frequency;
+			state.strength = strength;
+			state.color = color;
+			state.isPending = true;
+		}
+		markDirty(state, wasPending);
+	}
+
+	/**
+	 * Hides row of a threat
+	 */
+	void submitHidden(ThreatState state) {
+		boolean wasPending;
+		synchronized (state) {
+			wasPending = state.isPending;
+			state.visible = false;
+			state.isPending = true;
+		}
+		markDirty(state, wasPending);
+	}
+
+	private void markDirty(ThreatState state, boolean wasPending) {
+		if ( wasPending ) {
+			// previous state never made it to screen
+			updatesSkipped.incrementAndGet();
+		} else {
+			dirtyStates.add(state);
+		}
+		scheduleFrame();
+	}
+
+	/**
+	 * Sets whether overlay window should be shown at all
+	 */
+	void setOverlayVisible(boolean visible) {
+		isOverlayWanted = visible;
+		scheduleFrame();
+	}
+
+	private void scheduleFrame() {
+		if ( choreographer != null && isFramePending.compareAndSet(false, true) ) {
+			choreographer.postFrameCallback(this);
+		}
+	}
+
+	public void doFrame(long frameTimeNanos) {
+		isFramePending.set(false);
+		framesRendered.incrementAndGet();
+		ThreatState state;
+		while ( ( state = dirtyStates.poll() ) != null ) {
+			apply(state);
+		}
+		overlayView.commit();
+		if ( isOverlayWanted && !isOverlayAttached ) {
+			wm.addView(overlayView, params);
+			isOverlayAttached = true;
+		} else if ( !isOverlayWanted && isOverlayAttached ) {
+			wm.removeView(overlayView);
+			isOverlayAttached = false;
+		}
+	}
+
+	private void apply(ThreatState state) {
+		boolean visible;
+		String bandName;
+		float frequency;
+		int strength;
+		int color;
+		synchronized (state) {
+			visible = state.visible;
+			bandName = state.bandName;
+			frequency = state.frequency;
+			strength = state.strength;
+			color = state.color;
+			state.isPending = false;
+		}
+		if ( visible ) {
+			if ( state.row < 0 )
+				state.row = overlayView.acquireRow();
+			if ( state.row < 0 ) {
+				Log.w(TAG, "All " + ThreatOverlayView.MAX_ROWS + " overlay rows taken, threat not shown");
+			} else {
+				overlayView.bindRow(state.row, bandName, frequency, strength, color);
+			}
+		} else if ( state.row >= 0 ) {
+			overlayView.releaseRow(state.row);
+			state.row = -1;
+		}
+		updatesApplied.incrementAndGet();
+	}
+
+	long getFramesRendered() {
+		return framesRendered.get();
+	}
+
+	long getUpdatesApplied() {
+		return updatesApplied.get();
+	}
+
+	long getUpdatesSkipped() {
+		return updatesSkipped.get();
+	}
+
+	/**
+	 * Latest desired display state of one threat. Fields are guarded by the object itself,
+	 * row is touched on UI thread only
+	 */
+	static class ThreatState {
+		private boolean isPending = false;
+		private boolean visible = false;
+		private String bandName;
+		private float frequency;
+		private int strength;
+		private int color;
+		/**
+		 * Slot in {@link ThreatOverlayView}, -1 if not displayed
+		 */
+		private int row = -1;
+	}
+}
@@ -0,0 +1,259 @@
+package com.greatnowhere.radar.threats;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Align;
+import android.graphics.Paint.Style;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+import android.view.View;
+
+/**
+ * Draws all active threats (band, strength bar, frequency) on a single canvas.
+ * Rows live in a fixed number of preallocated slots; text widths are measured when a row is bound,
+ * so {@link #onDraw(Canvas)} neither allocates nor measures. Must only be used from UI thread
+ */
+public class ThreatOverlayView extends View {
+
+	/**
+	 * Max number of threats displayed at once
+	 */
+	public static final int MAX_ROWS = 6;
+
+	private static final int STRENGTH_SEGMENTS = 5;
+	private static final int OUTLINE_COLOR = 0xFF1C1B20;
+	private static final int BACKGROUND_COLOR = 0xA0A9C5AC;
+	private static final int BAR_BACKGROUND_COLOR = 0xFF0B131E;
+	private static final int SHADOW_COLOR = 0xFF8080FF;
+
+	private final Row[] rows = new Row[MAX_ROWS];
+
+	private final Paint bandPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint freqPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint barPaint = new Paint();
+	private final Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint outlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final RectF rect = new RectF();
+
+	private final float padding;
+	private final float outlineWidth;
+	private final float cornerRadius;
+	private final float barHeight;
+	private final float segmentGap;
+	private final float minBarWidth;
+	private final float bandAscent;
+	private final float bandLineHeight;
+	private final float freqAscent;
+	private final float freqLineHeight;
+	private final float rowHeight;
+
+	private int measuredRowCount = 0;
+	private float measuredContentWidth = 0;
+	private boolean isLayoutDirty = false;
+	private boolean isDrawDirty = false;
+
+	private long drawCount = 0;
+	private long lastDrawNanos = 0;
+	private long maxDrawNanos = 0;
+	private long totalDrawNanos = 0;
+
+	public ThreatOverlayView(Context context) {
+		super(context);
+		DisplayMetrics dm = context.getResources().getDisplayMetrics();
+		padding = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 4, dm);
+		outlineWidth = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 3, dm);
+		cornerRadius = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20, dm);
+		barHeight = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 20, dm);
+		segmentGap = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 2, dm);
+		minBarWidth = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 120, dm);
+		float shadowRadius = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 12, dm);
+
+		bandPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 70, dm));
+		bandPaint.setTypeface(Typeface.DEFAULT_BOLD);
+		bandPaint.setTextAlign(Align.CENTER);
+		bandPaint.setShadowLayer(shadowRadius, 0, 0, SHADOW_COLOR);
+		freqPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 40, dm));
+		freqPaint.setTextAlign(Align.CENTER);
+		freqPaint.setShadowLayer(shadowRadius, 0, 0, SHADOW_COLOR);
+		barPaint.setStyle(Style.FILL);
+		backgroundPaint.setStyle(Style.FILL);
+		backgroundPaint.setColor(BACKGROUND_COLOR);
+		outlinePaint.setStyle(Style.STROKE);
+		outlinePaint.setStrokeWidth(outlineWidth);
+		outlinePaint.setColor(OUTLINE_COLOR);
+
+		Paint.FontMetrics fm = bandPaint.getFontMetrics();
+		bandAscent = -fm.ascent;
+		bandLineHeight = fm.descent - fm.ascent;
+		fm = freqPaint.getFontMetrics();
+		freqAscent = -fm.ascent;
+		freqLineHeight = fm.descent - fm.ascent;
+		rowHeight = bandLineHeight + barHeight + freqLineHeight + 2 * padding + 2 * outlineWidth;
+
+		for ( int i = 0; i < MAX_ROWS; i++ ) {
+			rows[i] = new Row();
+		}
+	}
+
+	/**
+	 * Reserves a free row slot
+	 * @return slot index, or -1 if {@link #MAX_ROWS} threats are already displayed
+	 */
+	public int acquireRow() {
+		for ( int i = 0; i < MAX_ROWS; i++ ) {
+			if ( !rows[i].inUse ) {
+				rows[i].inUse = true;
+				rows[i].reset();
+				isLayoutDirty = true;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void releaseRow(int slot) {
+		if ( slot < 0 || slot >= MAX_ROWS || !rows[slot].inUse )
+			return;
+		rows[slot].inUse = false;
+		isLayoutDirty = true;
+	}
+
+	/**
+	 * Updates row contents. Text is only re-measured if it changed
+	 */
+	public void bindRow(int slot, String band, float frequency, int strength, int color) {
+		Row r = rows[slot];
+		if ( !band.equals(r.band) ) {
+			r.band = band;
+			r.bandWidth = bandPaint.measureText(band);
+			isLayoutDirty = true;
+		}
+		if ( frequency != r.frequency || r.freqText == null ) {
+			r.frequency = frequency;
+			r.freqText = Float.toString(frequency) + " Ghz";
+			r.freqWidth = freqPaint.measureText(r.freqText);
+			isLayoutDirty = true;
+		}
+		if ( strength != r.strength || color != r.color ) {
+			r.strength = Math.max(0, Math.min(strength, STRENGTH_SEGMENTS));
+			r.color = color;
+			isDrawDirty = true;
+		}
+	}
+
+	/**
+	 * Requests a single layout or redraw pass for all row changes since last commit
+	 */
+	public void commit() {
+		if ( isLayoutDirty ) {
+			isLayoutDirty = false;
+			isDrawDirty = false;
+			int count = 0;
+			float width = minBarWidth;
+			for ( Row r : rows ) {
+				if ( r.inUse ) {
+					count++;
+					width = Math.max(width, Math.max(r.bandWidth, r.freqWidth));
+				}
+			}
+			if ( count != measuredRowCount || width != measuredContentWidth ) {
+				measuredRowCount = count;
+				measuredContentWidth = width;
+				requestLayout();
+			}
+			invalidate();
+		} else if ( isDrawDirty ) {
+			isDrawDirty = false;
+			invalidate();
+		}
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int w = (int) Math.ceil(measuredContentWidth + 2 * padding + 2 * outlineWidth);
+		int h = (int) Math.ceil(rowHeight * Math.max(measuredRowCount, 1));
+		setMeasuredDimension(resolveSize(w, widthMeasureSpec), resolveSize(h, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		long start = System.nanoTime();
+		float width = getWidth();
+		float centerX = width / 2f;
+		float inset = outlineWidth / 2f;
+		float top = 0;
+		for ( Row r : rows ) {
+			if ( !r.inUse || r.band == null )
+				continue;
+			rect.set(inset, top + inset, width - inset, top + rowHeight - inset);
+			canvas.drawRoundRect(rect, cornerRadius, cornerRadius, backgroundPaint);
+			canvas.drawRoundRect(rect, cornerRadius, cornerRadius, outlinePaint);
+
+			float y = top + outlineWidth + padding;
+			bandPaint.setColor(r.color);
+			canvas.drawText(r.band, centerX, y + bandAscent, bandPaint);
+			y += bandLineHeight;
+
+			float barLeft = outlineWidth + padding;
+			float segmentWidth = ( width - 2 * barLeft - ( STRENGTH_SEGMENTS - 1 ) * segmentGap ) / STRENGTH_SEGMENTS;
+			for ( int i = 0; i < STRENGTH_SEGMENTS; i++ ) {
+				float left = barLeft + i * ( segmentWidth + segmentGap );
+				barPaint.setColor(i < r.strength ? r.color : BAR_BACKGROUND_COLOR);
+				canvas.drawRect(left, y, left + segmentWidth, y + barHeight, barPaint);
+			}
+			y += barHeight;
+
+			freqPaint.setColor(r.color);
+			canvas.drawText(r.freqText, centerX, y + freqAscent, freqPaint);
+			top += rowHeight;
+		}
+		lastDrawNanos = System.nanoTime() - start;
+		maxDrawNanos = Math.max(maxDrawNanos, lastDrawNanos);
+		totalDrawNanos += lastDrawNanos;
+		drawCount++;
+	}
+
+	public long getDrawCount() {
+		return drawCount;
+	}
+
+	/**
+	 * Duration of the last onDraw, in microseconds
+	 * @return
+	 */
+	public long getLastDrawMicros() {
+		return lastDrawNanos / 1000L;
+	}
+
+	public long getMaxDrawMicros() {
+		return maxDrawNanos / 1000L;
+	}
+
+	public long getAverageDrawMicros() {
+		return ( drawCount == 0 ? 0 : totalDrawNanos / drawCount / 1000L );
+	}
+
+	private static class Row {
+		boolean inUse = false;
+		String band;
+		float bandWidth;
+		float frequency;
+		String freqText;
+		float freqWidth;
+		int strength;
+		int color;
+
+		void reset() {
+			band = null;
+			bandWidth = 0;
+			frequency = 0;
+			freqText = null;
+			freqWidth = 0;
+			strength = 0;
+			color = 0;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.greatnowhere.radar.threats;
+
+import android.location.Location;
+
+/**
+ * Location track of a single threat, simplified online as fixes come in.
+ * A fix is kept if it is far enough from the last kept one, or if heading changed noticeably, so straight
+ * stretches collapse to a few points while curves keep their shape. The last fix and the fix with strongest
+ * signal are always kept. Points are stored in primitive arrays. Not thread safe
+ */
+public class ThreatTrack {
+
+	/**
+	 * Max spacing of kept points on a straight road, meters. Capped to a quarter of fake alert detection radius
+	 * so radius matching against stored points is unaffected
+	 */
+	static final float MAX_SPACING_M = 25f;
+	/**
+	 * Heading change which keeps a point even if closer than spacing, degrees
+	 */
+	static final float MIN_HEADING_CHANGE_DEG = 15f;
+	/**
+	 * Points closer than this are never kept because of heading change, GPS jitter
+	 */
+	static final float MIN_TURN_DISTANCE_M = 5f;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final float spacing;
+	private final float[] distance = new float[2];
+
+	private int size = 0;
+	private double[] lat = new double[INITIAL_CAPACITY];
+	private double[] lng = new double[INITIAL_CAPACITY];
+	private long[] time = new long[INITIAL_CAPACITY];
+	private float[] speed = new float[INITIAL_CAPACITY];
+	private float[] bearing = new float[INITIAL_CAPACITY];
+	private int[] strength = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Latest fix, not kept yet
+	 */
+	private Location tail;
+	private int tailStrength;
+	/**
+	 * Strongest fix, if it wasn't kept by the filter
+	 */
+	private Location strongest;
+	private int strongestStrength = Integer.MIN_VALUE;
+	private Location lastAdded;
+	private int pointsSeen = 0;
+	private boolean isFinished = false;
+
+	/**
+	 * @param fakeAlertRadiusKm radius used for fake alert matching
+	 */
+	public ThreatTrack(float fakeAlertRadiusKm) {
+		spacing = ( fakeAlertRadiusKm > 0 ? Math.min(MAX_SPACING_M, fakeAlertRadiusKm * 1000f / 4f) : MAX_SPACING_M );
+	}
+
+	/**
+	 * Feeds a fix observed while threat was active
+	 * @param l
+	 * @param signalStrength threat strength at that moment
+	 */
+	public void add(Location l, int signalStrength) {
+		if ( l == null || isFinished )
+			return;
+		// same fix is reported on every alert frame until GPS moves on
+		if ( l == lastAdded ) {
+			if ( isTail(l) )
+				tailStrength = Math.max(tailStrength, signalStrength);
+			else if ( size > 0 )
+				strength[size - 1] = Math.max(strength[size - 1], signalStrength);
+			if ( signalStrength > strongestStrength ) {
+				strongestStrength = signalStrength;
+				strongest = ( isTail(l) ? l : null );
+			}
+			return;
+		}
+		lastAdded = l;
+		pointsSeen++;
+		boolean keep = isSignificant(l);
+		if ( keep ) {
+			append(l, signalStrength);
+			tail = null;
+		} else {
+			tail = l;
+			tailStrength = signalStrength;
+		}
+		if ( signalStrength > strongestStrength ) {
+			strongestStrength = signalStrength;
+			strongest = ( keep ? null : l );
+		}
+	}
+
+	private boolean isTail(Location l) {
+		return tail == l;
+	}
+
+	private boolean isSignificant(Location l) {
+		if ( size == 0 )
+			return true;
+		int last = size - 1;
+		Location.distanceBetween(lat[last], lng[last], l.getLatitude(), l.getLongitude(), distance);
+		float d = distance[0];
+		if ( d >= spacing )
+			return true;
+		if ( d >= MIN_TURN_DISTANCE_M && l.hasBearing() ) {
+			float diff = Math.abs(l.getBearing() - bearing[last]) % 360f;
+			if ( diff > 180f )
+				diff = 360f - diff;
+			return diff >= MIN_HEADING_CHANGE_DEG;
+		}
+		return false;
+	}
+
+	private void append(Location l, int signalStrength) {
+		ensureCapacity(size + 1);
+		set(size, l, signalStrength);
+		size++;
+	}
+
+	private void set(int i, Location l, int signalStrength) {
+		lat[i] = l.getLatitude();
+		lng[i] = l.getLongitude();
+		time[i] = l.getTime();
+		speed[i] = l.getSpeed();
+		bearing[i] = l.getBearing();
+		strength[i] = signalStrength;
+	}
+
+	/**
+	 * Adds last fix and strongest fix to kept points, in time order. No fixes are accepted afterwards
+	 */
+	public void finish() {
+		if ( isFinished )
+			return;
+		isFinished = true;
+		if ( strongest != null && strongest != tail ) {
+			insertByTime(strongest, strongestStrength);
+		}
+		if ( tail != null ) {
+			insertByTime(tail, tailStrength);
+		}
+		strongest = null;
+		tail = null;
+	}
+
+	private void insertByTime(Location l, int signalStrength) {
+		ensureCapacity(size + 1);
+		int i = size;
+		while ( i > 0 && time[i - 1] > l.getTime() ) {
+			i--;
+		}
+		int tailLength = size - i;
+		System.arraycopy(lat, i, lat, i + 1, tailLength);
+		System.arraycopy(lng, i, lng, i + 1, tailLength);
+		System.arraycopy(time, i, time, i + 1, tailLength);
+		System.arraycopy(speed, i, speed, i + 1, tailLength);
+		System.arraycopy(bearing, i, bearing, i + 1, tailLength);
+		System.arraycopy(strength, i, strength, i + 1, tailLength);
+		set(i, l, signalStrength);
+		size++;
+	}
+
+	private void ensureCapacity(int needed) {
+		if ( needed <= lat.length )
+			return;
+		int capacity = Math.max(needed, lat.length * 2);
+		lat = copyOf(lat, capacity);
+		lng = copyOf(lng, capacity);
+		time = copyOf(time, capacity);
+		speed = copyOf(speed, capacity);
+		bearing = copyOf(bearing, capacity);
+		strength = copyOf(strength, capacity);
+	}
+
+	private static double[] copyOf(double[] a, int capacity) {
+		double[] b = new double[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static long[] copyOf(long[] a, int capacity) {
+		long[] b = new long[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static float[] copyOf(float[] a, int capacity) {
+		float[] b = new float[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static int[] copyOf(int[] a, int capacity) {
+		int[] b = new int[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * Number of kept points. Until {@link #finish()} last and strongest fix may be missing
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0 && tail == null;
+	}
+
+	/**
+	 * Number of distinct fixes fed to this track
+	 */
+	public int getPointsSeen() {
+		return pointsSeen;
+	}
+
+	public double getLatitude(int i) {
+		return lat[i];
+	}
+
+	public double getLongitude(int i) {
+		return lng[i];
+	}
+
+	public long getTime(int i) {
+		return time[i];
+	}
+
+	public float getSpeed(int i) {
+		return speed[i];
+	}
+
+	public float getBearing(int i) {
+		return bearing[i];
+	}
+
+	public int getStrength(int i) {
+		return strength[i];
+	}
+}
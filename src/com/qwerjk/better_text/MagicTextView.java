@@ -1,9 +1,8 @@
 package com.qwerjk.better_text;
 
 import java.util.ArrayList;
-import java.util.WeakHashMap;
+import java.util.Arrays;
 import com.greatnowhere.radar.R;
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
@@ -21,16 +20,52 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.Pair;
+import android.util.LruCache;
 import android.widget.TextView;
 
-@SuppressLint("DrawAllocation")
+/**
+ * TextView with outer/inner shadows, stroke and foreground fill.
+ * Fully rendered text is kept in a process-wide LRU cache bounded by bytes, keyed by everything that
+ * affects the rendering, so redrawing unchanged text is a single drawBitmap
+ */
 public class MagicTextView extends TextView {
+	/**
+	 * Upper bound of cached render bitmaps, in bytes
+	 */
+	public static final int RENDER_CACHE_BYTES = 4 * 1024 * 1024;
+	
+	private static final PorterDuffXfermode XFER_SRC_ATOP = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+	private static final PorterDuffXfermode XFER_DST_OUT = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+	
+	private static final LruCache<String, Bitmap> renderCache = new LruCache<String, Bitmap>(RENDER_CACHE_BYTES) {
+		@Override
+		protected int sizeOf(String key, Bitmap value) {
+			return value.getByteCount();
+		}
+		// evicted bitmaps aren't recycled: with hardware acceleration a display list recorded earlier may
+		// still draw them on the render thread, they are left to GC
+	};
+	private static final StringBuilder keyBuilder = new StringBuilder();
+	private static final int KEY_INPUTS = 13;
+	private static long cacheHits = 0;
+	private static long cacheMisses = 0;
+	
 	private ArrayList<Shadow> outerShadows;
 	private ArrayList<Shadow> innerShadows;
-	
-	private WeakHashMap<String, Pair<Canvas, Bitmap>> canvasStore;
+	/**
+	 * Cache key part describing shadows and stroke, rebuilt when effects change
+	 */
+	private String effectsKey;
+	/**
+	 * Cache key of last draw, and what it was built from, so it's rebuilt only when one of those changes
+	 */
+	private String cacheKey;
+	private String cacheKeyEffects;
+	private CharSequence cacheKeyText;
+	private final int[] cacheKeyInputs = new int[KEY_INPUTS];
+	private static final int[] keyInputs = new int[KEY_INPUTS];
 	
 	private Canvas tempCanvas;
 	private Bitmap tempBitmap;
@@ -61,9 +96,6 @@ public class MagicTextView extends TextView {
 	public void init(AttributeSet attrs){
 		outerShadows = new ArrayList<Shadow>();
 		innerShadows = new ArrayList<Shadow>();
-		if(canvasStore == null){
-		    canvasStore = new WeakHashMap<String, Pair<Canvas, Bitmap>>();
-		}
 	
 		if(attrs != null){
 			TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.MagicTextView);
@@ -127,6 +159,7 @@ public class MagicTextView extends TextView {
 		strokeColor = color;
 		strokeJoin = join;
 		strokeMiter = miter;
+		effectsKey = null;
 	}
 	
 	public void setStroke(float width, int color){
@@ -136,23 +169,28 @@ public class MagicTextView extends TextView {
 	public void addOuterShadow(float r, float dx, float dy, int color){
 		if(r == 0){ r = 0.0001f; }
 		outerShadows.add(new Shadow(r,dx,dy,color));
+		effectsKey = null;
 	}
 	
 	public void addInnerShadow(float r, float dx, float dy, int color){
 		if(r == 0){ r = 0.0001f; }
 		innerShadows.add(new Shadow(r,dx,dy,color));
+		effectsKey = null;
 	}
 	
 	public void clearInnerShadows(){
 		innerShadows.clear();
+		effectsKey = null;
 	}
 	
 	public void clearOuterShadows(){
 		outerShadows.clear();
+		effectsKey = null;
 	}
 	
 	public void setForegroundDrawable(Drawable d){
 		this.foregroundDrawable = d;
+		effectsKey = null;
 	}
 	
 	public Drawable getForeground(){
@@ -162,6 +200,103 @@ public class MagicTextView extends TextView {
 	
 	@Override
 	public void onDraw(Canvas canvas){
+		int w = getWidth();
+		int h = getHeight();
+		// bitmaps larger than the cache would be evicted right away, draw those directly
+		if(w <= 0 || h <= 0 || w * h * 4 > RENDER_CACHE_BYTES / 2){
+			render(canvas);
+			return;
+		}
+		String key = buildCacheKey(w, h);
+		Bitmap cached = renderCache.get(key);
+		if(cached != null){
+			cacheHits++;
+		}else{
+			cacheMisses++;
+			cached = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+			render(new Canvas(cached));
+			renderCache.put(key, cached);
+		}
+		canvas.drawBitmap(cached, 0, 0, null);
+	}
+	
+	/**
+	 * Key from everything that affects how text is rendered, reused while none of it changed
+	 */
+	private String buildCacheKey(int w, int h){
+		TextPaint paint = getPaint();
+		int[] inputs = keyInputs;
+		inputs[0] = w;
+		inputs[1] = h;
+		inputs[2] = Float.floatToIntBits(paint.getTextSize());
+		inputs[3] = System.identityHashCode(paint.getTypeface());
+		inputs[4] = paint.getFlags();
+		inputs[5] = getCurrentTextColor();
+		inputs[6] = getGravity();
+		inputs[7] = getScrollX();
+		inputs[8] = getScrollY();
+		inputs[9] = getCompoundPaddingLeft();
+		inputs[10] = getCompoundPaddingTop();
+		inputs[11] = getCompoundPaddingRight();
+		inputs[12] = getCompoundPaddingBottom();
+		CharSequence text = getText();
+		if(cacheKey != null && effectsKey != null && effectsKey == cacheKeyEffects
+				&& Arrays.equals(inputs, cacheKeyInputs) && TextUtils.equals(text, cacheKeyText)){
+			return cacheKey;
+		}
+		if(effectsKey == null){
+			StringBuilder sb = new StringBuilder();
+			for(Shadow shadow : outerShadows){
+				sb.append('o').append(shadow.r).append(',').append(shadow.dx).append(',').append(shadow.dy).append(',').append(shadow.color);
+			}
+			for(Shadow shadow : innerShadows){
+				sb.append('i').append(shadow.r).append(',').append(shadow.dx).append(',').append(shadow.dy).append(',').append(shadow.color);
+			}
+			if(strokeColor != null){
+				sb.append('s').append(strokeWidth).append(',').append(strokeColor).append(',').append(strokeJoin).append(',').append(strokeMiter);
+			}
+			if(foregroundDrawable != null){
+				sb.append('f').append(System.identityHashCode(foregroundDrawable));
+			}
+			effectsKey = sb.toString();
+		}
+		StringBuilder sb = keyBuilder;
+		sb.setLength(0);
+		sb.append(w).append('x').append(h)
+			.append('|').append(paint.getTextSize())
+			.append('|').append(inputs[3])
+			.append('|').append(inputs[4])
+			.append('|').append(inputs[5])
+			.append('|').append(inputs[6])
+			.append('|').append(inputs[7]).append(',').append(inputs[8])
+			.append('|').append(inputs[9]).append(',').append(inputs[10])
+			.append(',').append(inputs[11]).append(',').append(inputs[12])
+			.append('|').append(effectsKey)
+			.append('|').append(text);
+		cacheKey = sb.toString();
+		cacheKeyEffects = effectsKey;
+		// copy, a spannable text may be changed in place
+		cacheKeyText = text.toString();
+		System.arraycopy(inputs, 0, cacheKeyInputs, 0, KEY_INPUTS);
+		return cacheKey;
+	}
+	
+	public static long getCacheHits(){
+		return cacheHits;
+	}
+	
+	public static long getCacheMisses(){
+		return cacheMisses;
+	}
+	
+	/**
+	 * @return bytes currently held by render cache
+	 */
+	public static int getCacheSizeBytes(){
+		return renderCache.size();
+	}
+	
+	private void render(Canvas canvas){
 		super.onDraw(canvas);
 		
 		freeze();
@@ -182,7 +317,7 @@ public class MagicTextView extends TextView {
 			generateTempCanvas();
 			super.onDraw(tempCanvas);
 			Paint paint = ((BitmapDrawable) this.foregroundDrawable).getPaint();
-			paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP));
+			paint.setXfermode(XFER_SRC_ATOP);
 			this.foregroundDrawable.setBounds(canvas.getClipBounds());
 			this.foregroundDrawable.draw(tempCanvas);
 			canvas.drawBitmap(tempBitmap, 0, 0, null);
@@ -207,8 +342,8 @@ public class MagicTextView extends TextView {
 				this.setTextColor(shadow.color);
 				super.onDraw(tempCanvas);
 				this.setTextColor(0xFF000000);
-				paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
-				paint.setMaskFilter(new BlurMaskFilter(shadow.r, BlurMaskFilter.Blur.NORMAL));
+				paint.setXfermode(XFER_DST_OUT);
+				paint.setMaskFilter(shadow.getBlur());
 				
                 tempCanvas.save();
                 tempCanvas.translate(shadow.dx, shadow.dy);
@@ -236,16 +371,12 @@ public class MagicTextView extends TextView {
 	}
 	
 	private void generateTempCanvas(){
-	    String key = String.format("%dx%d", getWidth(), getHeight());
-	    Pair<Canvas, Bitmap> stored = canvasStore.get(key);
-	    if(stored != null){
-	        tempCanvas = stored.first;
-	        tempBitmap = stored.second;
-	    }else{
-            tempCanvas = new Canvas();
-            tempBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
-            tempCanvas.setBitmap(tempBitmap);
-            canvasStore.put(key, new Pair<Canvas, Bitmap>(tempCanvas, tempBitmap));
+	    if(tempBitmap == null || tempBitmap.getWidth() != getWidth() || tempBitmap.getHeight() != getHeight()){
+	        if(tempCanvas == null){
+	            tempCanvas = new Canvas();
+	        }
+	        tempBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+	        tempCanvas.setBitmap(tempBitmap);
 	    }
 	}
 
@@ -321,11 +452,18 @@ public class MagicTextView extends TextView {
 		float dx;
 		float dy;
 		int color;
+		private BlurMaskFilter blur;
 		public Shadow(float r, float dx, float dy, int color){
 			this.r = r;
 			this.dx = dx;
 			this.dy = dy;
 			this.color = color;
 		}
+		BlurMaskFilter getBlur(){
+			if(blur == null){
+				blur = new BlurMaskFilter(r, BlurMaskFilter.Blur.NORMAL);
+			}
+			return blur;
+		}
 	}
 }
\ No newline at end of file